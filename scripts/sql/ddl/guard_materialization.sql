@@ -0,0 +1,8 @@
+-- Ids of the rows allowed by the guarded expression of a querier (materialize_guards = true),
+-- every rebuild of a materialization is a new generation
+CREATE TABLE IF NOT EXISTS GUARD_MATERIALIZATION  (
+  querier varchar(255) NOT NULL,
+  generation bigint NOT NULL,
+  id bigint NOT NULL,
+  PRIMARY KEY (querier, generation, id)
+) ;
@@ -0,0 +1,21 @@
+-- Partitions of guard parts in the FLAT_POLICY format, joined with the guarded rows by the GUARD_LOOKUP rewrite
+-- A NULL column matches every value of the attribute
+CREATE TABLE IF NOT EXISTS GUARD_POLICY_LOOKUP  (
+  guard_id varchar(255) NOT NULL,
+  policy_id varchar(255) NOT NULL,
+  ownerEq integer DEFAULT NULL,
+  profEq varchar(255) DEFAULT NULL,
+  groupEq varchar(255) DEFAULT NULL,
+  locEq varchar(255) DEFAULT NULL,
+  dateGe date DEFAULT NULL,
+  dateLe date DEFAULT NULL,
+  timeGe time DEFAULT NULL,
+  timeLe time DEFAULT NULL,
+  PRIMARY KEY (guard_id, policy_id)
+) ;
+
+CREATE INDEX gpl_loc ON GUARD_POLICY_LOOKUP (guard_id, locEq);
+CREATE INDEX gpl_owner ON GUARD_POLICY_LOOKUP (guard_id, ownerEq);
+CREATE INDEX gpl_group ON GUARD_POLICY_LOOKUP (guard_id, groupEq);
+CREATE INDEX gpl_profile ON GUARD_POLICY_LOOKUP (guard_id, profEq);
+CREATE INDEX gpl_date ON GUARD_POLICY_LOOKUP (guard_id, dateGe, dateLe);
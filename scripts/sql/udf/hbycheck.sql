@@ -1,4 +1,6 @@
 use realtest;
+-- Guarded rewrites no longer call hybcheck: they call the table free functions generated per guard part
+-- (PolicyFunction), this cursor based version is kept for comparison.
 -- Conditionally drop the function when it exists.
 DROP FUNCTION IF EXISTS hybcheck;
 
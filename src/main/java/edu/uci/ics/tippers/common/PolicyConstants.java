@@ -1,9 +1,15 @@
 package edu.uci.ics.tippers.common;
 
 import com.google.common.collect.ImmutableList;
+import edu.uci.ics.tippers.dbms.ConnectionPool;
+import edu.uci.ics.tippers.dbms.SQLDialect;
+import edu.uci.ics.tippers.dbms.TableStatistics;
+import edu.uci.ics.tippers.dbms.db2.DB2ConnectionManager;
+import edu.uci.ics.tippers.dbms.db2.DB2Dialect;
 import edu.uci.ics.tippers.dbms.mysql.MySQLConnectionManager;
+import edu.uci.ics.tippers.dbms.mysql.MySQLDialect;
 import edu.uci.ics.tippers.dbms.postgresql.PGSQLConnectionManager;
-import edu.uci.ics.tippers.dbms.QueryManager;
+import edu.uci.ics.tippers.dbms.postgresql.PGSQLDialect;
 import edu.uci.ics.tippers.model.policy.Operation;
 import edu.uci.ics.tippers.model.policy.QuerierCondition;
 import org.apache.commons.configuration2.Configuration;
@@ -14,6 +20,7 @@ import org.apache.commons.configuration2.builder.fluent.Parameters;
 import org.apache.commons.configuration2.convert.DefaultListDelimiterHandler;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 
+import javax.sql.DataSource;
 import java.io.File;
 import java.sql.Connection;
 import java.time.Duration;
@@ -31,6 +38,9 @@ public class PolicyConstants {
     public static String TIME_FORMAT;
     public static String TIMESTAMP_FORMAT;
 
+    public static boolean MATERIALIZE_GUARDS;
+    public static int RESULT_CACHE_SIZE;
+
     public static String SELECT_ALL;
     public static String SELECT_ALL_WHERE;
 
@@ -42,8 +52,40 @@ public class PolicyConstants {
     public static double MEMORY_BLOCK_READ_COST ;
     public static double ROW_EVALUATE_COST ;
     public static double UDF_INVOCATION_COST;
+    public static double LOOKUP_PROBE_COST;
     public static double POLICY_EVAL_COST ;
     public static double NUMBER_OF_PREDICATES_EVALUATED;
+    public static Duration HISTOGRAM_REFRESH_INTERVAL;
+    public static long HISTOGRAM_REFRESH_ROWS;
+    public static int HISTOGRAM_BUCKETS;
+    public static boolean CTE_INLINE;
+    public static int SCATTER_GATHER_THREADS;
+    public static int POOL_SIZE;
+    public static Duration POOL_BORROW_TIMEOUT;
+    public static Duration POOL_VALIDATION_INTERVAL;
+    public static Duration POOL_LEAK_THRESHOLD;
+    public static int POOL_STATEMENT_CACHE;
+    public static boolean VIRTUAL_THREADS;
+    public static int QUERY_THREADS;
+    public static int QUERY_QUEUE;
+    public static int ASYNC_MAX_IN_FLIGHT;
+    public static int ADMISSION_SLOTS;
+    public static int ADMISSION_HEAVY_SLOTS;
+    public static double ADMISSION_HEAVY_COST;
+    public static int ADMISSION_QUEUE;
+    public static Duration ADMISSION_SLO;
+    public static boolean STREAM_RESULTS;
+    public static int STREAM_FETCH_SIZE;
+    public static boolean STATISTICS_EXACT;
+    public static Duration STATISTICS_TTL;
+    public static boolean PLAN_CAPTURE;
+    public static boolean PLAN_CAPTURE_ANALYZE;
+    public static String PLAN_STORE;
+    public static double PLAN_REGRESSION_FACTOR;
+    public static boolean POLICY_STORE;
+    public static long GUARD_CACHE_BYTES;
+    public static String GUARD_CACHE_EVICTION;
+    public static long GUARD_CACHE_REFRESH;
 
     //Dataset related
     public static List<String> ATTRIBUTES;
@@ -52,7 +94,7 @@ public class PolicyConstants {
     public static Map<String, String> ATTRIBUTE_INDEXES;
 
     private static Connection connection;
-    private static long NUMBER_OF_TUPLES = 0;
+    private static SQLDialect dialect;
 
     private PolicyConstants(){
 
@@ -74,6 +116,8 @@ public class PolicyConstants {
             TIME_FORMAT = datasetConfig.getString("time_format");
             TIMESTAMP_FORMAT = datasetConfig.getString("timestamp_format");
             TABLE_NAME = datasetConfig.getString("table_name");
+            MATERIALIZE_GUARDS = datasetConfig.getBoolean("materialize_guards", false);
+            RESULT_CACHE_SIZE = datasetConfig.getInt("result_cache_size", 0);
 
             SELECT_ALL = "Select * from " + PolicyConstants.TABLE_NAME + " ";
             SELECT_ALL_WHERE = "Select * from " + PolicyConstants.TABLE_NAME + " where ";
@@ -86,8 +130,40 @@ public class PolicyConstants {
             MEMORY_BLOCK_READ_COST = dbmsConfig.getDouble("memory_block_read_cost");
             ROW_EVALUATE_COST = dbmsConfig.getDouble("row_evaluate_cost");
             UDF_INVOCATION_COST = dbmsConfig.getDouble("udf_invocation_cost");
+            LOOKUP_PROBE_COST = dbmsConfig.getDouble("lookup_probe_cost", 0.00001);
             POLICY_EVAL_COST = dbmsConfig.getDouble("policy_eval_cost");
             NUMBER_OF_PREDICATES_EVALUATED = dbmsConfig.getDouble("number_of_predicates_evaluated");
+            HISTOGRAM_REFRESH_INTERVAL = Duration.ofSeconds(dbmsConfig.getLong("histogram_refresh_interval", 0));
+            HISTOGRAM_REFRESH_ROWS = dbmsConfig.getLong("histogram_refresh_rows", 0);
+            HISTOGRAM_BUCKETS = dbmsConfig.getInt("histogram_buckets", 1024);
+            CTE_INLINE = dbmsConfig.getBoolean("cte_inline", false);
+            SCATTER_GATHER_THREADS = dbmsConfig.getInt("scatter_gather_threads", Runtime.getRuntime().availableProcessors());
+            POOL_SIZE = dbmsConfig.getInt("pool_size", Math.max(SCATTER_GATHER_THREADS, 8));
+            POOL_BORROW_TIMEOUT = Duration.ofMillis(dbmsConfig.getLong("pool_borrow_timeout", MAX_DURATION.toMillis()));
+            POOL_VALIDATION_INTERVAL = Duration.ofMillis(dbmsConfig.getLong("pool_validation_interval", 30000));
+            POOL_LEAK_THRESHOLD = Duration.ofMillis(dbmsConfig.getLong("pool_leak_threshold", 0));
+            POOL_STATEMENT_CACHE = dbmsConfig.getInt("pool_statement_cache", 64);
+            VIRTUAL_THREADS = dbmsConfig.getBoolean("virtual_threads", false);
+            QUERY_THREADS = dbmsConfig.getInt("query_threads", POOL_SIZE);
+            QUERY_QUEUE = dbmsConfig.getInt("query_queue", 10000);
+            ASYNC_MAX_IN_FLIGHT = dbmsConfig.getInt("async_max_in_flight", 512);
+            ADMISSION_SLOTS = dbmsConfig.getInt("admission_slots", POOL_SIZE);
+            ADMISSION_HEAVY_SLOTS = dbmsConfig.getInt("admission_heavy_slots", Math.max(1, ADMISSION_SLOTS / 4));
+            ADMISSION_HEAVY_COST = dbmsConfig.getDouble("admission_heavy_cost", 1000000);
+            ADMISSION_QUEUE = dbmsConfig.getInt("admission_queue", ASYNC_MAX_IN_FLIGHT);
+            ADMISSION_SLO = Duration.ofMillis(dbmsConfig.getLong("admission_slo", 10000));
+            STREAM_RESULTS = dbmsConfig.getBoolean("stream_results", false);
+            STREAM_FETCH_SIZE = dbmsConfig.getInt("stream_fetch_size", 10000);
+            STATISTICS_EXACT = dbmsConfig.getBoolean("statistics_exact", false);
+            STATISTICS_TTL = Duration.ofMillis(dbmsConfig.getLong("statistics_ttl", 600000));
+            PLAN_CAPTURE = dbmsConfig.getBoolean("plan_capture", false);
+            PLAN_CAPTURE_ANALYZE = dbmsConfig.getBoolean("plan_capture_analyze", false);
+            PLAN_STORE = dbmsConfig.getString("plan_store", EXP_RESULTS_DIR + "plans.jsonl");
+            PLAN_REGRESSION_FACTOR = dbmsConfig.getDouble("plan_regression_factor", 2.0);
+            POLICY_STORE = dbmsConfig.getBoolean("policy_store", false);
+            GUARD_CACHE_BYTES = dbmsConfig.getLong("guard_cache_bytes", 0);
+            GUARD_CACHE_EVICTION = dbmsConfig.getString("guard_cache_eviction", "lfu");
+            GUARD_CACHE_REFRESH = dbmsConfig.getLong("guard_cache_refresh", 60000);
 
             Parameters params = new Parameters();
             FileBasedConfigurationBuilder<PropertiesConfiguration> builder =
@@ -110,25 +186,67 @@ public class PolicyConstants {
         }
     }
 
-
+    /**
+     * Single connection shared by the data and policy generators, which run on one thread
+     * @return
+     */
     public static Connection getDBMSConnection(){
         if (connection == null) {
             if(PolicyConstants.DBMS_CHOICE.equalsIgnoreCase(PolicyConstants.MYSQL_DBMS))
                 connection = MySQLConnectionManager.getInstance().getConnection();
             else if(PolicyConstants.DBMS_CHOICE.equalsIgnoreCase(PolicyConstants.PGSQL_DBMS))
                 connection = PGSQLConnectionManager.getInstance().getConnection();
+            else if(PolicyConstants.DBMS_CHOICE.equalsIgnoreCase(PolicyConstants.DB2_DBMS))
+                connection = DB2ConnectionManager.getInstance().getConnection();
             else
                 System.out.println("DBMS choice not set or unknown DBMS");
         }
         return connection;
     }
 
-    public static long getNumberOfTuples(){
-        if(NUMBER_OF_TUPLES == 0){
-            QueryManager queryManager  = new QueryManager();
-            NUMBER_OF_TUPLES = queryManager.runCountingQuery(null);
+    /**
+     * Pool of connections shared by the threads executing queries and reading policies and guards,
+     * connections are returned to the pool by closing them
+     * @return
+     */
+    public static DataSource getDataSource(){
+        return ConnectionPool.getInstance();
+    }
+
+    /**
+     * New connection to the DBMS which is not shared with getDBMSConnection
+     * @return
+     */
+    public static Connection newDBMSConnection(){
+        if(PolicyConstants.DBMS_CHOICE.equalsIgnoreCase(PolicyConstants.MYSQL_DBMS))
+            return MySQLConnectionManager.getInstance().newConnection();
+        else if(PolicyConstants.DBMS_CHOICE.equalsIgnoreCase(PolicyConstants.PGSQL_DBMS))
+            return PGSQLConnectionManager.getInstance().newConnection();
+        else if(PolicyConstants.DBMS_CHOICE.equalsIgnoreCase(PolicyConstants.DB2_DBMS))
+            return DB2ConnectionManager.getInstance().newConnection();
+        throw new PolicyEngineException("DBMS choice not set or unknown DBMS");
+    }
+
+    public static SQLDialect getDialect(){
+        if (dialect == null) {
+            if(PolicyConstants.DBMS_CHOICE.equalsIgnoreCase(PolicyConstants.MYSQL_DBMS))
+                dialect = new MySQLDialect();
+            else if(PolicyConstants.DBMS_CHOICE.equalsIgnoreCase(PolicyConstants.PGSQL_DBMS))
+                dialect = new PGSQLDialect();
+            else if(PolicyConstants.DBMS_CHOICE.equalsIgnoreCase(PolicyConstants.DB2_DBMS))
+                dialect = new DB2Dialect();
+            else
+                throw new PolicyEngineException("Unknown DBMS");
         }
-        return NUMBER_OF_TUPLES;
+        return dialect;
+    }
+
+    /**
+     * Rows of the base table from the table statistics, estimated by the DBMS catalog unless statistics_exact is set
+     * @return
+     */
+    public static long getNumberOfTuples(){
+        return TableStatistics.getInstance().getRowCount(TABLE_NAME);
     }
 
     //Simple Constants
@@ -144,6 +262,7 @@ public class PolicyConstants {
 
     public static final String MYSQL_DBMS = "mysql";
     public static final String PGSQL_DBMS = "postgres";
+    public static final String DB2_DBMS = "db2";
     public static final String ORDERS_TABLE = "orders";
     public static final String WIFI_TABLE = "presence";
     public static final String MALL_TABLE = "mall_observation";
@@ -0,0 +1,276 @@
+package edu.uci.ics.tippers.dbms;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.common.PolicyEngineException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Admits guarded queries to the DBMS by weighted fair queuing across queriers, so that queriers with expensive
+ * rewrites (many guard parts, wide inline partitions) cannot starve queriers with cheap ones.
+ * Every request is tagged with a virtual finish time start + estimated cost / weight of its querier, where start is
+ * the later of the current virtual time and the finish time of the previous request of the querier,
+ * and requests are started in the order of their finish times.
+ * At most admission_slots requests run at a time, of which at most admission_heavy_slots cost more than
+ * admission_heavy_cost. A request that waited longer than the admission_slo is shed, a heavy request that waited
+ * more than half of it is degraded to run with the remaining time of the SLO as its timeout.
+ */
+public class AdmissionController {
+
+    private static AdmissionController _instance;
+
+    private final int slots;
+
+    private final int heavySlots;
+
+    private final double heavyCost;
+
+    private final int maxQueued;
+
+    private final Duration slo;
+
+    private final Comparator<Request<?>> byFinish = Comparator.<Request<?>>comparingDouble(r -> r.finish)
+            .thenComparingLong(r -> r.sequence);
+
+    private final PriorityQueue<Request<?>> light = new PriorityQueue<>(byFinish);
+
+    private final PriorityQueue<Request<?>> heavy = new PriorityQueue<>(byFinish);
+
+    private final Map<String, Double> lastFinish = new HashMap<>();
+
+    private final Map<String, Double> weights = new HashMap<>();
+
+    private double virtualTime = 0;
+
+    private long sequence = 0;
+
+    private int running = 0;
+
+    private int runningHeavy = 0;
+
+    private long admitted = 0, rejected = 0, shed = 0, degraded = 0, waitMillis = 0;
+
+    AdmissionController(int slots, int heavySlots, double heavyCost, int maxQueued, Duration slo) {
+        this.slots = slots;
+        this.heavySlots = Math.min(heavySlots, slots);
+        this.heavyCost = heavyCost;
+        this.maxQueued = maxQueued;
+        this.slo = slo;
+    }
+
+    public static synchronized AdmissionController getInstance() {
+        if (_instance == null)
+            _instance = new AdmissionController(Math.max(1, PolicyConstants.ADMISSION_SLOTS),
+                    Math.max(1, PolicyConstants.ADMISSION_HEAVY_SLOTS), PolicyConstants.ADMISSION_HEAVY_COST,
+                    Math.max(1, PolicyConstants.ADMISSION_QUEUE), PolicyConstants.ADMISSION_SLO);
+        return _instance;
+    }
+
+    private static class Request<T> {
+
+        final String querier;
+        final double cost;
+        final double finish;
+        final long sequence;
+        final long enqueuedAt = System.currentTimeMillis();
+        final Function<Duration, CompletableFuture<T>> query;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        Duration timeout = PolicyConstants.MAX_DURATION;
+
+        Request(String querier, double cost, double finish, long sequence, Function<Duration, CompletableFuture<T>> query) {
+            this.querier = querier;
+            this.cost = cost;
+            this.finish = finish;
+            this.sequence = sequence;
+            this.query = query;
+        }
+
+        void start(AdmissionController controller) {
+            CompletableFuture<T> execution;
+            try {
+                execution = query.apply(timeout);
+            } catch (RuntimeException | Error e) {
+                execution = new CompletableFuture<>();
+                execution.completeExceptionally(e);
+            }
+            CompletableFuture<T> started = execution;
+            result.whenComplete((r, failure) -> {
+                if (result.isCancelled()) started.cancel(true);
+            });
+            started.whenComplete((r, failure) -> {
+                controller.finished(this);
+                if (failure != null) result.completeExceptionally(failure);
+                else result.complete(r);
+            });
+        }
+    }
+
+    /**
+     * Sets the share of a querier, a querier with weight 2 gets twice the DBMS time of a querier with weight 1
+     * @param querier
+     * @param weight
+     */
+    public synchronized void setWeight(String querier, double weight) {
+        if (weight <= 0) throw new PolicyEngineException("Weight of a querier must be positive");
+        weights.put(querier, weight);
+    }
+
+    /**
+     * Queues the query of the querier until it is its turn
+     * @param querier
+     * @param cost estimated cost of the query, e.g. GuardExp.estimateCost
+     * @param query starts the query with the given timeout
+     * @return future of the result, failing with PolicyEngineException if the request is rejected or shed.
+     * Cancelling it removes a queued request or cancels the started query
+     */
+    public <T> CompletableFuture<T> submit(String querier, double cost, Function<Duration, CompletableFuture<T>> query) {
+        Request<T> request;
+        synchronized (this) {
+            if (light.size() + heavy.size() >= maxQueued) {
+                rejected++;
+                CompletableFuture<T> full = new CompletableFuture<>();
+                full.completeExceptionally(new PolicyEngineException("Admission queue is full, request of "
+                        + querier + " rejected"));
+                return full;
+            }
+            double start = Math.max(virtualTime, lastFinish.getOrDefault(querier, 0.0));
+            double finish = start + Math.max(1.0, cost) / weights.getOrDefault(querier, 1.0);
+            lastFinish.put(querier, finish);
+            request = new Request<>(querier, cost, finish, sequence++, query);
+            (isHeavy(request) ? heavy : light).add(request);
+        }
+        request.result.whenComplete((r, failure) -> {
+            if (request.result.isCancelled()) {
+                synchronized (this) {
+                    light.remove(request);
+                    heavy.remove(request);
+                }
+            }
+        });
+        dispatch();
+        return request.result;
+    }
+
+    private boolean isHeavy(Request<?> request) {
+        return heavyCost > 0 && request.cost > heavyCost;
+    }
+
+    /**
+     * Starts queued requests in the order of their finish times while slots are free,
+     * skipping heavy requests while all heavy slots are in use
+     */
+    private void dispatch() {
+        List<Request<?>> starting = new ArrayList<>();
+        List<Request<?>> shedding = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            while (running < slots) {
+                Request<?> next = next();
+                if (next == null) break;
+                (next == light.peek() ? light : heavy).poll();
+                if (next.result.isDone()) continue;
+                long waited = now - next.enqueuedAt;
+                if (!slo.isZero() && waited >= slo.toMillis()) {
+                    shed++;
+                    shedding.add(next);
+                    continue;
+                }
+                if (!slo.isZero() && isHeavy(next) && waited > slo.toMillis() / 2) {
+                    degraded++;
+                    next.timeout = slo.minusMillis(waited);
+                }
+                virtualTime = Math.max(virtualTime, next.finish - Math.max(1.0, next.cost)
+                        / weights.getOrDefault(next.querier, 1.0));
+                running++;
+                if (isHeavy(next)) runningHeavy++;
+                admitted++;
+                waitMillis += waited;
+                starting.add(next);
+            }
+            if (light.isEmpty() && heavy.isEmpty() && running == 0) lastFinish.clear();
+        }
+        for (Request<?> request : shedding)
+            request.result.completeExceptionally(new PolicyEngineException("Request of " + request.querier
+                    + " shed after waiting longer than the latency SLO of " + slo));
+        for (Request<?> request : starting)
+            request.start(this);
+    }
+
+    private Request<?> next() {
+        Request<?> l = light.peek();
+        Request<?> h = runningHeavy < heavySlots ? heavy.peek() : null;
+        if (l == null) return h;
+        if (h == null) return l;
+        return byFinish.compare(l, h) <= 0 ? l : h;
+    }
+
+    private void finished(Request<?> request) {
+        synchronized (this) {
+            running--;
+            if (isHeavy(request)) runningHeavy--;
+        }
+        dispatch();
+    }
+
+    /**
+     * @return requests waiting to be admitted
+     */
+    public synchronized int getQueueDepth() {
+        return light.size() + heavy.size();
+    }
+
+    /**
+     * @return heavy requests waiting to be admitted
+     */
+    public synchronized int getHeavyQueueDepth() {
+        return heavy.size();
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getRunningHeavy() {
+        return runningHeavy;
+    }
+
+    public synchronized long getAdmitted() {
+        return admitted;
+    }
+
+    /**
+     * @return requests rejected because the queue was full
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return requests dropped after waiting longer than the SLO
+     */
+    public synchronized long getShed() {
+        return shed;
+    }
+
+    /**
+     * @return heavy requests started with a timeout shortened to the rest of the SLO
+     */
+    public synchronized long getDegraded() {
+        return degraded;
+    }
+
+    /**
+     * @return mean time admitted requests waited in the queue
+     */
+    public synchronized double getMeanWaitMillis() {
+        return admitted == 0 ? 0 : (double) waitMillis / admitted;
+    }
+}
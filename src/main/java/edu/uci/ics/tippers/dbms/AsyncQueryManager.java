@@ -0,0 +1,146 @@
+package edu.uci.ics.tippers.dbms;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.common.PolicyEngineException;
+import edu.uci.ics.tippers.generation.query.QueryExplainer;
+import edu.uci.ics.tippers.model.guard.GuardExp;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Non blocking counterpart of QueryManager for services that overlap policy retrieval, guard lookup and
+ * query execution of many queriers. Queries run on the shared QueryThreads with connections of the pool.
+ * At most async_max_in_flight requests are accepted at a time, further requests fail immediately
+ * instead of queueing without bound. Every query has a timeout that includes the time it waits for a thread,
+ * and cancelling a future cancels its statement on the DBMS.
+ */
+public class AsyncQueryManager {
+
+    private static AsyncQueryManager _instance;
+
+    private final QueryExecutor queryExecutor;
+
+    private final QueryExplainer queryExplainer;
+
+    private final Semaphore inFlight;
+
+    private final int maxInFlight;
+
+    private AsyncQueryManager(int maxInFlight) {
+        this.queryExecutor = new QueryExecutor(PolicyConstants.getDataSource(), PolicyConstants.MAX_DURATION.getSeconds());
+        this.queryExplainer = new QueryExplainer();
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    public static synchronized AsyncQueryManager getInstance() {
+        if (_instance == null) _instance = new AsyncQueryManager(Math.max(1, PolicyConstants.ASYNC_MAX_IN_FLIGHT));
+        return _instance;
+    }
+
+    /**
+     * Executes the complete query with the default timeout
+     * @param completeQuery
+     * @param resultCheck whether the ids of the rows are kept in the result
+     * @return
+     */
+    public CompletableFuture<QueryResult> executeAsync(String completeQuery, boolean resultCheck) {
+        return executeAsync(completeQuery, resultCheck, PolicyConstants.MAX_DURATION);
+    }
+
+    /**
+     * Executes the complete query
+     * @param completeQuery
+     * @param resultCheck whether the ids of the rows are kept in the result
+     * @param timeout
+     * @return future of the result, with a time taken of MAX_DURATION if the query timed out
+     */
+    public CompletableFuture<QueryResult> executeAsync(String completeQuery, boolean resultCheck, Duration timeout) {
+        return admit(() -> {
+            QueryResult queryResult = new QueryResult();
+            queryResult.setResultsCheck(resultCheck);
+            return queryExecutor.submit(completeQuery, queryResult, timeout);
+        });
+    }
+
+    /**
+     * Executes the guarded rewrite of a query once the AdmissionController admits it,
+     * queued fairly with the queries of the other queriers on the estimated cost of the guarded expression
+     * @param guardExp guarded expression of the querier the query was rewritten with
+     * @param guardedQuery
+     * @param resultCheck whether the ids of the rows are kept in the result
+     * @return future of the result, failing with PolicyEngineException if the query was rejected or shed
+     */
+    public CompletableFuture<QueryResult> executeAsync(GuardExp guardExp, String guardedQuery, boolean resultCheck) {
+        return admit(() -> AdmissionController.getInstance().submit(guardExp.getQuerier(), guardExp.estimateCost(),
+                timeout -> {
+                    QueryResult queryResult = new QueryResult();
+                    queryResult.setResultsCheck(resultCheck);
+                    return queryExecutor.submit(guardedQuery, queryResult, timeout);
+                }));
+    }
+
+    /**
+     * Counts the rows of the complete query on the DBMS with the default timeout
+     * @param completeQuery
+     * @return
+     */
+    public CompletableFuture<QueryResult> countAsync(String completeQuery) {
+        return countAsync(completeQuery, PolicyConstants.MAX_DURATION);
+    }
+
+    /**
+     * Counts the rows of the complete query on the DBMS, see CountQuery
+     * @param completeQuery
+     * @param timeout
+     * @return future of the result with the number of rows as result count
+     */
+    public CompletableFuture<QueryResult> countAsync(String completeQuery, Duration timeout) {
+        return admit(() -> {
+            QueryResult queryResult = new QueryResult();
+            queryResult.setCounting(true);
+            return queryExecutor.submit(CountQuery.wrap(completeQuery), queryResult, timeout);
+        });
+    }
+
+    /**
+     * Plan of the complete query as printed by QueryExplainer.
+     * The plan is returned as text since it is not a query result.
+     * @param completeQuery
+     * @return
+     */
+    public CompletableFuture<String> explainAsync(String completeQuery) {
+        return admit(() -> CompletableFuture.supplyAsync(() -> queryExplainer.printExplain(completeQuery),
+                QueryThreads.getInstance()));
+    }
+
+    /**
+     * Starts the request if fewer than maxInFlight requests are running and releases its slot once it completes
+     */
+    private <T> CompletableFuture<T> admit(Supplier<CompletableFuture<T>> request) {
+        if (!inFlight.tryAcquire()) {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new PolicyEngineException("Too many queries in flight, limit is " + maxInFlight));
+            return rejected;
+        }
+        CompletableFuture<T> future;
+        try {
+            future = request.get();
+        } catch (RuntimeException | Error e) {
+            inFlight.release();
+            throw e;
+        }
+        future.whenComplete((result, failure) -> inFlight.release());
+        return future;
+    }
+
+    /**
+     * @return number of requests currently in flight
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+}
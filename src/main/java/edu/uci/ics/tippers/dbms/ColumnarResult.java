@@ -0,0 +1,303 @@
+package edu.uci.ics.tippers.dbms;
+
+import edu.uci.ics.tippers.common.PolicyEngineException;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rows of a query result stored by column in batches of primitive arrays instead of an object per row.
+ * Only the projected columns are read from the result set, and their values are only copied as text into
+ * a byte arena per batch while the rows are read. A column is decoded into its typed batches the first time
+ * it is accessed: integer, date (epoch day), time (second of day) and timestamp (epoch millisecond) columns
+ * into longs, decimal columns into doubles and string columns into codes into a dictionary of their distinct values.
+ * Columns that are never accessed are never decoded.
+ */
+public class ColumnarResult {
+
+    public static final int BATCH_SIZE = 4096;
+
+    private final Map<String, Column> columns = new HashMap<>();
+
+    private final List<Column> projected = new ArrayList<>();
+
+    private int rows;
+
+    /**
+     * @param metaData of the result set the rows are read from
+     * @param projection names of the columns to keep, all columns if empty
+     * @throws SQLException
+     */
+    public ColumnarResult(ResultSetMetaData metaData, String... projection) throws SQLException {
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            String name = metaData.getColumnLabel(i).toLowerCase();
+            if (projection.length > 0 && !contains(projection, name)) continue;
+            if (columns.containsKey(name)) continue;
+            Column column = new Column(i, metaData.getColumnType(i));
+            columns.put(name, column);
+            projected.add(column);
+        }
+        for (String name : projection)
+            if (!columns.containsKey(name.toLowerCase()))
+                throw new PolicyEngineException("Column " + name + " is not in the result");
+    }
+
+    private static boolean contains(String[] projection, String name) {
+        for (String p : projection)
+            if (p.equalsIgnoreCase(name)) return true;
+        return false;
+    }
+
+    /**
+     * Appends the current row of the result set
+     * @param row
+     * @throws SQLException
+     */
+    public void append(ResultSet row) throws SQLException {
+        for (Column column : projected) column.read(row, rows);
+        rows++;
+    }
+
+    public int size() {
+        return rows;
+    }
+
+    private Column column(String name) {
+        Column column = columns.get(name.toLowerCase());
+        if (column == null) throw new PolicyEngineException("Column " + name + " was not projected");
+        column.decode(rows);
+        return column;
+    }
+
+    /**
+     * @return whether the column was decoded, i.e. accessed since the rows were read
+     */
+    public boolean isDecoded(String name) {
+        Column column = columns.get(name.toLowerCase());
+        return column != null && column.raw == null;
+    }
+
+    public boolean isNull(String name, int row) {
+        return column(name).nulls.get(row);
+    }
+
+    /**
+     * @return value of an integer, date (epoch day), time (second of day) or timestamp (epoch millisecond) column
+     */
+    public long getLong(String name, int row) {
+        Column column = column(name);
+        if (column.kind == Column.LONG) return column.longs.get(row / BATCH_SIZE)[row % BATCH_SIZE];
+        if (column.kind == Column.DOUBLE) return (long) column.doubles.get(row / BATCH_SIZE)[row % BATCH_SIZE];
+        throw new PolicyEngineException("Column " + name + " is not numeric");
+    }
+
+    public double getDouble(String name, int row) {
+        Column column = column(name);
+        if (column.kind == Column.DOUBLE) return column.doubles.get(row / BATCH_SIZE)[row % BATCH_SIZE];
+        if (column.kind == Column.LONG) return column.longs.get(row / BATCH_SIZE)[row % BATCH_SIZE];
+        throw new PolicyEngineException("Column " + name + " is not numeric");
+    }
+
+    /**
+     * @return value of a string column, decoded from its dictionary
+     */
+    public String getString(String name, int row) {
+        Column column = column(name);
+        if (column.kind != Column.STRING) throw new PolicyEngineException("Column " + name + " is not a string column");
+        int code = column.codes.get(row / BATCH_SIZE)[row % BATCH_SIZE];
+        return code < 0 ? null : column.dictionary.get(code);
+    }
+
+    /**
+     * Distinct values of the id column, for comparing results (QueryResult.checkResults)
+     * @param duplicates receives the number of extra occurrences of every id that occurs more than once
+     * @return
+     */
+    public LongHashSet ids(Map<Long, Integer> duplicates) {
+        Column column = column("id");
+        if (column.kind != Column.LONG) throw new PolicyEngineException("Column id is not an integer column");
+        LongHashSet ids = new LongHashSet(Math.max(16, rows), false);
+        for (int row = 0; row < rows; row++) {
+            if (column.nulls.get(row)) continue;
+            long id = column.longs.get(row / BATCH_SIZE)[row % BATCH_SIZE];
+            if (!ids.add(id)) duplicates.merge(id, 1, Integer::sum);
+        }
+        return ids;
+    }
+
+    /**
+     * Text of the values of a batch, the value of row r ends at ends[r] and starts at the end of row r - 1
+     */
+    private static class RawBatch {
+
+        byte[] data = new byte[BATCH_SIZE * 8];
+
+        int size;
+
+        final int[] ends = new int[BATCH_SIZE];
+
+        void append(String value) {
+            int length = value.length();
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80) {
+                    size -= i;
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    ensure(bytes.length);
+                    System.arraycopy(bytes, 0, data, size, bytes.length);
+                    size += bytes.length;
+                    return;
+                }
+                data[size++] = (byte) c;
+            }
+        }
+
+        private void ensure(int bytes) {
+            if (size + bytes > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, size + bytes));
+        }
+
+        int start(int position) {
+            return position == 0 ? 0 : ends[position - 1];
+        }
+
+        String text(int position) {
+            int start = start(position);
+            return new String(data, start, ends[position] - start, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Parses an integer without creating a string, booleans as 1 and 0
+         */
+        long parseLong(int position) {
+            int start = start(position), end = ends[position];
+            if (start < end && (data[start] == 't' || data[start] == 'f')) return data[start] == 't' ? 1 : 0;
+            boolean negative = start < end && data[start] == '-';
+            long value = 0;
+            for (int i = negative ? start + 1 : start; i < end; i++) {
+                byte b = data[i];
+                if (b < '0' || b > '9') return Long.parseLong(text(position).trim());
+                value = value * 10 + (b - '0');
+            }
+            return negative ? -value : value;
+        }
+    }
+
+    private static class Column {
+
+        static final int LONG = 0, DOUBLE = 1, STRING = 2;
+
+        final int index;
+
+        final int sqlType;
+
+        final int kind;
+
+        final BitSet nulls = new BitSet();
+
+        /** text of the values until the column is decoded, null afterwards */
+        List<RawBatch> raw = new ArrayList<>();
+
+        List<long[]> longs;
+
+        List<double[]> doubles;
+
+        List<int[]> codes;
+
+        List<String> dictionary;
+
+        Column(int index, int sqlType) {
+            this.index = index;
+            this.sqlType = sqlType;
+            this.kind = kind(sqlType);
+        }
+
+        private static int kind(int sqlType) {
+            switch (sqlType) {
+                case Types.BIGINT: case Types.INTEGER: case Types.SMALLINT: case Types.TINYINT:
+                case Types.BIT: case Types.BOOLEAN: case Types.DATE: case Types.TIME: case Types.TIMESTAMP:
+                    return LONG;
+                case Types.REAL: case Types.FLOAT: case Types.DOUBLE: case Types.DECIMAL: case Types.NUMERIC:
+                    return DOUBLE;
+                default:
+                    return STRING;
+            }
+        }
+
+        void read(ResultSet row, int position) throws SQLException {
+            if (position % BATCH_SIZE == 0) raw.add(new RawBatch());
+            RawBatch batch = raw.get(position / BATCH_SIZE);
+            String value = row.getString(index);
+            if (value == null) nulls.set(position);
+            else batch.append(value);
+            batch.ends[position % BATCH_SIZE] = batch.size;
+        }
+
+        /**
+         * Decodes the text of the values into typed batches and releases the text
+         * @param rows number of rows read
+         */
+        synchronized void decode(int rows) {
+            if (raw == null) return;
+            if (kind == LONG) longs = new ArrayList<>();
+            else if (kind == DOUBLE) doubles = new ArrayList<>();
+            else {
+                codes = new ArrayList<>();
+                dictionary = new ArrayList<>();
+            }
+            Map<String, Integer> known = kind == STRING ? new HashMap<>() : null;
+            for (int b = 0; b < raw.size(); b++) {
+                RawBatch batch = raw.get(b);
+                int size = Math.min(BATCH_SIZE, rows - b * BATCH_SIZE);
+                long[] longBatch = kind == LONG ? new long[BATCH_SIZE] : null;
+                double[] doubleBatch = kind == DOUBLE ? new double[BATCH_SIZE] : null;
+                int[] codeBatch = kind == STRING ? new int[BATCH_SIZE] : null;
+                for (int r = 0; r < size; r++) {
+                    boolean isNull = nulls.get(b * BATCH_SIZE + r);
+                    if (kind == LONG) longBatch[r] = isNull ? 0 : decodeLong(batch, r);
+                    else if (kind == DOUBLE) doubleBatch[r] = isNull ? 0 : Double.parseDouble(batch.text(r).trim());
+                    else if (isNull) codeBatch[r] = -1;
+                    else {
+                        String value = batch.text(r);
+                        Integer code = known.get(value);
+                        if (code == null) {
+                            code = dictionary.size();
+                            known.put(value, code);
+                            dictionary.add(value);
+                        }
+                        codeBatch[r] = code;
+                    }
+                }
+                if (kind == LONG) longs.add(longBatch);
+                else if (kind == DOUBLE) doubles.add(doubleBatch);
+                else codes.add(codeBatch);
+            }
+            raw = null;
+        }
+
+        private long decodeLong(RawBatch batch, int position) {
+            switch (sqlType) {
+                case Types.DATE:
+                    return LocalDate.parse(batch.text(position).trim()).toEpochDay();
+                case Types.TIME:
+                    return LocalTime.parse(batch.text(position).trim()).toSecondOfDay();
+                case Types.TIMESTAMP:
+                    return Timestamp.valueOf(batch.text(position).trim()).getTime();
+                default:
+                    return batch.parseLong(position);
+            }
+        }
+    }
+}
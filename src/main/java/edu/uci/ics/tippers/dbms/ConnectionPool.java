@@ -0,0 +1,454 @@
+package edu.uci.ics.tippers.dbms;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Pool of connections to the DBMS shared by all threads of the engine, replacing the single static connection
+ * of the connection managers for the query path (QueryManager, persistors, QueryExplainer).
+ *
+ * Connections are handed out as proxies: close() returns the connection to the pool instead of closing it.
+ * A thread that already holds a connection gets the same connection back, so nested calls
+ * (e.g. a persistor checking a selectivity while reading guards) never wait on the pool.
+ * Idle connections are validated before they are handed out again if they were idle longer than
+ * pool_validation_interval, and every connection keeps a cache of its prepared statements keyed on the SQL text
+ * (pool_statement_cache); closing a cached statement only clears its parameters.
+ * Connections held longer than pool_leak_threshold are reported once with the stack trace of the borrower.
+ */
+public class ConnectionPool implements DataSource {
+
+    private static ConnectionPool _instance;
+
+    private final Supplier<Connection> factory;
+
+    private final int maxSize;
+
+    private final long borrowTimeout;
+
+    private final long validationInterval;
+
+    private final long leakThreshold;
+
+    private final int statementCacheSize;
+
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+
+    private final Set<PooledConnection> leased = ConcurrentHashMap.newKeySet();
+
+    private final ThreadLocal<PooledConnection> held = new ThreadLocal<>();
+
+    private final ScheduledExecutorService leakDetector;
+
+    private final AtomicLong borrowed = new AtomicLong();
+
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    private int opened = 0;
+
+    private PrintWriter logWriter;
+
+    /**
+     * @param factory opens a new physical connection
+     * @param maxSize maximum number of open connections
+     * @param borrowTimeout milliseconds to wait for a connection before failing
+     * @param validationInterval milliseconds a connection can be idle before it is validated again
+     * @param leakThreshold milliseconds a connection can be held before it is reported, 0 disables the detection
+     * @param statementCacheSize prepared statements cached per connection, 0 disables the cache
+     */
+    public ConnectionPool(Supplier<Connection> factory, int maxSize, long borrowTimeout, long validationInterval,
+                          long leakThreshold, int statementCacheSize) {
+        this.factory = factory;
+        this.maxSize = Math.max(1, maxSize);
+        this.borrowTimeout = borrowTimeout;
+        this.validationInterval = validationInterval;
+        this.leakThreshold = leakThreshold;
+        this.statementCacheSize = statementCacheSize;
+        if (leakThreshold > 0) {
+            this.leakDetector = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "connection-leak-detector");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1, leakThreshold / 2);
+            this.leakDetector.scheduleAtFixedRate(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+        } else this.leakDetector = null;
+    }
+
+    public static synchronized ConnectionPool getInstance() {
+        if (_instance == null)
+            _instance = new ConnectionPool(PolicyConstants::newDBMSConnection, PolicyConstants.POOL_SIZE,
+                    PolicyConstants.POOL_BORROW_TIMEOUT.toMillis(), PolicyConstants.POOL_VALIDATION_INTERVAL.toMillis(),
+                    PolicyConstants.POOL_LEAK_THRESHOLD.toMillis(), PolicyConstants.POOL_STATEMENT_CACHE);
+        return _instance;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        PooledConnection current = held.get();
+        //the thread local is stale if the connection was returned from another thread
+        if (current != null && current.owner == Thread.currentThread()) {
+            current.depth++;
+            return current.proxy;
+        }
+        long start = System.nanoTime();
+        PooledConnection pc = acquire();
+        waitNanos.addAndGet(System.nanoTime() - start);
+        borrowed.incrementAndGet();
+        pc.depth = 1;
+        pc.owner = Thread.currentThread();
+        pc.borrowedAt = System.currentTimeMillis();
+        pc.borrowTrace = leakThreshold > 0 ? new Throwable("Connection borrowed by " + pc.owner.getName()) : null;
+        pc.reported = false;
+        leased.add(pc);
+        held.set(pc);
+        return pc.proxy;
+    }
+
+    private PooledConnection acquire() throws SQLException {
+        long deadline = System.currentTimeMillis() + borrowTimeout;
+        while (true) {
+            PooledConnection pc = null;
+            boolean open = false;
+            synchronized (this) {
+                while (idle.isEmpty() && opened >= maxSize) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        throw new SQLException("Timed out waiting for a connection, " + opened + " connections in use");
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a connection");
+                    }
+                }
+                if (!idle.isEmpty()) pc = idle.pollFirst();
+                else {
+                    opened++;
+                    open = true;
+                }
+            }
+            if (open) {
+                try {
+                    return new PooledConnection(factory.get());
+                } catch (RuntimeException e) {
+                    discard(null);
+                    throw new SQLException("Failed to open a connection", e);
+                }
+            }
+            if (System.currentTimeMillis() - pc.releasedAt < validationInterval || isValid(pc)) return pc;
+            System.out.println("Discarding a broken pooled connection");
+            discard(pc);
+        }
+    }
+
+    private boolean isValid(PooledConnection pc) {
+        try {
+            return pc.physical.isValid(5);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the connection to the pool once the outermost borrower closes it
+     */
+    private void release(PooledConnection pc) throws SQLException {
+        if (--pc.depth > 0) return;
+        if (pc.owner == Thread.currentThread()) held.remove();
+        leased.remove(pc);
+        pc.owner = null;
+        pc.borrowTrace = null;
+        pc.reclaimStatements();
+        try {
+            if (!pc.physical.getAutoCommit()) {
+                pc.physical.rollback();
+                pc.physical.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            discard(pc);
+            return;
+        }
+        pc.releasedAt = System.currentTimeMillis();
+        synchronized (this) {
+            idle.addFirst(pc);
+            notifyAll();
+        }
+    }
+
+    private void discard(PooledConnection pc) {
+        if (pc != null) pc.closeQuietly();
+        synchronized (this) {
+            opened--;
+            notifyAll();
+        }
+    }
+
+    private void detectLeaks() {
+        long now = System.currentTimeMillis();
+        for (PooledConnection pc : leased) {
+            Throwable trace = pc.borrowTrace;
+            if (pc.reported || trace == null || now - pc.borrowedAt < leakThreshold) continue;
+            pc.reported = true;
+            System.out.println("Possible connection leak: connection held for " + (now - pc.borrowedAt) + " ms");
+            trace.printStackTrace(System.out);
+        }
+    }
+
+    /**
+     * Closes the idle connections, leased connections are closed when they are returned
+     */
+    public synchronized void close() {
+        while (!idle.isEmpty()) discard(idle.pollFirst());
+    }
+
+    public synchronized int getOpened() {
+        return opened;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return number of connections handed out, not counting nested borrows by the same thread
+     */
+    public long getBorrowed() {
+        return borrowed.get();
+    }
+
+    /**
+     * @return total milliseconds threads waited for a connection
+     */
+    public long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Pooled connections use the configured credentials");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return logWriter;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+        this.logWriter = out;
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) return iface.cast(this);
+        throw new SQLException("Not a wrapper for " + iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Physical connection with its statement cache and the state of its current lease
+     */
+    private class PooledConnection implements InvocationHandler {
+
+        final Connection physical;
+
+        final Connection proxy;
+
+        final Map<String, CachedStatement> statements;
+
+        volatile Thread owner;
+
+        volatile long borrowedAt;
+
+        volatile Throwable borrowTrace;
+
+        volatile boolean reported;
+
+        int depth;
+
+        long releasedAt;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, this);
+            this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                    if (size() <= statementCacheSize) return false;
+                    if (!eldest.getValue().inUse()) eldest.getValue().closeQuietly();
+                    else eldest.getValue().evicted = true;
+                    return true;
+                }
+            };
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) return ConnectionPool.invoke(this, method, args);
+            switch (method.getName()) {
+                case "close":
+                    if (owner != null) release(this);
+                    return null;
+                case "isClosed":
+                    return owner == null || physical.isClosed();
+                case "prepareStatement":
+                    if (statementCacheSize > 0 && args.length == 1) return prepare((String) args[0]);
+                    break;
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(physical)) return physical;
+                    break;
+                default:
+                    break;
+            }
+            if (owner == null) throw new SQLException("Connection was returned to the pool");
+            return ConnectionPool.invoke(physical, method, args);
+        }
+
+        private PreparedStatement prepare(String sql) throws SQLException {
+            CachedStatement cached = statements.get(sql);
+            if (cached != null && !cached.inUse()) return cached.checkout();
+            PreparedStatement statement = physical.prepareStatement(sql);
+            //a statement that is still open for the same text is not shared, the new one is not cached
+            if (cached != null) return statement;
+            cached = new CachedStatement(statement);
+            statements.put(sql, cached);
+            return cached.checkout();
+        }
+
+        /**
+         * Makes the statements the borrower did not close available again
+         */
+        void reclaimStatements() {
+            for (Iterator<CachedStatement> it = statements.values().iterator(); it.hasNext(); ) {
+                CachedStatement cached = it.next();
+                if (!cached.inUse()) continue;
+                cached.checkin();
+                if (cached.evicted) it.remove();
+            }
+        }
+
+        void closeQuietly() {
+            for (Iterator<CachedStatement> it = statements.values().iterator(); it.hasNext(); ) {
+                it.next().closeQuietly();
+                it.remove();
+            }
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Prepared statement kept open by the connection cache
+     * Every checkout hands out a new handle, closing the handle makes the statement available again;
+     * handles that are closed late, after the statement was reclaimed with its connection, have no effect.
+     */
+    private static class CachedStatement {
+
+        final PreparedStatement physical;
+
+        Object handle;
+
+        boolean evicted;
+
+        CachedStatement(PreparedStatement physical) {
+            this.physical = physical;
+        }
+
+        boolean inUse() {
+            return handle != null;
+        }
+
+        PreparedStatement checkout() {
+            Object token = new Object();
+            handle = token;
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                        if (method.getDeclaringClass() == Object.class) return ConnectionPool.invoke(token, method, args);
+                        if (method.getName().equals("close")) {
+                            if (handle == token) checkin();
+                            return null;
+                        }
+                        if (method.getName().equals("isClosed")) return handle != token || physical.isClosed();
+                        if (handle != token) throw new SQLException("Statement is closed");
+                        return ConnectionPool.invoke(physical, method, args);
+                    });
+        }
+
+        void checkin() {
+            handle = null;
+            if (evicted) {
+                closeQuietly();
+                return;
+            }
+            try {
+                physical.clearParameters();
+                physical.clearBatch();
+            } catch (SQLException e) {
+                evicted = true;
+                closeQuietly();
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package edu.uci.ics.tippers.dbms;
+
+import java.util.List;
+
+/**
+ * Statements that return the number of rows of a query in a single row with a single column named total,
+ * so that only the count is sent to the client.
+ */
+public final class CountQuery {
+
+    public static final String COLUMN = "total";
+
+    private CountQuery() {
+    }
+
+    /**
+     * Wraps a complete statement, including UNION and CTE rewrites, in SELECT COUNT(*).
+     * A leading hint comment (pg_hint_plan) and the WITH clause stay at the head of the statement
+     * and a trailing hint comment (DB2 guidelines) or line comment at its end, a trailing semicolon is dropped.
+     * @param query
+     * @return
+     */
+    public static String wrap(String query) {
+        String body = query.trim();
+        String head = "";
+        if (body.startsWith("/*+")) {
+            int end = body.indexOf("*/") + 2;
+            head = body.substring(0, end) + " ";
+            body = body.substring(end).trim();
+        }
+        String tail = "";
+        int comment = lineComment(body);
+        if (comment >= 0) {
+            tail = "\n" + body.substring(comment);
+            body = body.substring(0, comment).trim();
+        }
+        if (body.endsWith(";")) body = body.substring(0, body.length() - 1).trim();
+        if (body.endsWith("*/")) {
+            int start = body.lastIndexOf("/*");
+            tail = " " + body.substring(start) + tail;
+            body = body.substring(0, start).trim();
+        }
+        int select = body.regionMatches(true, 0, "WITH", 0, 4) ? mainSelect(body) : 0;
+        return head + body.substring(0, select) + "Select count(*) as " + COLUMN + " from ("
+                + body.substring(select) + ") counted" + tail;
+    }
+
+    /**
+     * Adds up the counts of branches that do not share any row, e.g. the branches of a UNION ALL
+     * @param branches statements returning their count in the column total
+     * @return
+     */
+    public static String sum(List<String> branches) {
+        if (branches.size() == 1) return branches.get(0);
+        return "Select SUM(" + COLUMN + ") as " + COLUMN + " from (" + String.join(" UNION ALL ", branches)
+                + ") counts";
+    }
+
+    /**
+     * Position of a -- comment on the last line, outside of literals and block comments
+     * @return -1 if the last line has none
+     */
+    private static int lineComment(String query) {
+        int start = query.lastIndexOf('\n') + 1;
+        //the line can end a block comment opened on an earlier line
+        int open = query.indexOf("/*", start), close = query.indexOf("*/", start);
+        if (close >= 0 && (open < 0 || close < open)) start = close + 2;
+        boolean quoted = false;
+        for (int i = start; i < query.length() - 1; i++) {
+            char c = query.charAt(i);
+            if (c == '\'') quoted = !quoted;
+            if (quoted) continue;
+            if (c == '/' && query.charAt(i + 1) == '*') {
+                int end = query.indexOf("*/", i + 2);
+                if (end < 0) return -1;
+                i = end + 1;
+            } else if (c == '-' && query.charAt(i + 1) == '-') return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Position of the SELECT following the WITH clause, i.e. the first one outside of parentheses
+     */
+    private static int mainSelect(String query) {
+        int depth = 0;
+        boolean quoted = false;
+        for (int i = 4; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c == '\'') quoted = !quoted;
+            if (quoted) continue;
+            if (c == '(') depth++;
+            else if (c == ')') depth--;
+            else if (depth == 0 && query.regionMatches(true, i, "SELECT", 0, 6)
+                    && !Character.isLetterOrDigit(query.charAt(i - 1)))
+                return i;
+        }
+        return 0;
+    }
+}
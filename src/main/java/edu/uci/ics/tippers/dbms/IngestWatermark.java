@@ -0,0 +1,152 @@
+package edu.uci.ics.tippers.dbms;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * Tracks the rows ingested into the base table
+ * Data loaders report every batch they write, components that depend on the contents of the table
+ * (histograms, materialized guards, cached results) register as listeners.
+ * The base table is append only with increasing row ids, so MAX(id) marks how far ingestion has progressed.
+ * The start_date range of the most recent batches is kept so that results over other dates can stay valid.
+ */
+public class IngestWatermark {
+
+    private static IngestWatermark _instance = new IngestWatermark();
+
+    private final List<LongConsumer> listeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong ingestedRows = new AtomicLong();
+
+    private static final int MAX_BATCHES = 4096;
+
+    /** most recent batches, oldest first */
+    private final ArrayDeque<Batch> batches = new ArrayDeque<>();
+
+    private volatile long lastIngestAt = 0;
+
+    private volatile double ingestRate = 0.0;
+
+    private IngestWatermark() {
+    }
+
+    public static IngestWatermark getInstance() {
+        return _instance;
+    }
+
+    public void addListener(LongConsumer listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Called by the data loaders after a batch has been written to the base table
+     * @param rows number of rows in the batch
+     */
+    public void rowsIngested(long rows) {
+        rowsIngested(rows, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Called by the data loaders after a batch has been written to the base table
+     * @param rows number of rows in the batch
+     * @param firstDay earliest start_date in the batch as epoch day
+     * @param lastDay latest start_date in the batch as epoch day
+     */
+    public void rowsIngested(long rows, long firstDay, long lastDay) {
+        if (rows <= 0) return;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            long ingested = ingestedRows.addAndGet(rows);
+            batches.addLast(new Batch(ingested - rows, ingested, firstDay, lastDay));
+            if (batches.size() > MAX_BATCHES) batches.removeFirst();
+            if (lastIngestAt > 0 && now > lastIngestAt) {
+                double batchRate = rows * 1000.0 / (now - lastIngestAt);
+                ingestRate = ingestRate == 0.0 ? batchRate : 0.8 * ingestRate + 0.2 * batchRate;
+            }
+            lastIngestAt = now;
+        }
+        for (LongConsumer listener : listeners)
+            listener.accept(rows);
+    }
+
+    /**
+     * Whether rows ingested after a point can have a start_date within the given days
+     * @param since ingested rows (getIngestedRows) at that point
+     * @param firstDay
+     * @param lastDay
+     * @return true also if the batches ingested since are no longer remembered
+     */
+    public synchronized boolean ingestedWithin(long since, long firstDay, long lastDay) {
+        Iterator<Batch> newestFirst = batches.descendingIterator();
+        while (newestFirst.hasNext()) {
+            Batch batch = newestFirst.next();
+            if (batch.end <= since) return false;
+            if (batch.firstDay <= lastDay && batch.lastDay >= firstDay) return true;
+            if (batch.start <= since) return false;
+        }
+        return ingestedRows.get() > since;
+    }
+
+    /**
+     * @return number of rows ingested since start up, increases with every batch
+     */
+    public long getIngestedRows() {
+        return ingestedRows.get();
+    }
+
+    /**
+     * @return smoothed ingestion rate in rows per second, 0 if nothing has been ingested
+     */
+    public double getIngestRate() {
+        return ingestRate;
+    }
+
+    /**
+     * Highest row id currently in the base table
+     * @return
+     */
+    public long maxRowId() {
+        try (Connection connection = PolicyConstants.getDataSource().getConnection();
+             PreparedStatement ps = connection.prepareStatement(
+                "SELECT MAX(id) FROM " + PolicyConstants.TABLE_NAME)) {
+            ResultSet rs = ps.executeQuery();
+            long max = rs.next() ? rs.getLong(1) : 0;
+            rs.close();
+            return max;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    /**
+     * Ingested rows before and after a batch and the range of its start_date values
+     */
+    private static class Batch {
+
+        private final long start;
+
+        private final long end;
+
+        private final long firstDay;
+
+        private final long lastDay;
+
+        private Batch(long start, long end, long firstDay, long lastDay) {
+            this.start = start;
+            this.end = end;
+            this.firstDay = firstDay;
+            this.lastDay = lastDay;
+        }
+    }
+}
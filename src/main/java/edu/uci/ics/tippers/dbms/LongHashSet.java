@@ -0,0 +1,253 @@
+package edu.uci.ics.tippers.dbms;
+
+import edu.uci.ics.tippers.common.PolicyEngineException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.function.LongConsumer;
+
+/**
+ * Set of primitive long keys with open addressing and linear probing, used to remove duplicate ids
+ * when the rows of several guards are merged in the middleware.
+ * Tables larger than OFF_HEAP_SLOTS are allocated outside of the heap so that large merges
+ * neither box every id nor put pressure on the garbage collector.
+ * Off heap tables are released as soon as the set grows or is closed, not when the buffer is collected.
+ * An optional Bloom filter in front of the table answers most first time inserts without probing.
+ * Not thread safe, concurrent writers have to synchronize on the set.
+ */
+public class LongHashSet implements AutoCloseable {
+
+    /** slots above which the table is allocated off heap (8 MB) */
+    public static final int OFF_HEAP_SLOTS = 1 << 20;
+
+    /** largest table, 1 GB off heap (~80 million keys), a direct buffer holds at most Integer.MAX_VALUE bytes */
+    private static final int MAX_SLOTS = 1 << 27;
+
+    private static final double LOAD_FACTOR = 0.6;
+
+    private static final long EMPTY = 0L;
+
+    private LongBuffer table;
+
+    /** buffer backing an off heap table */
+    private ByteBuffer direct;
+
+    private int mask;
+
+    private int size;
+
+    private int resizeAt;
+
+    private boolean hasEmptyKey;
+
+    private BloomFilter bloom;
+
+    public LongHashSet() {
+        this(1024, false);
+    }
+
+    /**
+     * @param expectedSize number of keys expected, the table grows beyond it if needed
+     * @param withBloomFilter whether inserts and lookups go through a Bloom filter first
+     */
+    public LongHashSet(int expectedSize, boolean withBloomFilter) {
+        allocate(slotsFor(expectedSize));
+        if (withBloomFilter)
+            bloom = new BloomFilter(Math.max(expectedSize, 1024));
+    }
+
+    private static int slotsFor(long keys) {
+        long slots = Long.highestOneBit(Math.max(16, (long) Math.ceil(keys / LOAD_FACTOR)) - 1) << 1;
+        if (slots > MAX_SLOTS)
+            throw new PolicyEngineException("Too many keys for LongHashSet: " + keys);
+        return (int) slots;
+    }
+
+    private void allocate(int slots) {
+        long bytes = (long) slots * Long.BYTES;
+        if (slots > OFF_HEAP_SLOTS) {
+            direct = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+            table = direct.asLongBuffer();
+        } else {
+            direct = null;
+            table = LongBuffer.allocate(slots);
+        }
+        mask = slots - 1;
+        resizeAt = (int) (slots * LOAD_FACTOR);
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * @param key
+     * @return true if the key was not in the set
+     */
+    public boolean add(long key) {
+        if (key == EMPTY) {
+            if (hasEmptyKey) return false;
+            hasEmptyKey = true;
+            size++;
+            return true;
+        }
+        long hash = mix(key);
+        boolean known = bloom == null || bloom.mightContain(hash);
+        int slot = (int) hash & mask;
+        long current;
+        while ((current = table.get(slot)) != EMPTY) {
+            //keys the Bloom filter has never seen cannot be in the table, only the free slot is needed
+            if (known && current == key) return false;
+            slot = (slot + 1) & mask;
+        }
+        table.put(slot, key);
+        if (bloom != null) bloom.put(hash);
+        if (++size > resizeAt) grow();
+        return true;
+    }
+
+    /**
+     * Adds the first n keys of the batch
+     * @param keys
+     * @param n
+     * @return number of keys that were not in the set
+     */
+    public int addAll(long[] keys, int n) {
+        int added = 0;
+        for (int i = 0; i < n; i++)
+            if (add(keys[i])) added++;
+        return added;
+    }
+
+    public boolean contains(long key) {
+        if (key == EMPTY) return hasEmptyKey;
+        long hash = mix(key);
+        if (bloom != null && !bloom.mightContain(hash)) return false;
+        int slot = (int) hash & mask;
+        long current;
+        while ((current = table.get(slot)) != EMPTY) {
+            if (current == key) return true;
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    private void grow() {
+        LongBuffer old = table;
+        ByteBuffer oldDirect = direct;
+        int oldSlots = mask + 1;
+        if (oldSlots >= MAX_SLOTS)
+            throw new PolicyEngineException("Too many keys for LongHashSet: " + size);
+        allocate(oldSlots << 1);
+        for (int i = 0; i < oldSlots; i++) {
+            long key = old.get(i);
+            if (key == EMPTY) continue;
+            int slot = (int) mix(key) & mask;
+            while (table.get(slot) != EMPTY) slot = (slot + 1) & mask;
+            table.put(slot, key);
+        }
+        release(oldDirect);
+        if (bloom != null && size > bloom.expected) {
+            bloom = new BloomFilter(size * 2);
+            forEach(key -> { if (key != EMPTY) bloom.put(mix(key)); });
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isOffHeap() {
+        return table.isDirect();
+    }
+
+    public void forEach(LongConsumer consumer) {
+        if (hasEmptyKey) consumer.accept(EMPTY);
+        for (int i = 0; i <= mask; i++) {
+            long key = table.get(i);
+            if (key != EMPTY) consumer.accept(key);
+        }
+    }
+
+    /**
+     * Releases the table, the off heap memory is freed right away
+     */
+    @Override
+    public void close() {
+        release(direct);
+        direct = null;
+        table = LongBuffer.allocate(16);
+        mask = 15;
+        resizeAt = (int) (16 * LOAD_FACTOR);
+        size = 0;
+        hasEmptyKey = false;
+        if (bloom != null) bloom = new BloomFilter(1024);
+    }
+
+    /**
+     * Frees the memory of a direct buffer with its cleaner (Unsafe.invokeCleaner on Java 9+, DirectBuffer.cleaner
+     * on Java 8); if neither is accessible the memory is only freed when the buffer is collected.
+     * The buffer must not be used afterwards.
+     */
+    private static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) return;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            java.lang.reflect.Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            //Java 8 has no invokeCleaner
+        }
+        try {
+            java.lang.reflect.Method cleaner = buffer.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object c = cleaner.invoke(buffer);
+            if (c != null) c.getClass().getMethod("clean").invoke(c);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            //left to the garbage collector
+        }
+    }
+
+    /**
+     * Bloom filter with 10 bits per expected key and 3 hash functions derived from the mixed key (~1.7% false positives)
+     */
+    private static class BloomFilter {
+
+        private final long[] bits;
+
+        private final long numBits;
+
+        private final int expected;
+
+        private BloomFilter(int expected) {
+            this.expected = expected;
+            this.numBits = Math.max(64, (long) expected * 10);
+            this.bits = new long[(int) ((numBits + 63) >>> 6)];
+        }
+
+        private void put(long hash) {
+            int h1 = (int) hash, h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= 3; i++) {
+                long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        private boolean mightContain(long hash) {
+            int h1 = (int) hash, h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= 3; i++) {
+                long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+    }
+}
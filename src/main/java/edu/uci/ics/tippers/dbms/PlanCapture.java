@@ -0,0 +1,274 @@
+package edu.uci.ics.tippers.dbms;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.uci.ics.tippers.common.PolicyConstants;
+import org.apache.commons.dbutils.DbUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Captures the plan of every executed query with EXPLAIN in JSON format (plan_capture = true) and appends
+ * a PlanRecord per execution to the plan store (plan_store, one JSON line per execution).
+ * Executions of the same query, identified by its text without literals, are compared with the earlier ones
+ * read from the store: a different plan fingerprint is flagged as a plan change, a plan using none of the indexes
+ * requested by the guard hints as an ignored hint and a latency above plan_regression_factor times the mean
+ * latency as a regression.
+ * With plan_capture_analyze = true PostgreSQL runs EXPLAIN ANALYZE, executing the query a second time,
+ * so that the actual rows and latency are taken from the plan.
+ */
+public class PlanCapture {
+
+    private static PlanCapture _instance;
+
+    /** fields of PostgreSQL and MySQL plans that make up the shape of the plan */
+    private static final Set<String> STRUCTURE = new HashSet<>(Arrays.asList("Node Type", "Relation Name",
+            "Index Name", "Join Type", "Strategy", "Parent Relationship", "Command", "table_name", "access_type",
+            "key", "select_id", "using_temporary_table", "using_filesort", "materialized_from_subquery"));
+
+    private static final Pattern[] HINTS = {
+            Pattern.compile("(?i)force index\\s*\\(([^)]+)\\)"),
+            Pattern.compile("(?i)(?:Bitmap|Index)Scan\\(\\s*\\S+\\s+([^)]+)\\)"),
+            Pattern.compile("INDEX=\"([^\"]+)\"")};
+
+    private static final int MIN_HISTORY = 3;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final Path store;
+
+    private final boolean analyze;
+
+    private final double regressionFactor;
+
+    private final Map<String, History> history = new ConcurrentHashMap<>();
+
+    private final AtomicLong captured = new AtomicLong(), planChanges = new AtomicLong(),
+            hintsIgnored = new AtomicLong(), regressions = new AtomicLong();
+
+    private PlanCapture(Path store, boolean analyze, double regressionFactor) {
+        this.store = store;
+        this.analyze = analyze;
+        this.regressionFactor = regressionFactor;
+        load();
+    }
+
+    public static synchronized PlanCapture getInstance() {
+        if (_instance == null)
+            _instance = new PlanCapture(Paths.get(PolicyConstants.PLAN_STORE), PolicyConstants.PLAN_CAPTURE_ANALYZE,
+                    PolicyConstants.PLAN_REGRESSION_FACTOR);
+        return _instance;
+    }
+
+    /**
+     * Plan fingerprint, execution count and mean latency of the earlier executions of a query
+     */
+    private static class History {
+        String fingerprint;
+        long executions;
+        double meanLatency;
+
+        void add(String fingerprint, long latency) {
+            this.fingerprint = fingerprint;
+            executions++;
+            meanLatency += (latency - meanLatency) / executions;
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(store)) return;
+        try (BufferedReader reader = Files.newBufferedReader(store, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+                PlanRecord record = mapper.readValue(line, PlanRecord.class);
+                history.computeIfAbsent(record.getQueryKey(), k -> new History())
+                        .add(record.getFingerprint(), record.getLatencyMillis());
+            }
+        } catch (IOException e) {
+            System.out.println("Plan store " + store + " could not be read, starting without plan history");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Explains the query, compares the plan with the earlier executions and stores it
+     * @param query executed statement
+     * @param queryResult result of the execution
+     * @return stored record, null if the DBMS cannot explain in JSON or the plan could not be captured
+     */
+    public PlanRecord capture(String query, QueryResult queryResult) {
+        boolean timedOut = queryResult.getTimeTaken().compareTo(PolicyConstants.MAX_DURATION) >= 0;
+        String explain = PolicyConstants.getDialect().explain(query, analyze && !timedOut);
+        if (explain == null) return null;
+        JsonNode plan;
+        Statement statement = null;
+        try (Connection connection = PolicyConstants.getDataSource().getConnection()) {
+            statement = connection.createStatement();
+            statement.setQueryTimeout((int) Math.max(1, PolicyConstants.MAX_DURATION.getSeconds()));
+            StringBuilder text = new StringBuilder();
+            try (ResultSet rs = statement.executeQuery(explain)) {
+                while (rs.next()) text.append(rs.getString(1));
+            }
+            plan = mapper.readTree(text.toString());
+        } catch (SQLException | IOException e) {
+            System.out.println("Plan of the query could not be captured " + e);
+            return null;
+        } finally {
+            DbUtils.closeQuietly(statement);
+        }
+        PlanRecord record = new PlanRecord();
+        record.setQueryKey(queryKey(query));
+        record.setTimestamp(System.currentTimeMillis());
+        StringBuilder shape = new StringBuilder();
+        Set<String> indexes = new LinkedHashSet<>();
+        double[] estimated = {0};
+        walk(plan, shape, indexes, estimated);
+        record.setFingerprint(UUID.nameUUIDFromBytes(shape.toString().getBytes(StandardCharsets.UTF_8)).toString());
+        record.setIndexes(new ArrayList<>(indexes));
+        record.setHintedIndexes(hintedIndexes(query));
+        JsonNode root = plan.isArray() && plan.size() > 0 ? plan.get(0) : plan;
+        JsonNode pgRoot = root.path("Plan");
+        record.setEstimatedRows(pgRoot.has("Plan Rows") ? pgRoot.get("Plan Rows").asDouble() : estimated[0]);
+        if (pgRoot.has("Actual Rows")) {
+            record.setActualRows(pgRoot.get("Actual Rows").asLong() * Math.max(1, pgRoot.path("Actual Loops").asLong(1)));
+            record.setLatencyMillis((long) root.path("Execution Time").asDouble());
+        } else {
+            record.setActualRows(queryResult.getResultCount());
+            record.setLatencyMillis(queryResult.getTimeTaken().toMillis());
+        }
+        record.setHintIgnored(!record.getHintedIndexes().isEmpty() && record.getHintedIndexes().stream()
+                .noneMatch(hinted -> indexes.stream().anyMatch(hinted::equalsIgnoreCase)));
+        History previous = history.computeIfAbsent(record.getQueryKey(), k -> new History());
+        synchronized (previous) {
+            record.setPlanChanged(previous.fingerprint != null && !previous.fingerprint.equals(record.getFingerprint()));
+            record.setRegressed(previous.executions >= MIN_HISTORY
+                    && record.getLatencyMillis() > regressionFactor * previous.meanLatency);
+            if (previous.fingerprint == null || record.isPlanChanged()) record.setPlan(plan);
+            previous.add(record.getFingerprint(), record.getLatencyMillis());
+        }
+        captured.incrementAndGet();
+        if (record.isPlanChanged()) {
+            planChanges.incrementAndGet();
+            System.out.println("Plan changed for query " + record.getQueryKey());
+        }
+        if (record.isHintIgnored()) {
+            hintsIgnored.incrementAndGet();
+            System.out.println("Optimizer ignored the hinted indexes " + record.getHintedIndexes()
+                    + " for query " + record.getQueryKey() + ", used " + record.getIndexes());
+        }
+        if (record.isRegressed()) {
+            regressions.incrementAndGet();
+            System.out.println("Latency regressed for query " + record.getQueryKey() + ": "
+                    + record.getLatencyMillis() + " ms");
+        }
+        append(record);
+        return record;
+    }
+
+    /**
+     * Collects the structural fields, the indexes and the estimated rows of MySQL tables from the plan
+     */
+    private static void walk(JsonNode node, StringBuilder shape, Set<String> indexes, double[] estimated) {
+        if (node.isArray()) {
+            shape.append('[');
+            for (JsonNode child : node) walk(child, shape, indexes, estimated);
+            shape.append(']');
+            return;
+        }
+        if (!node.isObject()) return;
+        shape.append('{');
+        if (node.has("Index Name")) indexes.add(node.get("Index Name").asText());
+        if (node.has("access_type") && node.has("key")) indexes.add(node.get("key").asText());
+        if (node.has("access_type") && node.has("rows_produced_per_join"))
+            estimated[0] += node.get("rows_produced_per_join").asDouble();
+        for (Map.Entry<String, JsonNode> field : node.properties()) {
+            if (STRUCTURE.contains(field.getKey()) && field.getValue().isValueNode())
+                shape.append(field.getKey()).append('=').append(field.getValue().asText()).append(';');
+            else if (field.getValue().isContainerNode()) {
+                shape.append(field.getKey()).append(':');
+                walk(field.getValue(), shape, indexes, estimated);
+            }
+        }
+        shape.append('}');
+    }
+
+    /**
+     * Identifies executions of the same query, the text of the query without literals:
+     * single and double quoted strings (this repo quotes its constants with double quotes) and numbers
+     * @param query
+     * @return
+     */
+    public static String queryKey(String query) {
+        String template = query.replaceAll("'[^']*'|\"[^\"]*\"", "?")
+                .replaceAll("\\b\\d+(\\.\\d+)?\\b", "?")
+                .replaceAll("\\s+", " ").trim();
+        return UUID.nameUUIDFromBytes(template.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * @return indexes requested by FORCE INDEX (MySQL), BitmapScan/IndexScan (pg_hint_plan) or optimization guidelines (DB2)
+     */
+    private static List<String> hintedIndexes(String query) {
+        Set<String> hinted = new LinkedHashSet<>();
+        for (Pattern pattern : HINTS) {
+            Matcher matcher = pattern.matcher(query);
+            while (matcher.find())
+                for (String index : matcher.group(1).split("[,\\s]+"))
+                    if (!index.isEmpty()) hinted.add(index);
+        }
+        return new ArrayList<>(hinted);
+    }
+
+    private synchronized void append(PlanRecord record) {
+        try {
+            if (store.getParent() != null) Files.createDirectories(store.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(store, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writer.write(mapper.writeValueAsString(record));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public long getCaptured() {
+        return captured.get();
+    }
+
+    public long getPlanChanges() {
+        return planChanges.get();
+    }
+
+    public long getHintsIgnored() {
+        return hintsIgnored.get();
+    }
+
+    public long getRegressions() {
+        return regressions.get();
+    }
+}
@@ -0,0 +1,142 @@
+package edu.uci.ics.tippers.dbms;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plan of one execution of a query as stored by PlanCapture, one JSON line per execution
+ */
+public class PlanRecord {
+
+    private String queryKey;
+    private long timestamp;
+    private String fingerprint;
+    private List<String> indexes = new ArrayList<>();
+    private List<String> hintedIndexes = new ArrayList<>();
+    private double estimatedRows;
+    private long actualRows;
+    private long latencyMillis;
+    private boolean planChanged;
+    private boolean hintIgnored;
+    private boolean regressed;
+    private JsonNode plan;
+
+    public String getQueryKey() {
+        return queryKey;
+    }
+
+    public void setQueryKey(String queryKey) {
+        this.queryKey = queryKey;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return hash of the operators, tables and indexes of the plan, without costs, row counts and conditions
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * @return indexes chosen by the optimizer
+     */
+    public List<String> getIndexes() {
+        return indexes;
+    }
+
+    public void setIndexes(List<String> indexes) {
+        this.indexes = indexes;
+    }
+
+    /**
+     * @return indexes requested by the hints of the query
+     */
+    public List<String> getHintedIndexes() {
+        return hintedIndexes;
+    }
+
+    public void setHintedIndexes(List<String> hintedIndexes) {
+        this.hintedIndexes = hintedIndexes;
+    }
+
+    public double getEstimatedRows() {
+        return estimatedRows;
+    }
+
+    public void setEstimatedRows(double estimatedRows) {
+        this.estimatedRows = estimatedRows;
+    }
+
+    public long getActualRows() {
+        return actualRows;
+    }
+
+    public void setActualRows(long actualRows) {
+        this.actualRows = actualRows;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @return true if the fingerprint differs from the previous execution of the query
+     */
+    public boolean isPlanChanged() {
+        return planChanged;
+    }
+
+    public void setPlanChanged(boolean planChanged) {
+        this.planChanged = planChanged;
+    }
+
+    /**
+     * @return true if none of the hinted indexes was chosen
+     */
+    public boolean isHintIgnored() {
+        return hintIgnored;
+    }
+
+    public void setHintIgnored(boolean hintIgnored) {
+        this.hintIgnored = hintIgnored;
+    }
+
+    /**
+     * @return true if the latency exceeded plan_regression_factor times the mean latency of the earlier executions
+     */
+    public boolean isRegressed() {
+        return regressed;
+    }
+
+    public void setRegressed(boolean regressed) {
+        this.regressed = regressed;
+    }
+
+    /**
+     * @return plan as returned by the DBMS, only kept when the plan changed
+     */
+    public JsonNode getPlan() {
+        return plan;
+    }
+
+    public void setPlan(JsonNode plan) {
+        this.plan = plan;
+    }
+}
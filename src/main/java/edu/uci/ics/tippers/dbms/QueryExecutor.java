@@ -4,111 +4,211 @@ import edu.uci.ics.tippers.common.PolicyConstants;
 import edu.uci.ics.tippers.common.PolicyEngineException;
 import org.apache.commons.dbutils.DbUtils;
 
+import javax.sql.DataSource;
 import java.sql.*;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Executes queries with the timeout enforced by the JDBC driver (Statement.setQueryTimeout),
+ * so a query runs on the calling thread instead of a new thread per query.
+ * With stream_results = true rows are read through a forward-only cursor fetching stream_fetch_size rows
+ * at a time and consumed in a single pass, the time taken then includes reading all the rows.
+ * Queries submitted asynchronously run on the shared QueryThreads and are cancelled on the DBMS
+ * when their future is cancelled.
+ * With plan_capture = true the plan of every executed query is captured after it completes, see PlanCapture.
+ */
 public class QueryExecutor {
 
-    private long timeout = 0;
+    private final int timeout;
 
-    private final Connection connection;
+    private final DataSource dataSource;
 
-    public QueryExecutor(Connection connection, long timeout){
-        this.connection = connection;
-        this.timeout = timeout + PolicyConstants.MAX_DURATION.toMillis();
+    /**
+     * @param dataSource connections are borrowed for each query and returned once it completes
+     * @param timeout seconds after which the DBMS cancels the query
+     */
+    public QueryExecutor(DataSource dataSource, long timeout){
+        this.dataSource = dataSource;
+        this.timeout = (int) Math.max(1, timeout);
     }
 
     public QueryResult runWithThread(String query, QueryResult queryResult) {
+        return run(query, queryResult, new Running(), timeout);
+    }
 
-        Statement statement = null;
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        Future<QueryResult> future = null;
-        try {
-            statement = connection.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-            Executor queryExecutor = new Executor(statement, query, queryResult);
-            future = executor.submit(queryExecutor);
-            queryResult = future.get(timeout, TimeUnit.MILLISECONDS);
-            executor.shutdown();
-            return queryResult;
-        } catch (SQLException | InterruptedException | ExecutionException ex) {
-            cancelStatement(statement, ex);
-            ex.printStackTrace();
-            throw new PolicyEngineException("Failed to query the database. " + ex);
-        } catch (TimeoutException ex) {
-            cancelStatement(statement, ex);
-            future.cancel(true);
-            queryResult.setTimeTaken(PolicyConstants.MAX_DURATION);
-            return queryResult;
-        } finally {
-            DbUtils.closeQuietly(statement);
-            executor.shutdownNow();
-        }
+    /**
+     * Runs a statement returning the number of rows in a single row, see CountQuery
+     * @param countQuery
+     * @param queryResult
+     * @return result with the count as result count
+     */
+    public QueryResult runCount(String countQuery, QueryResult queryResult) {
+        queryResult.setCounting(true);
+        return run(countQuery, queryResult, new Running(), timeout);
     }
 
-    private void cancelStatement(Statement statement, Exception ex) {
-        System.out.println("Cancelling the current query statement. Timeout occurred");
+    /**
+     * Runs the query on the shared query threads within the timeout, which includes the time spent waiting for a thread
+     * Completing the future, e.g. by cancelling it, cancels the statement on the DBMS if it is still running.
+     * @param query
+     * @param queryResult
+     * @param timeout
+     * @return future of the query result, completed with a time taken of MAX_DURATION if the timeout occurs.
+     * A query that already started is completed by its thread once its statement is cancelled, so that the result
+     * is not modified after the future completes.
+     */
+    public CompletableFuture<QueryResult> submit(String query, QueryResult queryResult, Duration timeout) {
+        Running running = new Running();
+        CompletableFuture<QueryResult> future = new CompletableFuture<>();
+        AtomicBoolean timedOut = new AtomicBoolean(false);
         try {
-            statement.cancel();
-        } catch (SQLException exception) {
-            throw new PolicyEngineException("Calling cancel() on the Statement issued exception. Details are: " + exception);
+            QueryThreads.getInstance().execute(() -> {
+                if (future.isDone()) return;
+                try {
+                    QueryResult result = run(query, queryResult, running, (int) Math.max(1, timeout.getSeconds()));
+                    if (timedOut.get()) completeTimedOut(future, queryResult, timeout);
+                    else future.complete(result);
+                } catch (Throwable t) {
+                    if (timedOut.get()) completeTimedOut(future, queryResult, timeout);
+                    else future.completeExceptionally(t);
+                }
+            });
+        } catch (PolicyEngineException e) {
+            future.completeExceptionally(e);
+            return future;
         }
+        ScheduledFuture<?> timer = QueryThreads.getInstance().schedule(() -> {
+            timedOut.set(true);
+            //a query still waiting for a thread does not start anymore and is completed here
+            if (running.cancel()) completeTimedOut(future, queryResult, timeout);
+        }, timeout);
+        future.whenComplete((result, failure) -> {
+            timer.cancel(false);
+            running.cancel();
+        });
+        return future;
+    }
+
+    private static void completeTimedOut(CompletableFuture<QueryResult> future, QueryResult queryResult,
+                                         Duration timeout) {
+        queryResult.setTimeTaken(PolicyConstants.MAX_DURATION);
+        if (future.complete(queryResult)) System.out.println("Query timed out after " + timeout);
     }
 
-    private class Executor implements  Callable<QueryResult>{
+    /**
+     * Statement currently executed for a query, so that the query can be cancelled from another thread
+     */
+    private static class Running {
 
-        Statement statement;
-        String query;
-        QueryResult queryResult;
+        private Statement statement;
 
-        public Executor(Statement statement, String query, QueryResult queryResult) {
+        private boolean cancelled;
+
+        private boolean started;
+
+        synchronized boolean start(Statement statement) {
+            if (cancelled) return false;
             this.statement = statement;
-            this.query = query;
-            this.queryResult = queryResult;
+            this.started = true;
+            return true;
         }
 
-        @Override
-        public QueryResult call() throws Exception {
+        synchronized void finish() {
+            this.statement = null;
+        }
+
+        /**
+         * @return true if the query had not started, it does not start anymore
+         */
+        synchronized boolean cancel() {
+            cancelled = true;
+            if (statement == null) return !started;
+            System.out.println("Cancelling the current query statement");
             try {
-                Instant start = Instant.now();
-                ResultSet rs = statement.executeQuery(query);
-                Instant end = Instant.now();
-                if(queryResult.getResultsCheck())
-                    queryResult.setQueryResult(rs);
-                int rowcount = 0;
-                if (hasColumn(rs, "total")){
-                    rs.next();
-                    rowcount = rs.getInt(1);
-                }
-                else if (rs.last()) {
-                    rowcount = rs.getRow();
-                    rs.beforeFirst();
-                }
-                if(queryResult.getPathName() != null && queryResult.getFileName() != null){
-                    queryResult.writeResultsToFile(rs);
-                }
-                queryResult.setResultCount(rowcount);
-                queryResult.setTimeTaken(Duration.between(start, end));
-                return queryResult;
-            } catch (SQLException e) {
-                System.out.println("Exception raised by : " + query);
-                cancelStatement(statement, e);
-                e.printStackTrace();
-                throw new PolicyEngineException("Error Running Query");
+                statement.cancel();
+            } catch (SQLException exception) {
+                throw new PolicyEngineException("Calling cancel() on the Statement issued exception. Details are: " + exception);
             }
+            return false;
         }
+    }
 
-        public boolean hasColumn(ResultSet rs, String columnName) throws SQLException {
-            ResultSetMetaData rsmd = rs.getMetaData();
-            int columns = rsmd.getColumnCount();
-            for (int x = 1; x <= columns; x++) {
-                if (columnName.equals(rsmd.getColumnName(x))) {
-                    return true;
-                }
+    private QueryResult run(String query, QueryResult queryResult, Running running, int timeout) {
+        QueryResult result = runStatement(query, queryResult, running, timeout);
+        if (PolicyConstants.PLAN_CAPTURE) PlanCapture.getInstance().capture(query, result);
+        return result;
+    }
+
+    private QueryResult runStatement(String query, QueryResult queryResult, Running running, int timeout) {
+        Connection connection = null;
+        Statement statement = null;
+        try {
+            connection = dataSource.getConnection();
+            if (PolicyConstants.STREAM_RESULTS)
+                statement = PolicyConstants.getDialect().streamingStatement(connection, PolicyConstants.STREAM_FETCH_SIZE);
+            else
+                statement = connection.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+            statement.setQueryTimeout(timeout);
+            if (!running.start(statement)) throw new CancellationException("Query cancelled before it started");
+            if (PolicyConstants.STREAM_RESULTS) return stream(statement, query, queryResult);
+            return execute(statement, query, queryResult);
+        } catch (SQLException ex) {
+            if (isTimeout(ex)) {
+                System.out.println("Query cancelled by the DBMS. Timeout occurred");
+                queryResult.setTimeTaken(PolicyConstants.MAX_DURATION);
+                return queryResult;
             }
-            return false;
+            System.out.println("Exception raised by : " + query);
+            ex.printStackTrace();
+            throw new PolicyEngineException("Failed to query the database. " + ex);
+        } finally {
+            running.finish();
+            DbUtils.closeQuietly(statement);
+            DbUtils.closeQuietly(connection);
+        }
+    }
+
+    /**
+     * MySQL raises SQLTimeoutException, PostgreSQL and DB2 raise query_canceled (57014)
+     */
+    private static boolean isTimeout(SQLException ex) {
+        return ex instanceof SQLTimeoutException || "57014".equals(ex.getSQLState());
+    }
+
+    private QueryResult execute(Statement statement, String query, QueryResult queryResult) throws SQLException {
+        Instant start = Instant.now();
+        ResultSet rs = statement.executeQuery(query);
+        Instant end = Instant.now();
+        if(queryResult.getResultsCheck() && !queryResult.isCounting())
+            queryResult.setQueryResult(rs);
+        int rowcount = 0;
+        if (queryResult.isCounting()){
+            rs.next();
+            rowcount = rs.getInt(1);
+        }
+        else if (rs.last()) {
+            rowcount = rs.getRow();
+            rs.beforeFirst();
+        }
+        queryResult.feed(rs);
+        if(queryResult.getPathName() != null && queryResult.getFileName() != null){
+            queryResult.writeResultsToFile(rs);
+        }
+        queryResult.setResultCount(rowcount);
+        queryResult.setTimeTaken(Duration.between(start, end));
+        return queryResult;
+    }
+
+    private QueryResult stream(Statement statement, String query, QueryResult queryResult) throws SQLException {
+        Instant start = Instant.now();
+        try (ResultSet rs = statement.executeQuery(query)) {
+            queryResult.consume(rs);
         }
+        queryResult.setTimeTaken(Duration.between(start, Instant.now()));
+        return queryResult;
     }
 
 }
@@ -2,32 +2,38 @@ package edu.uci.ics.tippers.dbms;
 
 import edu.uci.ics.tippers.common.PolicyConstants;
 import edu.uci.ics.tippers.common.PolicyEngineException;
+import edu.uci.ics.tippers.fileop.ResultExporter;
+import edu.uci.ics.tippers.model.guard.GuardExp;
+import edu.uci.ics.tippers.model.query.QueryStatement;
 
-import java.sql.*;
+import javax.sql.DataSource;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Supplier;
 
 import static edu.uci.ics.tippers.common.PolicyConstants.SELECT_ALL;
 import static edu.uci.ics.tippers.common.PolicyConstants.SELECT_ALL_WHERE;
 
 public class QueryManager {
 
-    private Connection connection;
+    private final DataSource dataSource;
     private final QueryExecutor queryExecutor;
 
     public QueryManager(){
-        connection = PolicyConstants.getDBMSConnection();
-        queryExecutor = new QueryExecutor(connection, PolicyConstants.MAX_DURATION.getSeconds());
+        dataSource = PolicyConstants.getDataSource();
+        queryExecutor = new QueryExecutor(dataSource, PolicyConstants.MAX_DURATION.getSeconds());
     }
 
-    public Connection getConnection(){
-        return connection;
+    public DataSource getDataSource(){
+        return dataSource;
     }
 
     public float checkSelectivity(String queryPredicates) {
-        QueryResult queryResult = runTimedQueryWithOutSorting(queryPredicates, true);
+        QueryResult queryResult = runTimedCount(SELECT_ALL_WHERE + queryPredicates);
         return (float) queryResult.getResultCount() / (float) PolicyConstants.getNumberOfTuples();
     }
 
@@ -37,10 +43,34 @@ public class QueryManager {
      * @return
      */
     public float checkSelectivityFullQuery(String query) {
-        QueryResult queryResult = runTimedQueryWithOutSorting(query);
+        QueryResult queryResult = runTimedCount(query);
         return (float) queryResult.getResultCount() / (float) PolicyConstants.getNumberOfTuples();
     }
 
+    /**
+     * Counts the rows of any complete statement on the DBMS, only the count is sent to the client
+     * @param completeQuery including UNION and CTE rewrites
+     * @return result with the number of rows as result count
+     * @throws PolicyEngineException
+     */
+    public QueryResult runTimedCount(String completeQuery) throws PolicyEngineException {
+        return runTimedCountQuery(CountQuery.wrap(completeQuery));
+    }
+
+    /**
+     * Executes a statement that already returns the number of rows, e.g. GuardExp.createCountWithUnion
+     * @param countQuery
+     * @return result with the number of rows as result count
+     * @throws PolicyEngineException
+     */
+    public QueryResult runTimedCountQuery(String countQuery) throws PolicyEngineException {
+        try {
+            return queryExecutor.runCount(countQuery, new QueryResult());
+        } catch (Exception e) {
+            throw new PolicyEngineException("Error Running Query");
+        }
+    }
+
     /**
      * Compute the cost by execution time of the query and writes the results to file
      * @return
@@ -54,22 +84,72 @@ public class QueryManager {
             for (int i = 0; i < repetitions; i++) {
                 gList.add(queryExecutor.runWithThread(query, queryResult).getTimeTaken().toMillis());
             }
-            Duration gCost;
-            if(repetitions >= 3) {
-                Collections.sort(gList);
-                List<Long> clippedGList = gList.subList(1, repetitions - 1);
-                gCost = Duration.ofMillis(clippedGList.stream().mapToLong(i -> i).sum() / clippedGList.size());
-            }
-            else{
-                gCost =  Duration.ofMillis(gList.stream().mapToLong(i -> i).sum() / gList.size());
-            }
-            queryResult.setTimeTaken(gCost);
+            queryResult.setTimeTaken(clippedMean(gList));
             return queryResult;
         } catch (Exception e) {
             throw new PolicyEngineException("Error Running Query");
         }
     }
 
+    /**
+     * Mean of the execution times leaving out the fastest and slowest one if there are at least 3
+     * @param times execution times in milliseconds, sorted in place
+     * @return
+     */
+    private static Duration clippedMean(List<Long> times) {
+        List<Long> clipped = times;
+        if (times.size() >= 3) {
+            Collections.sort(times);
+            clipped = times.subList(1, times.size() - 1);
+        }
+        return Duration.ofMillis(clipped.stream().mapToLong(i -> i).sum() / clipped.size());
+    }
+
+    /**
+     * Returns the cached result of the query for the querier if it is still valid, otherwise rewrites the query
+     * with the guarded expressions, executes it and caches the result
+     * @param guardExp allow guarded expression of the querier
+     * @param denyExp deny guarded expression of the querier, null if it has no deny policies
+     * @param queryStatement query before the guarded rewrite
+     * @param rewrite produces the guarded rewrite of the query, only called on a cache miss
+     * @param repetitions
+     * @return
+     * @throws PolicyEngineException
+     */
+    public QueryResult runCachedQueryExp(GuardExp guardExp, GuardExp denyExp, QueryStatement queryStatement,
+                                         Supplier<String> rewrite, int repetitions) throws PolicyEngineException {
+        ResultCache resultCache = ResultCache.getInstance();
+        Instant start = Instant.now();
+        QueryResult cached = resultCache.get(guardExp, denyExp, queryStatement);
+        if (cached != null) {
+            cached.setTimeTaken(Duration.between(start, Instant.now()));
+            return cached;
+        }
+        long watermark = IngestWatermark.getInstance().getIngestedRows();
+        QueryResult queryResult = runTimedQueryExp(rewrite.get(), repetitions);
+        resultCache.put(guardExp, denyExp, queryStatement, queryResult, watermark);
+        return queryResult;
+    }
+
+    /**
+     * Executes the guard branches of a query concurrently with ScatterGatherExecutor
+     * @param branches one statement per guard part with the query predicate pushed in
+     * @param repetitions
+     * @return merged result with the mean execution time, leaving out the fastest and slowest repetition
+     * @throws PolicyEngineException
+     */
+    public QueryResult runScatterGatherExp(List<String> branches, int repetitions) throws PolicyEngineException {
+        ScatterGatherExecutor scatterGather = ScatterGatherExecutor.getInstance();
+        QueryResult queryResult = null;
+        List<Long> gList = new ArrayList<>();
+        for (int i = 0; i < repetitions; i++) {
+            queryResult = scatterGather.execute(branches, false);
+            gList.add(queryResult.getTimeTaken().toMillis());
+        }
+        queryResult.setTimeTaken(clippedMean(gList));
+        return queryResult;
+    }
+
     /**
      * Compute the cost by execution time of the query and writes the results to file
      * @param predicates
@@ -86,17 +166,7 @@ public class QueryManager {
             for (int i = 0; i < repetitions; i++)
                 gList.add(queryExecutor.runWithThread(SELECT_ALL_WHERE + predicates,
                         queryResult).getTimeTaken().toMillis());
-            Duration gCost;
-            if(repetitions >= 3) {
-                Collections.sort(gList);
-                List<Long> clippedGList = gList.subList(1, repetitions - 1);
-                gCost = Duration.ofMillis(clippedGList.stream().mapToLong(i -> i).sum() / clippedGList.size());
-            }
-            else{
-                gCost =  Duration.ofMillis(gList.stream().mapToLong(i -> i).sum() / gList.size());
-
-            }
-            queryResult.setTimeTaken(gCost);
+            queryResult.setTimeTaken(clippedMean(gList));
             return queryResult;
         } catch (Exception e) {
             throw new PolicyEngineException("Error Running Query");
@@ -119,6 +189,29 @@ public class QueryManager {
         }
     }
 
+    /**
+     * Runs the complete query once, writing its rows to the file through a ResultExporter
+     * @param completeQuery
+     * @param path
+     * @param format
+     * @param compression
+     * @return result with the time taken including writing the rows and flushing them to the file
+     * @throws PolicyEngineException
+     */
+    public QueryResult runExport(String completeQuery, Path path, ResultExporter.Format format,
+                                 ResultExporter.Compression compression) throws PolicyEngineException {
+        QueryResult queryResult = new QueryResult();
+        ResultExporter exporter = queryResult.exportTo(path, format, compression);
+        try {
+            queryExecutor.runWithThread(completeQuery, queryResult);
+        } finally {
+            long start = System.nanoTime();
+            exporter.close();
+            queryResult.setTimeTaken(queryResult.getTimeTaken().plusNanos(System.nanoTime() - start));
+        }
+        return queryResult;
+    }
+
     /**
      * Compute the cost by execution time of the query which includes a subquery clause
      * @param completeQuery - including the FROM clause
@@ -136,6 +229,25 @@ public class QueryManager {
         }
     }
 
+    /**
+     * Executes the complete query once keeping its rows in a ColumnarResult, for comparing its result with
+     * another query with QueryResult.checkResults
+     * @param completeQuery
+     * @param projection columns to keep besides id
+     * @return
+     * @throws PolicyEngineException
+     */
+    public QueryResult runCheckedQuery(String completeQuery, String... projection) throws PolicyEngineException {
+        try {
+            QueryResult queryResult = new QueryResult();
+            queryResult.setResultsCheck(true);
+            queryResult.setColumnar(projection);
+            return queryExecutor.runWithThread(completeQuery, queryResult);
+        } catch (Exception e) {
+            throw new PolicyEngineException("Error Running Query");
+        }
+    }
+
 
     /**
      * Execution time for guards which includes cost of sorting the results
@@ -185,16 +297,7 @@ public class QueryManager {
             List<Long> gList = new ArrayList<>();
             for (int i = 0; i < repetitions; i++)
                 gList.add(queryExecutor.runWithThread(query, queryResult).getTimeTaken().toMillis());
-            Duration gCost;
-            if (repetitions >= 3) {
-                Collections.sort(gList);
-                List<Long> clippedGList = gList.subList(1, repetitions - 1);
-                gCost = Duration.ofMillis(clippedGList.stream().mapToLong(i -> i).sum() / clippedGList.size());
-            } else {
-                gCost = Duration.ofMillis(gList.stream().mapToLong(i -> i).sum() / gList.size());
-
-            }
-            queryResult.setTimeTaken(gCost);
+            queryResult.setTimeTaken(clippedMean(gList));
             return queryResult;
         } catch (Exception e) {
             throw new PolicyEngineException("Error Running Query");
@@ -209,15 +312,10 @@ public class QueryManager {
      * @throws PolicyEngineException
      */
     public long runCountingQuery(String predicates) throws PolicyEngineException {
-        try {
-            if(predicates != null)
-                return queryExecutor.runWithThread(SELECT_ALL_WHERE + predicates,
-                        new QueryResult()).resultCount;
-            else
-                return queryExecutor.runWithThread(SELECT_ALL, new QueryResult()).resultCount;
-        } catch (Exception e) {
-            throw new PolicyEngineException("Error Running Query");
-        }
+        if(predicates != null)
+            return runTimedCount(SELECT_ALL_WHERE + predicates).getResultCount();
+        else
+            return runTimedCount(SELECT_ALL).getResultCount();
     }
 
 }
\ No newline at end of file
@@ -1,16 +1,21 @@
 package edu.uci.ics.tippers.dbms;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import edu.uci.ics.tippers.fileop.ResultExporter;
 import edu.uci.ics.tippers.fileop.Writer;
 import edu.uci.ics.tippers.model.data.LongPresence;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.IntStream;
+import java.util.Map;
 
 public class QueryResult {
 
@@ -18,8 +23,13 @@ public class QueryResult {
     String fileName;
     Duration timeTaken;
     int resultCount;
-    List<LongPresence> queryResult;
+    LongHashSet resultIds;
+    Map<Long, Integer> duplicateIds;
     Boolean resultsCheck;
+    RowConsumer rowConsumer;
+    boolean counting;
+    String[] projection;
+    ColumnarResult columnarResult;
 
     public QueryResult() {
         this.timeTaken = Duration.ofMillis(0);
@@ -36,24 +46,99 @@ public class QueryResult {
     }
 
 
+    /**
+     * Rows of the result, only their ids are kept
+     * @return
+     */
     public List<LongPresence> getQueryResult() {
+        if (resultIds == null) return null;
+        List<LongPresence> queryResult = new ArrayList<>(resultIds.size());
+        resultIds.forEach(id -> {
+            LongPresence so = new LongPresence();
+            so.setId(String.valueOf(id));
+            queryResult.add(so);
+        });
         return queryResult;
     }
 
+    /**
+     * @return distinct ids of the result
+     */
+    public LongHashSet getResultIds() {
+        if (resultIds == null && columnarResult != null) {
+            duplicateIds = new HashMap<>();
+            resultIds = columnarResult.ids(duplicateIds);
+        }
+        return resultIds;
+    }
+
+    public void setResultIds(LongHashSet resultIds) {
+        this.resultIds = resultIds;
+    }
+
+    /**
+     * @return extra occurrences of the ids that occur more than once in the result, empty if none do
+     */
+    public Map<Long, Integer> getDuplicateIds() {
+        getResultIds();
+        return duplicateIds == null ? Collections.emptyMap() : duplicateIds;
+    }
+
+    public void setDuplicateIds(Map<Long, Integer> duplicateIds) {
+        this.duplicateIds = duplicateIds;
+    }
+
+    /**
+     * Keeps the projected columns of the rows in a ColumnarResult instead of only their ids,
+     * the ids used by checkResults are then read from its id column when they are first needed
+     * @param projection columns to keep, id is always kept
+     */
+    public void setColumnar(String... projection) {
+        this.projection = projection;
+    }
+
+    public ColumnarResult getColumnarResult() {
+        return columnarResult;
+    }
+
+    private void startResultIds(ResultSet resultSet) throws SQLException {
+        resultIds = null;
+        duplicateIds = null;
+        columnarResult = null;
+        if (projection != null) {
+            String[] columns = Arrays.copyOf(projection, projection.length + 1);
+            columns[projection.length] = "id";
+            columnarResult = new ColumnarResult(resultSet.getMetaData(), projection.length == 0 ? projection : columns);
+            return;
+        }
+        resultIds = new LongHashSet();
+        duplicateIds = new HashMap<>();
+    }
+
+    /**
+     * Keeps the id in the set of distinct ids, counting it as a duplicate if it is already there,
+     * or appends the row to the columnar result
+     */
+    private void addResultId(ResultSet resultSet) throws SQLException {
+        if (columnarResult != null) {
+            columnarResult.append(resultSet);
+            return;
+        }
+        long id = resultSet.getLong("id");
+        if (!resultIds.add(id)) duplicateIds.merge(id, 1, Integer::sum);
+    }
+
+    /**
+     * Keeps the distinct ids of the result set as primitive keys instead of a LongPresence per row, or its projected
+     * columns if the result is columnar,
+     * ids of duplicate rows are counted separately
+     * @param resultSet
+     */
     public void setQueryResult(ResultSet resultSet) {
-        this.queryResult = new ArrayList<>();
-        Writer writer = new Writer();
         try{
+            startResultIds(resultSet);
             while(resultSet.next()){
-                LongPresence so = new LongPresence();
-                so.setId(resultSet.getString("id"));
-//                so.setUser_id(resultSet.getString("user_id"));
-//                so.setLocation(resultSet.getString("location_id"));
-//                so.setTimeStamp(resultSet.getString("timeStamp"));
-//                so.setTemperature(resultSet.getString("temperature"));
-//                so.setEnergy(resultSet.getString("energy"));
-//                so.setActivity(resultSet.getString("activity"));
-                this.queryResult.add(so);
+                addResultId(resultSet);
             }
         }catch (SQLException e){
             e.printStackTrace();
@@ -65,6 +150,102 @@ public class QueryResult {
         }
     }
 
+    public boolean isCounting() {
+        return counting;
+    }
+
+    /**
+     * @param counting true if the query returns its count in a single row (CountQuery) instead of the rows
+     */
+    public void setCounting(boolean counting) {
+        this.counting = counting;
+    }
+
+    /**
+     * Writes the rows of the result to the file while they are read
+     * @param path
+     * @param format
+     * @param compression
+     * @return exporter of the rows, closed by the caller once the queries run with this result are done
+     */
+    public ResultExporter exportTo(Path path, ResultExporter.Format format, ResultExporter.Compression compression) {
+        ResultExporter exporter = new ResultExporter(path, format, compression);
+        this.rowConsumer = exporter;
+        return exporter;
+    }
+
+    public RowConsumer getRowConsumer() {
+        return rowConsumer;
+    }
+
+    /**
+     * @param rowConsumer receives every row of the result, closed by the caller and not by the query
+     */
+    public void setRowConsumer(RowConsumer rowConsumer) {
+        this.rowConsumer = rowConsumer;
+    }
+
+    /**
+     * Reads a forward-only result set in a single pass, counting the rows, keeping their ids if results are checked,
+     * writing them to pathName/fileName.json if set and handing them to the row consumer.
+     * Only the current row is held in memory.
+     * @param resultSet
+     * @throws SQLException
+     */
+    public void consume(ResultSet resultSet) throws SQLException {
+        if (counting) {
+            resultCount = resultSet.next() ? resultSet.getInt(1) : 0;
+            return;
+        }
+        if (resultsCheck) startResultIds(resultSet);
+        JsonGenerator generator = null;
+        int rows = 0;
+        try {
+            if (pathName != null && fileName != null) generator = new Writer().openJSONArray(pathName, fileName);
+            while (resultSet.next()) {
+                rows++;
+                if (resultsCheck) addResultId(resultSet);
+                if (generator != null) generator.writeObject(toPresence(resultSet));
+                if (rowConsumer != null) rowConsumer.accept(resultSet);
+            }
+            if (generator != null) generator.writeEndArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (generator != null) {
+                try {
+                    generator.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        resultCount = rows;
+    }
+
+    /**
+     * Hands every row of a scrollable result set to the row consumer and moves back before the first row
+     * @param resultSet
+     * @throws SQLException
+     */
+    public void feed(ResultSet resultSet) throws SQLException {
+        if (rowConsumer == null || counting) return;
+        while (resultSet.next()) rowConsumer.accept(resultSet);
+        resultSet.beforeFirst();
+    }
+
+    private static LongPresence toPresence(ResultSet resultSet) throws SQLException {
+        LongPresence so = new LongPresence();
+        so.setId(resultSet.getString("id"));
+        so.setUser_id(resultSet.getString("user_id"));
+        so.setLocation(resultSet.getString("location_id"));
+        so.setTimeStamp(resultSet.getString("timeStamp"));
+        so.setTemperature(resultSet.getString("temperature"));
+        so.setEnergy(resultSet.getString("energy"));
+        so.setActivity(resultSet.getString("activity"));
+        return so;
+    }
+
     public int getResultCount() {
         return resultCount;
     }
@@ -108,15 +289,7 @@ public class QueryResult {
         Writer writer = new Writer();
         try{
             while(resultSet.next()){
-                LongPresence so = new LongPresence();
-                so.setId(resultSet.getString("id"));
-                so.setUser_id(resultSet.getString("user_id"));
-                so.setLocation(resultSet.getString("location_id"));
-                so.setTimeStamp(resultSet.getString("timeStamp"));
-                so.setTemperature(resultSet.getString("temperature"));
-                so.setEnergy(resultSet.getString("energy"));
-                so.setActivity(resultSet.getString("activity"));
-                query_results.add(so);
+                query_results.add(toPresence(resultSet));
             }
             resultSet.close();
         }catch (SQLException e){
@@ -126,18 +299,26 @@ public class QueryResult {
             writer.writeJSONToFile(query_results, pathName, fileName);
     }
 
+    /**
+     * Compares the rows of the results by id as multisets: the same ids, each occurring as often in both
+     * @param otherResult
+     * @return
+     */
     public Boolean checkResults(QueryResult otherResult) {
-        List<LongPresence> og = this.getQueryResult();
-        List<LongPresence> tbc = otherResult.getQueryResult();
-        if(og.size() != tbc.size()) {
+        LongHashSet og = this.getResultIds();
+        LongHashSet tbc = otherResult.getResultIds();
+        if(og.size() != tbc.size() || this.resultCount != otherResult.resultCount) {
             System.out.println("Not of same size: " + og.size() + " != " + tbc.size());
-            System.out.println("Set size: " + new HashSet<>(og).size() + " " + new HashSet<>(tbc).size());
+            System.out.println("Result count: " + this.resultCount + " " + otherResult.resultCount);
+            return false;
+        }
+        boolean[] same = {true};
+        og.forEach(id -> same[0] &= tbc.contains(id));
+        if (same[0] && !this.getDuplicateIds().equals(otherResult.getDuplicateIds())) {
+            System.out.println("Duplicate rows differ: " + this.getDuplicateIds().size() + " != "
+                    + otherResult.getDuplicateIds().size() + " duplicated ids");
             return false;
         }
-        Comparator<LongPresence> comp = Comparator.comparingInt(so -> Integer.parseInt(so.getId()));
-        og.sort(comp);
-        tbc.sort(comp);
-        return IntStream.range(0, og.size())
-                .allMatch(i -> comp.compare(og.get(i), tbc.get(i)) == 0);
+        return same[0];
     }
 }
@@ -0,0 +1,97 @@
+package edu.uci.ics.tippers.dbms;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.common.PolicyEngineException;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Threads shared by all queries submitted for asynchronous execution, replacing a new executor per query.
+ * With virtual_threads = true and a JVM that supports them (21+), every query runs on its own virtual thread
+ * so thousands of guarded queries can wait on the DBMS at once, bounded only by the connection pool.
+ * Otherwise a fixed pool of query_threads platform threads with a bounded queue of query_queue tasks is used.
+ * Virtual threads are created reflectively so the engine still builds and runs on Java 8.
+ */
+public class QueryThreads implements Executor {
+
+    private static QueryThreads _instance;
+
+    private final ExecutorService executor;
+
+    private final boolean virtual;
+
+    private final ScheduledThreadPoolExecutor timer;
+
+    private QueryThreads(boolean useVirtual, int threads, int queue) {
+        ExecutorService virtualExecutor = useVirtual ? newVirtualExecutor() : null;
+        this.virtual = virtualExecutor != null;
+        if (virtual) this.executor = virtualExecutor;
+        else {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queue), r -> {
+                        Thread t = new Thread(r, "query");
+                        t.setDaemon(true);
+                        return t;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+        }
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "query-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    public static synchronized QueryThreads getInstance() {
+        if (_instance == null)
+            _instance = new QueryThreads(PolicyConstants.VIRTUAL_THREADS, Math.max(1, PolicyConstants.QUERY_THREADS),
+                    Math.max(1, PolicyConstants.QUERY_QUEUE));
+        return _instance;
+    }
+
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not supported by this JVM, using a pool of query threads");
+            return null;
+        }
+    }
+
+    /**
+     * @return true if queries run on virtual threads
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    @Override
+    public void execute(Runnable task) throws PolicyEngineException {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            throw new PolicyEngineException("Too many queries in flight, query queue is full");
+        }
+    }
+
+    /**
+     * Runs a short task, such as a query timeout, on the timer thread after the delay
+     * @param task
+     * @param delay
+     * @return cancelling it removes the task from the timer
+     */
+    public ScheduledFuture<?> schedule(Runnable task, Duration delay) {
+        return timer.schedule(task, delay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,274 @@
+package edu.uci.ics.tippers.dbms;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.model.guard.GuardExp;
+import edu.uci.ics.tippers.model.query.ConjunctiveQuery;
+import edu.uci.ics.tippers.model.query.QueryStatement;
+import edu.uci.ics.tippers.model.query.SelectQuery;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of guarded queries keyed by querier, version of the allow and deny guarded expressions
+ * (id and last_updated) and normalized query text, evicted in least recently used order once the configured
+ * size is reached.
+ *
+ * An entry is valid only for the versions of the guarded expressions it was computed with and
+ * only as long as no rows have been ingested into the base table since its query started whose start_date
+ * can fall into the days the query selects (IngestWatermark.ingestedWithin). Queries that do not bound
+ * start_date are invalidated by every ingested batch.
+ * A newer version of either guarded expression of a querier drops all entries of that querier.
+ */
+public class ResultCache {
+
+    private static ResultCache _instance = new ResultCache();
+
+    private final LinkedHashMap<String, CachedResult> entries;
+
+    private final Map<String, String> querierVersions = new LinkedHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private ResultCache() {
+        entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                if (size() > PolicyConstants.RESULT_CACHE_SIZE) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static ResultCache getInstance() {
+        return _instance;
+    }
+
+    public boolean isEnabled() {
+        return PolicyConstants.RESULT_CACHE_SIZE > 0;
+    }
+
+    /**
+     * Cached result of the query for these versions of the guarded expressions
+     * @param guardExp allow guarded expression of the querier
+     * @param denyExp deny guarded expression of the querier, null if it has no deny policies
+     * @param queryStatement query before the guarded rewrite
+     * @return copy of the cached result, null on a miss
+     */
+    public QueryResult get(GuardExp guardExp, GuardExp denyExp, QueryStatement queryStatement) {
+        if (!isEnabled()) return null;
+        String version = version(guardExp, denyExp);
+        String key = key(guardExp.getQuerier(), version, queryStatement.getQuery());
+        IngestWatermark ingestWatermark = IngestWatermark.getInstance();
+        long ingested = ingestWatermark.getIngestedRows();
+        synchronized (this) {
+            checkVersion(guardExp.getQuerier(), version);
+            CachedResult cached = entries.get(key);
+            if (cached != null && cached.watermark < ingested) {
+                if (ingestWatermark.ingestedWithin(cached.watermark, cached.firstDay, cached.lastDay)) {
+                    entries.remove(key);
+                    invalidations.incrementAndGet();
+                    cached = null;
+                } else cached.watermark = ingested;
+            }
+            if (cached == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return cached.copy();
+        }
+    }
+
+    /**
+     * Caches the result of the query, results of timed out queries are not cached
+     * @param guardExp allow guarded expression the query was rewritten with
+     * @param denyExp deny guarded expression the query was rewritten with, null if none
+     * @param queryStatement query before the guarded rewrite
+     * @param queryResult
+     * @param watermark ingested rows of IngestWatermark when the query started
+     */
+    public void put(GuardExp guardExp, GuardExp denyExp, QueryStatement queryStatement, QueryResult queryResult,
+                    long watermark) {
+        if (!isEnabled()) return;
+        if (queryResult.getTimeTaken().compareTo(PolicyConstants.MAX_DURATION) >= 0) return;
+        long[] days = dateRange(queryStatement);
+        if (IngestWatermark.getInstance().ingestedWithin(watermark, days[0], days[1])) return;
+        String version = version(guardExp, denyExp);
+        synchronized (this) {
+            checkVersion(guardExp.getQuerier(), version);
+            entries.put(key(guardExp.getQuerier(), version, queryStatement.getQuery()),
+                    new CachedResult(queryResult, watermark, days));
+        }
+    }
+
+    /**
+     * Days of start_date the query selects from the base table, unbounded if it reads the base table
+     * more than once since ConjunctiveQuery only covers the first reference
+     * @param queryStatement
+     * @return first and last epoch day
+     */
+    private static long[] dateRange(QueryStatement queryStatement) {
+        long[] unbounded = {Long.MIN_VALUE, Long.MAX_VALUE};
+        try {
+            if (queryStatement.getTemplate() == 3
+                    && SelectQuery.parse(queryStatement.getQuery()).getFrom().stream()
+                    .filter(SelectQuery.TableRef::isBaseTable).count() != 1)
+                return unbounded;
+            return ConjunctiveQuery.of(queryStatement).dateRange(PolicyConstants.START_DATE);
+        } catch (RuntimeException e) {
+            return unbounded;
+        }
+    }
+
+    /**
+     * Drops all cached results of the querier
+     * @param querier
+     */
+    public synchronized void invalidate(String querier) {
+        String prefix = querier + "|";
+        for (String key : new ArrayList<>(entries.keySet())) {
+            if (key.startsWith(prefix)) {
+                entries.remove(key);
+                invalidations.incrementAndGet();
+            }
+        }
+        querierVersions.remove(querier);
+    }
+
+    public synchronized void clear() {
+        invalidations.addAndGet(entries.size());
+        entries.clear();
+        querierVersions.clear();
+    }
+
+    private void checkVersion(String querier, String version) {
+        String known = querierVersions.get(querier);
+        if (known != null && !known.equals(version))
+            invalidate(querier);
+        querierVersions.put(querier, version);
+    }
+
+    private static String version(GuardExp guardExp, GuardExp denyExp) {
+        return version(guardExp) + "/" + (denyExp == null ? "none" : version(denyExp));
+    }
+
+    private static String version(GuardExp guardExp) {
+        Timestamp lastUpdated = guardExp.getLast_updated();
+        return guardExp.getId() + "@" + (lastUpdated == null ? "0" : String.valueOf(lastUpdated.getTime()));
+    }
+
+    private static String key(String querier, String version, String query) {
+        return querier + "|" + version + "|" + normalize(query);
+    }
+
+    /**
+     * Collapses whitespace and lower cases everything outside of single and double quoted literals
+     * so that queries differing only in formatting share an entry, the literals are kept as they are
+     * since case sensitive (_bin) collations and quoted identifiers tell their case apart
+     * @param query
+     * @return
+     */
+    public static String normalize(String query) {
+        StringBuilder normalized = new StringBuilder(query.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (quote == 0 && (c == '\'' || c == '"')) quote = c;
+            else if (c == quote) quote = 0;
+            boolean literal = quote != 0 || c == '\'' || c == '"';
+            if (!literal && Character.isWhitespace(c)) {
+                space = normalized.length() > 0;
+                continue;
+            }
+            if (space) {
+                normalized.append(' ');
+                space = false;
+            }
+            normalized.append(literal ? c : Character.toLowerCase(c));
+        }
+        return normalized.toString();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public double getHitRatio() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0.0 : (double) hits.get() / lookups;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ResultCache{size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", hitRatio=" + getHitRatio() + ", evictions=" + getEvictions()
+                + ", invalidations=" + getInvalidations() + "}";
+    }
+
+    private static class CachedResult {
+
+        private final int resultCount;
+
+        private final LongHashSet resultIds;
+
+        private final Map<Long, Integer> duplicateIds;
+
+        /** ingested rows up to which the result is known to be valid, advanced by lookups */
+        private long watermark;
+
+        private final long firstDay;
+
+        private final long lastDay;
+
+        private CachedResult(QueryResult queryResult, long watermark, long[] days) {
+            this.resultCount = queryResult.getResultCount();
+            this.resultIds = queryResult.getResultIds();
+            this.duplicateIds = queryResult.getDuplicateIds();
+            this.watermark = watermark;
+            this.firstDay = days[0];
+            this.lastDay = days[1];
+        }
+
+        private QueryResult copy() {
+            QueryResult queryResult = new QueryResult();
+            queryResult.setResultCount(resultCount);
+            //the ids are never modified once the result is complete and can be shared by all copies
+            if (resultIds != null) {
+                queryResult.setResultIds(resultIds);
+                queryResult.setDuplicateIds(duplicateIds);
+                queryResult.setResultsCheck(true);
+            }
+            return queryResult;
+        }
+    }
+}
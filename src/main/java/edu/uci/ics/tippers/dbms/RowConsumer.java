@@ -0,0 +1,25 @@
+package edu.uci.ics.tippers.dbms;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Receives the rows of a query result one at a time, on the thread executing the query.
+ * A consumer may receive the rows of several queries, it is closed by its owner once and not by the query.
+ * The result set is positioned on the current row and must not be advanced or kept after accept returns.
+ * The connection is busy streaming the result, so a consumer must not query through the same thread.
+ */
+public interface RowConsumer {
+
+    /**
+     * @param row result set positioned on the current row
+     * @throws SQLException
+     */
+    void accept(ResultSet row) throws SQLException;
+
+    /**
+     * Called once by the owner of the consumer after the last query it consumes, also if a query failed or timed out
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,210 @@
+package edu.uci.ics.tippers.dbms;
+
+import edu.uci.ics.tippers.common.AttributeType;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DBMS specific parts of the guarded rewrites
+ * Each implementation produces the plan shape that is fastest on its engine: index hints,
+ * whether guards are combined with UNION or with OR, CTE syntax, UDF invocation and parameter binding
+ */
+public interface SQLDialect {
+
+    /**
+     * FROM item for scanning the table through the index
+     * @param table
+     * @param index index name, null if no index should be forced
+     * @return
+     */
+    String scan(String table, String index);
+
+    /**
+     * Adds the hints that cannot be placed in the FROM item to a complete statement
+     * @param query complete statement
+     * @param table table that is scanned
+     * @param indexes indexes that should be used for the scans of the table
+     * @return
+     */
+    String hint(String query, String table, List<String> indexes);
+
+    /**
+     * Whether the engine combines index scans on OR'ed predicates (e.g. BitmapOr, IXOR) so that
+     * a single OR query over the guards is as fast as a UNION of per guard index scans
+     * @return
+     */
+    boolean combinesIndexesOnOr();
+
+    /**
+     * @return true if the guards should be combined with UNION rather than OR
+     */
+    default boolean prefersUnion() {
+        return !combinesIndexesOnOr();
+    }
+
+    default String union(boolean removeDuplicates) {
+        return removeDuplicates ? " UNION " : " UNION ALL ";
+    }
+
+    /**
+     * Common table expression prefix
+     * @param name
+     * @param body
+     * @return WITH name as (body)
+     */
+    default String cte(String name, String body) {
+        return "WITH " + cteItem(name, body);
+    }
+
+    /**
+     * Several common table expressions in one WITH clause
+     * @param ctes name to body, in the order of definition
+     * @return WITH name1 as (body1), name2 as (body2)
+     */
+    default String cte(Map<String, String> ctes) {
+        StringBuilder with = new StringBuilder("WITH ");
+        String delim = "";
+        for (Map.Entry<String, String> cte : ctes.entrySet()) {
+            with.append(delim).append(cteItem(cte.getKey(), cte.getValue()));
+            delim = ", ";
+        }
+        return with.toString();
+    }
+
+    /**
+     * @param name
+     * @param body
+     * @return name as (body)
+     */
+    default String cteItem(String name, String body) {
+        return name + " as (" + body + ")";
+    }
+
+    /**
+     * Predicate invoking a policy evaluation function that returns 1 if the tuple is allowed
+     * @param function
+     * @param arguments
+     * @return
+     */
+    default String udfCall(String function, List<String> arguments) {
+        return " " + function + "(" + String.join(", ", arguments) + ") = 1 ";
+    }
+
+    /**
+     * Column type of a function parameter holding values of the attribute type
+     * @param type
+     * @return
+     */
+    default String sqlType(AttributeType type) {
+        switch (type) {
+            case INTEGER:
+                return "INT";
+            case DOUBLE:
+                return "DOUBLE PRECISION";
+            case DATE:
+                return "DATE";
+            case TIME:
+                return "TIME";
+            case TIMESTAMP:
+                return "TIMESTAMP";
+            default:
+                return "VARCHAR(255)";
+        }
+    }
+
+    /**
+     * Statements creating (or replacing) a deterministic function without table access
+     * that returns the integer value of the expression over its parameters
+     * @param name
+     * @param parameters parameter names and types, in the order of the arguments
+     * @param expression
+     * @return DROP FUNCTION IF EXISTS name, CREATE FUNCTION name(...) RETURNS INT DETERMINISTIC RETURN expression
+     */
+    default List<String> createFunction(String name, Map<String, AttributeType> parameters, String expression) {
+        return Arrays.asList("DROP FUNCTION IF EXISTS " + name,
+                "CREATE FUNCTION " + name + "(" + functionParameters(parameters)
+                        + ") RETURNS INT DETERMINISTIC NO SQL RETURN " + expression);
+    }
+
+    default String functionParameters(Map<String, AttributeType> parameters) {
+        StringBuilder params = new StringBuilder();
+        String delim = "";
+        for (Map.Entry<String, AttributeType> param : parameters.entrySet()) {
+            params.append(delim).append(param.getKey()).append(" ").append(sqlType(param.getValue()));
+            delim = ", ";
+        }
+        return params.toString();
+    }
+
+    /**
+     * Binds the value with the JDBC type of the attribute so that no implicit casts are needed on the server
+     * @param ps
+     * @param index
+     * @param type
+     * @param value
+     * @throws SQLException
+     */
+    default void bind(PreparedStatement ps, int index, AttributeType type, String value) throws SQLException {
+        switch (type) {
+            case INTEGER:
+                ps.setInt(index, Integer.parseInt(value));
+                break;
+            case DOUBLE:
+                ps.setDouble(index, Double.parseDouble(value));
+                break;
+            case DATE:
+                ps.setDate(index, Date.valueOf(value));
+                break;
+            case TIME:
+                ps.setTime(index, Time.valueOf(value));
+                break;
+            case TIMESTAMP:
+                ps.setTimestamp(index, Timestamp.valueOf(value));
+                break;
+            default:
+                ps.setString(index, value);
+        }
+    }
+
+    /**
+     * Forward-only, read-only statement whose rows are fetched from the server in batches while they are consumed,
+     * instead of buffering the whole result in the JVM
+     * @param connection
+     * @param fetchSize rows per round trip
+     * @return
+     * @throws SQLException
+     */
+    default Statement streamingStatement(Connection connection, int fetchSize) throws SQLException {
+        Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        statement.setFetchSize(fetchSize);
+        return statement;
+    }
+
+    /**
+     * Query reading the estimated number of rows of a table from the catalog, the table name is its only parameter
+     * @return null if the engine keeps no estimate
+     */
+    default String rowCountEstimate() {
+        return null;
+    }
+
+    /**
+     * Statement returning the plan of the query in JSON format
+     * @param query
+     * @param analyze whether the query is executed to report actual rows and times
+     * @return null if the engine cannot explain in JSON
+     */
+    default String explain(String query, boolean analyze) {
+        return null;
+    }
+}
@@ -0,0 +1,137 @@
+package edu.uci.ics.tippers.dbms;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.common.PolicyEngineException;
+import org.apache.commons.dbutils.DbUtils;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Executes the guard branches of a guarded query concurrently, each on its own pooled connection,
+ * and merges their rows in the middleware removing duplicates on the primary key (id).
+ * Replaces a single UNION statement, which the DBMS evaluates branch by branch, with parallel index scans.
+ */
+public class ScatterGatherExecutor {
+
+    private static final int MERGE_BATCH = 4096;
+
+    /** initial size of the dedup set, it doubles (moving off heap once large) as rows arrive */
+    private static final int INITIAL_ROWS = 1 << 16;
+
+    private static ScatterGatherExecutor _instance;
+
+    private final ExecutorService executor;
+
+    private ScatterGatherExecutor(int parallelism) {
+        this.executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "scatter-gather");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static synchronized ScatterGatherExecutor getInstance() {
+        if (_instance == null)
+            _instance = new ScatterGatherExecutor(Math.max(1, PolicyConstants.SCATTER_GATHER_THREADS));
+        return _instance;
+    }
+
+    /**
+     * Runs every branch concurrently and merges the rows of all branches
+     * @param branches complete statements over the base table, each returning the id column
+     * @param resultCheck whether the merged rows should be kept in the result
+     * @return merged result with the elapsed time from the first submission to the last row,
+     * MAX_DURATION if the branches did not finish in time
+     * @throws PolicyEngineException
+     */
+    public QueryResult execute(List<String> branches, boolean resultCheck) throws PolicyEngineException {
+        QueryResult queryResult = new QueryResult();
+        queryResult.setResultsCheck(resultCheck);
+        LongHashSet seen = new LongHashSet(INITIAL_ROWS, true);
+        List<Statement> statements = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> futures = new ArrayList<>();
+        Instant start = Instant.now();
+        for (String branch : branches)
+            futures.add(executor.submit(() -> runBranch(branch, seen, statements)));
+        long deadline = System.currentTimeMillis() + PolicyConstants.MAX_DURATION.toMillis();
+        try {
+            for (Future<?> future : futures)
+                future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            System.out.println("Cancelling the guard branches. Timeout occurred");
+            cancel(futures, statements);
+            queryResult.setTimeTaken(PolicyConstants.MAX_DURATION);
+            return queryResult;
+        } catch (InterruptedException | ExecutionException e) {
+            cancel(futures, statements);
+            e.printStackTrace();
+            throw new PolicyEngineException("Failed to query the database. " + e);
+        }
+        queryResult.setTimeTaken(Duration.between(start, Instant.now()));
+        queryResult.setResultCount(seen.size());
+        if (resultCheck)
+            queryResult.setResultIds(seen);
+        return queryResult;
+    }
+
+    /**
+     * Streams the ids of the branch into the shared set in batches to keep contention on the set low
+     */
+    private Void runBranch(String branch, LongHashSet seen, List<Statement> statements) throws SQLException {
+        Connection connection = null;
+        Statement statement = null;
+        try {
+            connection = PolicyConstants.getDataSource().getConnection();
+            //rows are streamed so that a branch does not buffer its whole result before merging
+            statement = PolicyConstants.getDialect().streamingStatement(connection, PolicyConstants.STREAM_FETCH_SIZE);
+            statement.setQueryTimeout((int) Math.max(1, PolicyConstants.MAX_DURATION.getSeconds()));
+            statements.add(statement);
+            ResultSet rs = statement.executeQuery(branch);
+            long[] batch = new long[MERGE_BATCH];
+            int n = 0;
+            while (rs.next()) {
+                batch[n++] = rs.getLong("id");
+                if (n == MERGE_BATCH) {
+                    synchronized (seen) {
+                        seen.addAll(batch, n);
+                    }
+                    n = 0;
+                }
+            }
+            synchronized (seen) {
+                seen.addAll(batch, n);
+            }
+            rs.close();
+            return null;
+        } catch (SQLException e) {
+            System.out.println("Exception raised by : " + branch);
+            throw e;
+        } finally {
+            DbUtils.closeQuietly(statement);
+            DbUtils.closeQuietly(connection);
+        }
+    }
+
+    private void cancel(List<Future<?>> futures, List<Statement> statements) {
+        synchronized (statements) {
+            for (Statement statement : statements) {
+                try {
+                    statement.cancel();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        for (Future<?> future : futures)
+            future.cancel(true);
+    }
+}
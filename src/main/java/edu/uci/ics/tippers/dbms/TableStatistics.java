@@ -0,0 +1,136 @@
+package edu.uci.ics.tippers.dbms;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.common.PolicyEngineException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Row counts of tables for the cost model, read from the catalog of the DBMS (information_schema.TABLES,
+ * pg_class.reltuples, SYSCAT.TABLES) instead of counting the table, or counted once with COUNT(*)
+ * if statistics_exact = true or the catalog has no estimate yet.
+ * Counts are cached for statistics_ttl, a stale count is still returned while it is refreshed in the background.
+ * Rows reported to the IngestWatermark are added to the count of the base table between refreshes.
+ */
+public class TableStatistics {
+
+    private static TableStatistics _instance;
+
+    private final Map<String, RowCount> rowCounts = new ConcurrentHashMap<>();
+
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "table-statistics");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private TableStatistics() {
+        IngestWatermark.getInstance().addListener(rows -> {
+            RowCount rowCount = rowCounts.get(PolicyConstants.TABLE_NAME.toLowerCase());
+            if (rowCount != null) rowCount.add(rows);
+        });
+    }
+
+    public static synchronized TableStatistics getInstance() {
+        if (_instance == null) _instance = new TableStatistics();
+        return _instance;
+    }
+
+    private static class RowCount {
+
+        private volatile long rows;
+
+        private volatile long loadedAt;
+
+        private volatile boolean refreshing;
+
+        RowCount(long rows) {
+            this.rows = rows;
+            this.loadedAt = System.currentTimeMillis();
+        }
+
+        synchronized void add(long ingested) {
+            rows += ingested;
+        }
+
+        boolean isStale() {
+            return !PolicyConstants.STATISTICS_TTL.isZero()
+                    && System.currentTimeMillis() - loadedAt > PolicyConstants.STATISTICS_TTL.toMillis();
+        }
+    }
+
+    /**
+     * Number of rows of the table, loaded on the first call and refreshed in the background once stale
+     * @param table
+     * @return
+     * @throws PolicyEngineException
+     */
+    public long getRowCount(String table) throws PolicyEngineException {
+        String key = table.toLowerCase();
+        RowCount rowCount = rowCounts.get(key);
+        if (rowCount == null) {
+            synchronized (this) {
+                rowCount = rowCounts.get(key);
+                if (rowCount == null) {
+                    rowCount = new RowCount(load(table));
+                    rowCounts.put(key, rowCount);
+                }
+            }
+        } else if (rowCount.isStale() && !rowCount.refreshing) {
+            rowCount.refreshing = true;
+            RowCount stale = rowCount;
+            refresher.execute(() -> {
+                try {
+                    rowCounts.put(key, new RowCount(load(table)));
+                } catch (PolicyEngineException e) {
+                    System.out.println("Refreshing the row count of " + table + " failed, keeping the old count");
+                    stale.loadedAt = System.currentTimeMillis();
+                } finally {
+                    stale.refreshing = false;
+                }
+            });
+        }
+        return rowCount.rows;
+    }
+
+    /**
+     * Drops the cached count of the table, e.g. after it was reloaded, it is read again on the next call
+     * @param table
+     */
+    public void invalidate(String table) {
+        rowCounts.remove(table.toLowerCase());
+    }
+
+    private long load(String table) throws PolicyEngineException {
+        if (!PolicyConstants.STATISTICS_EXACT) {
+            long estimate = estimate(table);
+            if (estimate > 0) return estimate;
+        }
+        return new QueryManager().runTimedCount("Select * from " + table).getResultCount();
+    }
+
+    /**
+     * @return estimated rows of the table in the catalog, 0 if there is none (e.g. not analyzed yet)
+     */
+    private long estimate(String table) {
+        String sql = PolicyConstants.getDialect().rowCountEstimate();
+        if (sql == null) return 0;
+        try (Connection connection = PolicyConstants.getDataSource().getConnection();
+             PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setString(1, table);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+}
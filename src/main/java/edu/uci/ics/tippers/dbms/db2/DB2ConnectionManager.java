@@ -48,11 +48,20 @@ public class DB2ConnectionManager {
     public Connection getConnection() throws PolicyEngineException {
         if (connection != null)
             return connection;
+        connection = newConnection();
+        return connection;
+    }
+
+    /**
+     * Opens a new connection that is not shared with the rest of the engine,
+     * used by components executing statements concurrently
+     * @return
+     * @throws PolicyEngineException
+     */
+    public Connection newConnection() throws PolicyEngineException {
         try {
-            connection = DriverManager.getConnection(
+            return DriverManager.getConnection(
                     String.format("jdbc:db2://%s:%s/%s", SERVER, PORT, DATABASE), USER, PASSWORD);
-
-            return connection;
         } catch (SQLException e) {
             e.printStackTrace();
             throw new PolicyEngineException("Error Connecting to DB2");
@@ -0,0 +1,53 @@
+package edu.uci.ics.tippers.dbms.db2;
+
+import edu.uci.ics.tippers.common.AttributeType;
+import edu.uci.ics.tippers.dbms.SQLDialect;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DB2 combines the guard indexes with index ORing, so guards are combined with OR and the access path
+ * is requested with an optimization guideline appended to the statement:
+ * IXSCAN when a single index is used and IXOR when the guards use several indexes
+ */
+public class DB2Dialect implements SQLDialect {
+
+    @Override
+    public String scan(String table, String index) {
+        return table;
+    }
+
+    @Override
+    public String hint(String query, String table, List<String> indexes) {
+        if (indexes == null || indexes.isEmpty()) return query;
+        LinkedHashSet<String> distinct = new LinkedHashSet<>(indexes);
+        String guideline;
+        if (distinct.size() == 1)
+            guideline = "<IXSCAN TABLE=\"" + table.toUpperCase() + "\" INDEX=\"" + distinct.iterator().next() + "\"/>";
+        else
+            guideline = "<IXOR TABLE=\"" + table.toUpperCase() + "\"/>";
+        return query + " /* <OPTGUIDELINES>" + guideline + "</OPTGUIDELINES> */";
+    }
+
+    @Override
+    public boolean combinesIndexesOnOr() {
+        return true;
+    }
+
+    @Override
+    public List<String> createFunction(String name, Map<String, AttributeType> parameters, String expression) {
+        return Collections.singletonList("CREATE OR REPLACE FUNCTION " + name + "(" + functionParameters(parameters)
+                + ") RETURNS INT LANGUAGE SQL DETERMINISTIC NO EXTERNAL ACTION CONTAINS SQL RETURN " + expression);
+    }
+
+    /**
+     * CARD is -1 until RUNSTATS has been run on the table
+     */
+    @Override
+    public String rowCountEstimate() {
+        return "SELECT CARD FROM SYSCAT.TABLES WHERE TABSCHEMA = CURRENT SCHEMA AND TABNAME = UPPER(?)";
+    }
+}
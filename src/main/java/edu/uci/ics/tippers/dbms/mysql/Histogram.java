@@ -21,13 +21,14 @@ import java.util.*;
 /**
  * Generate and write histograms to JSON files
  * Histogram Generation specific to MySQL
+ * Loads the versioned binary histograms written by {@link HistogramManager} when present
  */
 public class Histogram {
 
 
     private static Writer writer = new Writer();
 
-    private static Map<String, List<Bucket>> bucketMap;
+    private static volatile HistogramSnapshot snapshot;
 
     private static Histogram _instance;
 
@@ -36,9 +37,14 @@ public class Histogram {
     private Histogram() {
         histDirectory = new File(String.valueOf(Paths.get(PolicyConstants.HISTOGRAM_DIR.toLowerCase(),
                 PolicyConstants.TABLE_NAME.toLowerCase())));
-        if (histDirectory.isDirectory() && Objects.requireNonNull(histDirectory.list()).length == 0)
-            writeBuckets(PolicyConstants.TABLE_NAME);
-        else retrieveBuckets(PolicyConstants.ATTRIBUTES);
+        File binary = new File(histDirectory, HistogramManager.BINARY_FILE);
+        if (binary.isFile())
+            snapshot = HistogramManager.readBinary(binary.toPath());
+        else {
+            if (histDirectory.isDirectory() && Objects.requireNonNull(histDirectory.list()).length == 0)
+                writeBuckets(PolicyConstants.TABLE_NAME);
+            retrieveBuckets(PolicyConstants.ATTRIBUTES);
+        }
     }
 
     public static Histogram getInstance() {
@@ -47,11 +53,37 @@ public class Histogram {
         return _instance;
     }
 
-    private static List<Bucket> getHistogram(String attribute, String attribute_type, String histogram_type) {
+    /**
+     * Version of the histograms currently used by the estimator without forcing them to be loaded
+     * @return 0 if no versioned histogram has been loaded
+     */
+    public static long currentVersion() {
+        HistogramSnapshot current = snapshot;
+        return current == null ? 0 : current.getVersion();
+    }
+
+    /**
+     * Generation time of the histograms currently used by the estimator without forcing them to be loaded
+     * @return epoch millis, 0 if unknown
+     */
+    public static long currentBuiltAt() {
+        HistogramSnapshot current = snapshot;
+        return current == null ? 0 : current.getBuiltAt();
+    }
+
+    /**
+     * Replaces the histograms used by the running estimator
+     * @param next
+     */
+    void swap(HistogramSnapshot next) {
+        snapshot = next;
+    }
+
+    private static List<Bucket> getHistogram(Connection conn, String attribute, String attribute_type,
+                                             String histogram_type) {
         if(PolicyConstants.DBMS_CHOICE.equalsIgnoreCase(PolicyConstants.PGSQL_DBMS)) {
             throw new PolicyEngineException("Histogram generation only supported on MySQL");
         }
-        Connection conn = MySQLConnectionManager.getInstance().getConnection();
         List<Bucket> hBuckets = new ArrayList<>();
         PreparedStatement ps = null;
         if (attribute_type.equalsIgnoreCase("String") && histogram_type.equalsIgnoreCase("singleton")) {
@@ -262,60 +294,66 @@ public class Histogram {
         return hBuckets;
     }
 
+    /**
+     * Reads the current MySQL histograms of every histogram attribute of the table
+     * @param table_name
+     * @return attribute name to its buckets, in attribute order
+     */
+    static Map<String, List<Bucket>> generateBuckets(String table_name) {
+        Map<String, List<Bucket>> buckets = new LinkedHashMap<>();
+        //borrowed from the pool since refreshes run next to the ingest using the shared connection
+        try (Connection conn = PolicyConstants.getDataSource().getConnection()) {
+            if(table_name.equalsIgnoreCase(PolicyConstants.WIFI_TABLE)) {
+                buckets.put(PolicyConstants.START_DATE, getHistogram(conn, PolicyConstants.START_DATE, "Date", "singleton"));
+                buckets.put(PolicyConstants.START_TIME, getHistogram(conn, PolicyConstants.START_TIME, "Time", "equiheight"));
+                buckets.put(PolicyConstants.USERID_ATTR, getHistogram(conn, PolicyConstants.USERID_ATTR, "Integer", "equiheight"));
+                buckets.put(PolicyConstants.LOCATIONID_ATTR, getHistogram(conn, PolicyConstants.LOCATIONID_ATTR, "String", "singleton"));
+                buckets.put(PolicyConstants.GROUP_ATTR, getHistogram(conn, PolicyConstants.GROUP_ATTR, "String", "singleton"));
+                buckets.put(PolicyConstants.PROFILE_ATTR, getHistogram(conn, PolicyConstants.PROFILE_ATTR, "String", "singleton"));
+            }
+            else if(table_name.equalsIgnoreCase(PolicyConstants.ORDERS_TABLE)) {
+                buckets.put(PolicyConstants.ORDER_CUSTOMER_KEY, getHistogram(conn, PolicyConstants.ORDER_CUSTOMER_KEY, "Integer", "equiheight"));
+                buckets.put(PolicyConstants.ORDER_PRIORITY, getHistogram(conn, PolicyConstants.ORDER_PRIORITY, "String", "singleton"));
+                buckets.put(PolicyConstants.ORDER_CLERK, getHistogram(conn, PolicyConstants.ORDER_CLERK, "String", "singleton"));
+                buckets.put(PolicyConstants.ORDER_PROFILE, getHistogram(conn, PolicyConstants.ORDER_PROFILE, "String", "singleton"));
+                buckets.put(PolicyConstants.ORDER_DATE, getHistogram(conn, PolicyConstants.ORDER_DATE, "Date", "equiheight"));
+                buckets.put(PolicyConstants.ORDER_TOTAL_PRICE, getHistogram(conn, PolicyConstants.ORDER_TOTAL_PRICE, "Double", "equiheight"));
+            }
+            else if(table_name.equalsIgnoreCase(PolicyConstants.MALL_TABLE)){
+                buckets.put(PolicyConstants.M_SHOP_NAME, getHistogram(conn, PolicyConstants.M_SHOP_NAME, "String", "singleton"));
+                buckets.put(PolicyConstants.M_DATE, getHistogram(conn, PolicyConstants.M_DATE, "Date", "singleton"));
+                buckets.put(PolicyConstants.M_TIME, getHistogram(conn, PolicyConstants.M_TIME, "Time", "equiheight"));
+                buckets.put(PolicyConstants.M_INTEREST, getHistogram(conn, PolicyConstants.M_INTEREST, "String", "singleton"));
+                buckets.put(PolicyConstants.M_DEVICE, getHistogram(conn, PolicyConstants.M_DEVICE, "Integer", "equiheight"));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new PolicyEngineException("Failed to read the histograms of " + table_name);
+        }
+        return buckets;
+    }
+
     public void writeBuckets(String table_name) {
         String filePath = new File(String.valueOf(Paths.get(PolicyConstants.HISTOGRAM_DIR.toLowerCase(), table_name.toLowerCase()))).getPath();
-        if(table_name.equalsIgnoreCase(PolicyConstants.WIFI_TABLE)) {
-            writer.writeJSONToFile(getHistogram(PolicyConstants.START_DATE, "Date", "singleton"),
-                    filePath, PolicyConstants.START_DATE);
-            writer.writeJSONToFile(getHistogram(PolicyConstants.START_TIME, "Time", "equiheight"),
-                    filePath, PolicyConstants.START_TIME);
-            writer.writeJSONToFile(getHistogram(PolicyConstants.USERID_ATTR, "Integer", "equiheight"),
-                    filePath, PolicyConstants.USERID_ATTR);
-            writer.writeJSONToFile(getHistogram(PolicyConstants.LOCATIONID_ATTR, "String", "singleton"),
-                    filePath, PolicyConstants.LOCATIONID_ATTR);
-            writer.writeJSONToFile(getHistogram(PolicyConstants.GROUP_ATTR, "String", "singleton"),
-                    filePath, PolicyConstants.GROUP_ATTR);
-            writer.writeJSONToFile(getHistogram(PolicyConstants.PROFILE_ATTR, "String", "singleton"),
-                    filePath, PolicyConstants.PROFILE_ATTR);
-        }
-        else if(table_name.equalsIgnoreCase(PolicyConstants.ORDERS_TABLE)) {
-            writer.writeJSONToFile(getHistogram(PolicyConstants.ORDER_CUSTOMER_KEY, "Integer", "equiheight"),
-                    filePath, PolicyConstants.ORDER_CUSTOMER_KEY);
-            writer.writeJSONToFile(getHistogram(PolicyConstants.ORDER_PRIORITY, "String", "singleton"),
-                    filePath, PolicyConstants.ORDER_PRIORITY);
-            writer.writeJSONToFile(getHistogram(PolicyConstants.ORDER_CLERK, "String", "singleton"),
-                    filePath, PolicyConstants.ORDER_CLERK);
-            writer.writeJSONToFile(getHistogram(PolicyConstants.ORDER_PROFILE, "String", "singleton"),
-                    filePath, PolicyConstants.ORDER_PROFILE);
-            writer.writeJSONToFile(getHistogram(PolicyConstants.ORDER_DATE, "Date", "equiheight"),
-                    filePath, PolicyConstants.ORDER_DATE);
-            writer.writeJSONToFile(getHistogram(PolicyConstants.ORDER_TOTAL_PRICE, "Double", "equiheight"),
-                    filePath, PolicyConstants.ORDER_TOTAL_PRICE);
-        }
-        else if(table_name.equalsIgnoreCase(PolicyConstants.MALL_TABLE)){
-            writer.writeJSONToFile(getHistogram(PolicyConstants.M_SHOP_NAME, "String", "singleton"),
-                    filePath, PolicyConstants.M_SHOP_NAME);
-            writer.writeJSONToFile(getHistogram(PolicyConstants.M_DATE, "Date", "singleton"),
-                    filePath, PolicyConstants.M_DATE);
-            writer.writeJSONToFile(getHistogram(PolicyConstants.M_TIME, "Time", "equiheight"),
-                    filePath, PolicyConstants.M_TIME);
-            writer.writeJSONToFile(getHistogram(PolicyConstants.M_INTEREST, "String", "singleton"),
-                    filePath, PolicyConstants.M_INTEREST);
-            writer.writeJSONToFile(getHistogram(PolicyConstants.M_DEVICE, "Integer", "equiheight"),
-                    filePath, PolicyConstants.M_DEVICE);
-        }
+        for (Map.Entry<String, List<Bucket>> entry : generateBuckets(table_name).entrySet())
+            writer.writeJSONToFile(entry.getValue(), filePath, entry.getKey());
     }
 
     public Map<String, List<Bucket>> getBucketMap() {
-        return bucketMap;
+        return snapshot.getBuckets();
+    }
+
+    public HistogramSnapshot getSnapshot() {
+        return snapshot;
     }
 
     private void retrieveBuckets(List<String> attribute_names) {
-        bucketMap = new HashMap<>();
+        Map<String, List<Bucket>> bucketMap = new HashMap<>();
         for (String attribute : attribute_names) {
             bucketMap.put(attribute, sortBuckets(parseJSONList
                     (Reader.readTxt(String.valueOf(Paths.get(histDirectory.getPath(), attribute + ".json"))))));
         }
+        snapshot = new HistogramSnapshot(0, 0, bucketMap);
     }
 
     public List<Bucket> sortBuckets(List<Bucket> buckets) {
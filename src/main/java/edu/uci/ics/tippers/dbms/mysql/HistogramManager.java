@@ -0,0 +1,247 @@
+package edu.uci.ics.tippers.dbms.mysql;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.common.PolicyEngineException;
+import edu.uci.ics.tippers.model.guard.Bucket;
+import edu.uci.ics.tippers.persistor.GuardPersistor;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the histograms used for selectivity estimation in sync with the data being ingested
+ * Histograms are regenerated either on a fixed schedule or after a number of rows have been ingested,
+ * written to a versioned binary file and swapped into the running {@link Histogram} estimator.
+ * Guards costed against an older version are marked dirty so that they are re-costed.
+ *
+ * Binary file layout (big endian):
+ * magic (int), format version (short), histogram version (long), built at (long), attribute count (int)
+ * per attribute: name (string), bucket count (int)
+ * per bucket: flags (byte), [value], [lower], [upper] (strings present as per flags),
+ * cumulfreq (double), freq (double), numberOfItems (int)
+ * strings are written as length (short) followed by UTF-8 bytes
+ */
+public class HistogramManager {
+
+    public static final String BINARY_FILE = "histogram.bin";
+
+    private static final int MAGIC = 0x53485354;
+    private static final short FORMAT_VERSION = 1;
+
+    private static final byte HAS_VALUE = 1;
+    private static final byte HAS_LOWER = 2;
+    private static final byte HAS_UPPER = 4;
+
+    private static HistogramManager _instance;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong ingestedRows = new AtomicLong();
+
+    private final AtomicBoolean refreshPending = new AtomicBoolean(false);
+
+    private ScheduledFuture<?> scheduledRefresh;
+
+    private HistogramManager() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "histogram-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static synchronized HistogramManager getInstance() {
+        if (_instance == null)
+            _instance = new HistogramManager();
+        return _instance;
+    }
+
+    /**
+     * Starts the periodic refresh if histogram_refresh_interval is configured
+     */
+    public synchronized void start() {
+        long interval = PolicyConstants.HISTOGRAM_REFRESH_INTERVAL.getSeconds();
+        if (interval <= 0 || scheduledRefresh != null) return;
+        scheduledRefresh = scheduler.scheduleWithFixedDelay(this::refreshQuietly, interval, interval, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+            scheduledRefresh = null;
+        }
+    }
+
+    /**
+     * Called by the data loaders after a batch has been written to the table
+     * Triggers an asynchronous refresh once histogram_refresh_rows rows have been ingested
+     * @param rows number of rows ingested in the batch
+     */
+    public void rowsIngested(long rows) {
+        if (PolicyConstants.HISTOGRAM_REFRESH_ROWS <= 0) return;
+        if (ingestedRows.addAndGet(rows) >= PolicyConstants.HISTOGRAM_REFRESH_ROWS
+                && refreshPending.compareAndSet(false, true)) {
+            scheduler.execute(() -> {
+                try {
+                    refreshQuietly();
+                } finally {
+                    refreshPending.set(false);
+                }
+            });
+        }
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (PolicyEngineException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Rebuilds the MySQL histograms of the table, persists them as the next version
+     * and swaps them into the running estimator
+     * @return the new histograms
+     */
+    public synchronized HistogramSnapshot refresh() {
+        ingestedRows.set(0);
+        analyzeTable(PolicyConstants.TABLE_NAME, PolicyConstants.ATTRIBUTES);
+        Map<String, List<Bucket>> buckets = Histogram.generateBuckets(PolicyConstants.TABLE_NAME);
+        if (buckets.isEmpty())
+            throw new PolicyEngineException("No histogram attributes for table " + PolicyConstants.TABLE_NAME);
+        Histogram histogram = Histogram.getInstance();
+        for (List<Bucket> attrBuckets : buckets.values())
+            histogram.sortBuckets(attrBuckets);
+        HistogramSnapshot next = new HistogramSnapshot(Histogram.currentVersion() + 1,
+                System.currentTimeMillis(), buckets);
+        writeBinary(Paths.get(PolicyConstants.HISTOGRAM_DIR.toLowerCase(),
+                PolicyConstants.TABLE_NAME.toLowerCase(), BINARY_FILE), next);
+        histogram.swap(next);
+        int stale = GuardPersistor.getInstance().markDirty(new Timestamp(next.getBuiltAt()));
+        System.out.println("Histogram version " + next.getVersion() + " loaded, " + stale + " guards marked for re-costing");
+        return next;
+    }
+
+    private void analyzeTable(String table_name, Collection<String> attributes) {
+        String analyze = "ANALYZE TABLE " + table_name + " UPDATE HISTOGRAM ON " + String.join(", ", attributes)
+                + " WITH " + PolicyConstants.HISTOGRAM_BUCKETS + " BUCKETS";
+        try (Connection conn = PolicyConstants.getDataSource().getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute(analyze);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new PolicyEngineException("Failed to update histograms of " + table_name);
+        }
+    }
+
+    /**
+     * Writes the histograms to a temporary file and atomically moves it over the previous version
+     * so that readers never map a partially written file
+     * @param file
+     * @param snapshot
+     */
+    public static void writeBinary(Path file, HistogramSnapshot snapshot) {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeShort(FORMAT_VERSION);
+                out.writeLong(snapshot.getVersion());
+                out.writeLong(snapshot.getBuiltAt());
+                out.writeInt(snapshot.getBuckets().size());
+                for (Map.Entry<String, List<Bucket>> entry : snapshot.getBuckets().entrySet()) {
+                    writeString(out, entry.getKey());
+                    out.writeInt(entry.getValue().size());
+                    for (Bucket b : entry.getValue()) {
+                        byte flags = 0;
+                        if (b.getValue() != null) flags |= HAS_VALUE;
+                        if (b.getLower() != null) flags |= HAS_LOWER;
+                        if (b.getUpper() != null) flags |= HAS_UPPER;
+                        out.writeByte(flags);
+                        if (b.getValue() != null) writeString(out, b.getValue());
+                        if (b.getLower() != null) writeString(out, b.getLower());
+                        if (b.getUpper() != null) writeString(out, b.getUpper());
+                        out.writeDouble(b.getCumulfreq());
+                        out.writeDouble(b.getFreq());
+                        out.writeInt(b.getNumberOfItems());
+                    }
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new PolicyEngineException("Failed to write histogram file " + file);
+        }
+    }
+
+    /**
+     * Memory maps and decodes a binary histogram file
+     * @param file
+     * @return
+     */
+    public static HistogramSnapshot readBinary(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC)
+                throw new PolicyEngineException("Not a histogram file: " + file);
+            short format = buffer.getShort();
+            if (format != FORMAT_VERSION)
+                throw new PolicyEngineException("Unsupported histogram format " + format + " in " + file);
+            long version = buffer.getLong();
+            long builtAt = buffer.getLong();
+            int attributes = buffer.getInt();
+            Map<String, List<Bucket>> buckets = new HashMap<>();
+            for (int i = 0; i < attributes; i++) {
+                String attribute = readString(buffer);
+                int count = buffer.getInt();
+                List<Bucket> attrBuckets = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    byte flags = buffer.get();
+                    Bucket b = new Bucket();
+                    b.setAttribute(attribute);
+                    if ((flags & HAS_VALUE) != 0) b.setValue(readString(buffer));
+                    if ((flags & HAS_LOWER) != 0) b.setLower(readString(buffer));
+                    if ((flags & HAS_UPPER) != 0) b.setUpper(readString(buffer));
+                    b.setCumulfreq(buffer.getDouble());
+                    b.setFreq(buffer.getDouble());
+                    b.setNumberOfItems(buffer.getInt());
+                    attrBuckets.add(b);
+                }
+                buckets.put(attribute, attrBuckets);
+            }
+            return new HistogramSnapshot(version, builtAt, buckets);
+        } catch (IOException | BufferUnderflowException e) {
+            e.printStackTrace();
+            throw new PolicyEngineException("Failed to read histogram file " + file);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
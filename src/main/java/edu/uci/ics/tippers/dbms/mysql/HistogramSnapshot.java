@@ -0,0 +1,41 @@
+package edu.uci.ics.tippers.dbms.mysql;
+
+import edu.uci.ics.tippers.model.guard.Bucket;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable set of histograms for one table together with the version it was generated as.
+ * Swapped as a single reference so that estimators never see buckets from two different versions.
+ */
+public class HistogramSnapshot {
+
+    private final long version;
+
+    private final long builtAt;
+
+    private final Map<String, List<Bucket>> buckets;
+
+    public HistogramSnapshot(long version, long builtAt, Map<String, List<Bucket>> buckets) {
+        this.version = version;
+        this.builtAt = builtAt;
+        this.buckets = Collections.unmodifiableMap(buckets);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return epoch millis at which the histograms were generated, 0 if unknown (e.g. legacy JSON histograms)
+     */
+    public long getBuiltAt() {
+        return builtAt;
+    }
+
+    public Map<String, List<Bucket>> getBuckets() {
+        return buckets;
+    }
+}
@@ -52,12 +52,22 @@ public class MySQLConnectionManager {
     public Connection getConnection() throws PolicyEngineException {
         if (connection != null)
             return connection;
+        connection = newConnection();
+        System.out.println("--- Connected to " + DATABASE + " on server " + SERVER + "---");
+        return connection;
+    }
+
+    /**
+     * Opens a new connection that is not shared with the rest of the engine,
+     * used by components executing statements concurrently
+     * @return
+     * @throws PolicyEngineException
+     */
+    public Connection newConnection() throws PolicyEngineException {
         try {
-            connection = DriverManager.getConnection(
+            return DriverManager.getConnection(
                     String.format("jdbc:mysql://%s:%s/%s?useLegacyDatetimeCode=false&serverTimezone=America/Los_Angeles&rewriteBatchedStatements=true",
                             SERVER, PORT, DATABASE), USER, PASSWORD);
-            System.out.println("--- Connected to " + DATABASE + " on server " + SERVER + "---");
-            return connection;
         } catch (SQLException e) {
             e.printStackTrace();
             throw new PolicyEngineException("Error Connecting to MySQL");
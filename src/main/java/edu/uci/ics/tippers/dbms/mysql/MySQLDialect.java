@@ -0,0 +1,59 @@
+package edu.uci.ics.tippers.dbms.mysql;
+
+import edu.uci.ics.tippers.dbms.SQLDialect;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * MySQL does not combine index scans for a large number of OR'ed guards, so every guard is scanned
+ * with its own index forced through FORCE INDEX and the scans are combined with UNION
+ */
+public class MySQLDialect implements SQLDialect {
+
+    @Override
+    public String scan(String table, String index) {
+        if (index == null) return table;
+        return table + " force index (" + index + ")";
+    }
+
+    @Override
+    public String hint(String query, String table, List<String> indexes) {
+        return query;
+    }
+
+    @Override
+    public boolean combinesIndexesOnOr() {
+        return false;
+    }
+
+    /**
+     * Connector/J streams rows one at a time only with a fetch size of Integer.MIN_VALUE,
+     * a positive fetch size needs useCursorFetch which copies the result into a server side temporary table first
+     */
+    @Override
+    public Statement streamingStatement(Connection connection, int fetchSize) throws SQLException {
+        Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        statement.setFetchSize(Integer.MIN_VALUE);
+        return statement;
+    }
+
+    /**
+     * TABLE_ROWS of InnoDB is sampled and can be off by some percent, enough for selectivities
+     */
+    @Override
+    public String rowCountEstimate() {
+        return "SELECT TABLE_ROWS FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND UPPER(TABLE_NAME) = UPPER(?)";
+    }
+
+    /**
+     * EXPLAIN ANALYZE has no JSON format, the plan is only estimated
+     */
+    @Override
+    public String explain(String query, boolean analyze) {
+        return "EXPLAIN FORMAT=JSON " + query;
+    }
+}
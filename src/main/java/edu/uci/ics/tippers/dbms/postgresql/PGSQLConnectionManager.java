@@ -49,6 +49,18 @@ public class PGSQLConnectionManager {
     public Connection getConnection() throws PolicyEngineException {
         if(connection != null)
             return  connection;
+        connection = newConnection();
+        System.out.println("--- Connected to pSQL " + DATABASE + " on server " + SERVER + "---");
+        return connection;
+    }
+
+    /**
+     * Opens a new connection that is not shared with the rest of the engine,
+     * used by components executing statements concurrently
+     * @return
+     * @throws PolicyEngineException
+     */
+    public Connection newConnection() throws PolicyEngineException {
         try {
             Class.forName("org.postgresql.Driver");
         } catch (ClassNotFoundException e) {
@@ -56,13 +68,8 @@ public class PGSQLConnectionManager {
             e.printStackTrace();
         }
         try {
-            connection = DriverManager.getConnection(
+            return DriverManager.getConnection(
                     String.format("jdbc:postgresql://%s:%s/%s", SERVER, PORT, DATABASE), USER, PASSWORD);
-
-            System.out.println("--- Connected to pSQL " + DATABASE + " on server " + SERVER + "---");
-
-
-            return connection;
         } catch (SQLException e) {
             e.printStackTrace();
             throw new PolicyEngineException("Error Connecting to Postgres");
@@ -0,0 +1,92 @@
+package edu.uci.ics.tippers.dbms.postgresql;
+
+import edu.uci.ics.tippers.common.AttributeType;
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.dbms.SQLDialect;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PostgreSQL evaluates OR'ed guards with a BitmapOr of the guard indexes, so guards are combined with OR
+ * and the indexes are requested with a pg_hint_plan BitmapScan hint at the head of the statement.
+ * Without pg_hint_plan installed the hint is an ordinary comment and the planner chooses on its own.
+ */
+public class PGSQLDialect implements SQLDialect {
+
+    @Override
+    public String scan(String table, String index) {
+        return table;
+    }
+
+    @Override
+    public String hint(String query, String table, List<String> indexes) {
+        if (indexes == null || indexes.isEmpty()) return query;
+        return "/*+ BitmapScan(" + table.toLowerCase() + " " + String.join(" ", new LinkedHashSet<>(indexes))
+                + ") */ " + query;
+    }
+
+    @Override
+    public boolean combinesIndexesOnOr() {
+        return true;
+    }
+
+    /**
+     * Prevents the CTE from being materialized (PostgreSQL 12 and later) so that the query predicates
+     * are pushed into the guarded expression
+     */
+    @Override
+    public String cteItem(String name, String body) {
+        if (PolicyConstants.CTE_INLINE)
+            return name + " as NOT MATERIALIZED (" + body + ")";
+        return name + " as (" + body + ")";
+    }
+
+    /**
+     * SQL function declared IMMUTABLE so that the planner can inline it into the guarded query
+     */
+    @Override
+    public List<String> createFunction(String name, Map<String, AttributeType> parameters, String expression) {
+        return Collections.singletonList("CREATE OR REPLACE FUNCTION " + name + "(" + functionParameters(parameters)
+                + ") RETURNS INT AS $$ SELECT " + expression + " $$ LANGUAGE SQL IMMUTABLE");
+    }
+
+    /**
+     * The driver only fetches with a cursor inside a transaction, so autocommit is turned off;
+     * the connection pool rolls back and restores autocommit when the connection is returned
+     */
+    @Override
+    public Statement streamingStatement(Connection connection, int fetchSize) throws SQLException {
+        connection.setAutoCommit(false);
+        return SQLDialect.super.streamingStatement(connection, fetchSize);
+    }
+
+    /**
+     * reltuples is updated by VACUUM and ANALYZE, it is 0 or -1 for a table that has not been analyzed
+     */
+    @Override
+    public String rowCountEstimate() {
+        return "SELECT reltuples::bigint FROM pg_class WHERE relname = lower(?) AND relkind IN ('r', 'p')"
+                + " AND pg_table_is_visible(oid)";
+    }
+
+    /**
+     * The pg_hint_plan hint stays at the head of the statement so that the explained plan is the hinted one
+     */
+    @Override
+    public String explain(String query, boolean analyze) {
+        String body = query.trim();
+        String hint = "";
+        if (body.startsWith("/*+")) {
+            int end = body.indexOf("*/") + 2;
+            hint = body.substring(0, end) + " ";
+            body = body.substring(end);
+        }
+        return hint + "EXPLAIN (FORMAT JSON" + (analyze ? ", ANALYZE" : "") + ") " + body;
+    }
+}
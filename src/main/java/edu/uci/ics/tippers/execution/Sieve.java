@@ -2,6 +2,7 @@ package edu.uci.ics.tippers.execution;
 
 import edu.uci.ics.tippers.common.PolicyConstants;
 import edu.uci.ics.tippers.common.PolicyEngineException;
+import edu.uci.ics.tippers.dbms.mysql.HistogramManager;
 import edu.uci.ics.tippers.execution.experiments.design.GuardGenExp;
 import edu.uci.ics.tippers.execution.experiments.performance.PolicyScaler;
 import edu.uci.ics.tippers.execution.experiments.performance.QueryPerformance;
@@ -15,6 +16,8 @@ public class Sieve {
         PolicyConstants.initialize();
         System.out.println("Running Sieve on " + PolicyConstants.DBMS_CHOICE + " at " + PolicyConstants.DBMS_LOCATION + " with "
                 + PolicyConstants.TABLE_NAME.toLowerCase() + " and " + PolicyConstants.getNumberOfTuples() + " tuples");
+        if(PolicyConstants.DBMS_CHOICE.equalsIgnoreCase(PolicyConstants.MYSQL_DBMS))
+            HistogramManager.getInstance().start();
         runSieve();
     }
 
@@ -5,8 +5,7 @@ import edu.uci.ics.tippers.dbms.QueryManager;
 import edu.uci.ics.tippers.dbms.QueryResult;
 import edu.uci.ics.tippers.fileop.Writer;
 import edu.uci.ics.tippers.generation.policy.WiFiDataSet.PolicyUtil;
-import edu.uci.ics.tippers.persistor.GuardPersistor;
-import edu.uci.ics.tippers.persistor.PolicyPersistor;
+import edu.uci.ics.tippers.model.guard.GuardCache;
 import edu.uci.ics.tippers.model.guard.GuardExp;
 import edu.uci.ics.tippers.model.guard.GuardPart;
 import edu.uci.ics.tippers.model.policy.BEPolicy;
@@ -27,11 +26,12 @@ public class DesignChoicesExperiment {
         String guard_query_with_hint_inline = guardExp.inlineRewrite(true);
         guard_query_with_hint_inline += "Select * from polEval where " + queryPredicates;
         String query_hint = "date_tree";
-        String guard_query_with_hint_query = "SELECT * from ( SELECT * from PRESENCE force index(" + query_hint
-                + ") where " + queryPredicates + " ) as P where " + guardExp.createQueryWithOR();
+        String guard_query_with_hint_query = "SELECT * from ( SELECT * from "
+                + PolicyConstants.getDialect().scan("PRESENCE", query_hint)
+                + " where " + queryPredicates + " ) as P where " + guardExp.createQueryWithOR();
         QueryResult execResult = null;
         if(!guardTO) {
-            execResult = queryManager.runTimedQueryExp(guard_query_with_hint_inline, 3);
+            execResult = queryManager.runTimedQueryExp(guardExp.hint(guard_query_with_hint_inline), 3);
             rString.append(execResult.getTimeTaken().toMillis()).append(",");
             if(execResult.getTimeTaken().equals(PolicyConstants.MAX_DURATION)) guardTO = true;
         }
@@ -49,15 +49,15 @@ public class DesignChoicesExperiment {
     }
 
     private String runGuardExpt(String query, List<Integer> queriers){
-        PolicyPersistor polper = PolicyPersistor.getInstance();
+        GuardCache guardCache = GuardCache.getInstance();
         double querySel = queryManager.checkSelectivity(query);
         StringBuilder finalString = new StringBuilder();
         for (int i = 0; i < queriers.size(); i++) {
             StringBuilder rString = new StringBuilder();
-            List<BEPolicy> allowPolicies = polper.retrievePolicies(String.valueOf(queriers.get(i)),
+            GuardCache.CachedGuard cachedGuard = guardCache.get(String.valueOf(queriers.get(i)),
                     PolicyConstants.USER_INDIVIDUAL, PolicyConstants.ACTION_ALLOW);
-            GuardPersistor guardPersistor = new GuardPersistor();
-            GuardExp guardExp = guardPersistor.retrieveGuardExpression(String.valueOf(queriers.get(i)), "user", allowPolicies);
+            List<BEPolicy> allowPolicies = cachedGuard.getPolicies();
+            GuardExp guardExp = cachedGuard.getGuardExp();
             System.out.println("Querier: " + queriers.get(i) + ", # Policies: " + allowPolicies.size() + ", # guards: " + guardExp.getGuardParts().size());
             double totalCard = 0.0;
             for (int j = 0; j < guardExp.getGuardParts().size(); j++) {
@@ -77,11 +77,10 @@ public class DesignChoicesExperiment {
     }
 
     private String runQueryExpt(String querier, List<String> queries){
-        PolicyPersistor polper = PolicyPersistor.getInstance();
-        List<BEPolicy> allowPolicies = polper.retrievePolicies(querier,
+        GuardCache.CachedGuard cachedGuard = GuardCache.getInstance().get(querier,
                 PolicyConstants.USER_INDIVIDUAL, PolicyConstants.ACTION_ALLOW);
-        GuardPersistor guardPersistor = new GuardPersistor();
-        GuardExp guardExp = guardPersistor.retrieveGuardExpression(querier, "user", allowPolicies);
+        List<BEPolicy> allowPolicies = cachedGuard.getPolicies();
+        GuardExp guardExp = cachedGuard.getGuardExp();
         System.out.println("Querier: " + querier + ", # Policies: " + allowPolicies.size() + ", # guards: " + guardExp.getGuardParts().size());
         GuardSelectivityExperiment gse = new GuardSelectivityExperiment();
         double totalCard = 0.0;
@@ -5,7 +5,7 @@ import edu.uci.ics.tippers.dbms.mysql.MySQLConnectionManager;
 import edu.uci.ics.tippers.fileop.Writer;
 import edu.uci.ics.tippers.generation.policy.WiFiDataSet.PolicyUtil;
 import edu.uci.ics.tippers.persistor.GuardPersistor;
-import edu.uci.ics.tippers.persistor.PolicyPersistor;
+import edu.uci.ics.tippers.persistor.PolicyStore;
 import edu.uci.ics.tippers.model.guard.SelectGuard;
 import edu.uci.ics.tippers.model.policy.BEExpression;
 import edu.uci.ics.tippers.model.policy.BEPolicy;
@@ -27,12 +27,12 @@ import java.util.List;
  */
 public class GuardGenExp {
 
-    PolicyPersistor polper;
+    PolicyStore policyStore;
     GuardPersistor guardPersistor;
     Connection connection;
 
     public GuardGenExp(){
-        this.polper = PolicyPersistor.getInstance();
+        this.policyStore = PolicyStore.getInstance();
         this.guardPersistor = new GuardPersistor();
         this.connection = MySQLConnectionManager.getInstance().getConnection();
     }
@@ -56,7 +56,7 @@ public class GuardGenExp {
 //        String fileName = "impexp.csv";
 //        boolean first = true;
 //        for(int querier: queriers) {
-//            List<BEPolicy> allowPolicies = polper.retrievePolicies(String.valueOf(querier),
+//            List<BEPolicy> allowPolicies = policyStore.retrievePolicies(String.valueOf(querier),
 //                    PolicyConstants.USER_INDIVIDUAL, PolicyConstants.ACTION_ALLOW);
 //            if(allowPolicies == null) continue;
 //            System.out.println("Querier #: " + querier + " with " + allowPolicies.size() + " allow policies");
@@ -89,7 +89,7 @@ public class GuardGenExp {
         boolean first = true;
 
         for (int querier : queriers) {
-            List<BEPolicy> allowPolicies = polper.retrievePolicies(String.valueOf(querier),
+            List<BEPolicy> allowPolicies = policyStore.retrievePolicies(String.valueOf(querier),
                     PolicyConstants.USER_INDIVIDUAL, PolicyConstants.ACTION_ALLOW);
 
             if (allowPolicies == null) continue;
@@ -109,6 +109,15 @@ public class GuardGenExp {
 
             guardPersistor.insertGuard(gh.create(String.valueOf(querier), "user"));
 
+            //deny policies get their own guards, the rewrite removes the rows they select from the allowed rows
+            List<BEPolicy> denyPolicies = policyStore.retrievePolicies(String.valueOf(querier),
+                    PolicyConstants.USER_INDIVIDUAL, PolicyConstants.ACTION_DENY);
+            if (denyPolicies != null) {
+                SelectGuard denyGuards = new SelectGuard(new BEExpression(denyPolicies), true);
+                System.out.println("Number of deny guards: " + denyGuards.numberOfGuards());
+                guardPersistor.insertGuard(denyGuards.create(String.valueOf(querier), "user"));
+            }
+
             // Recording execution time for each guard generation
             List<Long> gList = new ArrayList<>();
             gList.add(guardGen.toMillis());
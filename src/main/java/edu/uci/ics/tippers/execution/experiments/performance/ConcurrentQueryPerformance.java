@@ -0,0 +1,200 @@
+package edu.uci.ics.tippers.execution.experiments.performance;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.common.PolicyEngineException;
+import edu.uci.ics.tippers.dbms.AdmissionController;
+import edu.uci.ics.tippers.dbms.AsyncQueryManager;
+import edu.uci.ics.tippers.dbms.QueryResult;
+import edu.uci.ics.tippers.fileop.Writer;
+import edu.uci.ics.tippers.generation.query.WiFiDataSet.WiFiDataSetQueryGeneration;
+import edu.uci.ics.tippers.model.guard.GuardCache;
+import edu.uci.ics.tippers.model.guard.GuardExp;
+import edu.uci.ics.tippers.model.guard.RewriteOptimizer;
+import edu.uci.ics.tippers.model.guard.RewritePlan;
+import edu.uci.ics.tippers.model.query.QueryStatement;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sieve queries of many queriers submitted at once through the AsyncQueryManager
+ * Every wave submits the given number of requests without waiting, cycling over the rewrites of the queriers and
+ * queries, and waits for them until WAVE_DEADLINE. Requests beyond async_max_in_flight are rejected, queries running
+ * longer than the timeout complete as timed out and requests still running at the deadline are cancelled, after which
+ * the number of requests in flight has to drop back to zero.
+ * Every wave runs once with the requests started directly and once queued by the AdmissionController, which admits
+ * the guarded queries of the queriers fairly on the estimated cost of their guarded expressions and sheds or degrades
+ * requests waiting longer than the admission_slo.
+ */
+public class ConcurrentQueryPerformance {
+
+    private static final int[] REQUESTS = {1, 8, 64, 512, 1024};
+
+    private static final int TEMPLATE = 1;
+
+    private static final int QUERY_COUNT = 3;
+
+    private static final Duration WAVE_DEADLINE = Duration.ofSeconds(30);
+
+    private static final String RESULTS_FILE = "concurrent_query_performance.csv";
+
+    private static final List<Integer> QUERIERS = Arrays.asList(1023, 5352, 11043, 13353, 18575, 4686, 7632, 12555,
+            15936, 15007, 100, 532, 5990, 11815, 32467, 888, 2550, 5293, 9733, 20021);
+
+    private final AsyncQueryManager asyncQueryManager;
+
+    private final List<Request> requests = new ArrayList<>();
+
+    public ConcurrentQueryPerformance() {
+        PolicyConstants.initialize();
+        this.asyncQueryManager = AsyncQueryManager.getInstance();
+    }
+
+    /**
+     * Sieve rewrite of a query for a querier, created before the waves so that only the execution is measured
+     */
+    private static class Request {
+
+        final GuardExp guardExp;
+        final List<RewritePlan> plans;
+        final String query;
+
+        Request(GuardExp guardExp, List<RewritePlan> plans) {
+            this.guardExp = guardExp;
+            this.plans = plans;
+            this.query = plans.get(0).getQuery();
+        }
+    }
+
+    private void prepareRequests() {
+        GuardCache guardCache = GuardCache.getInstance();
+        RewriteOptimizer rewriteOptimizer = new RewriteOptimizer();
+        List<QueryStatement> queries = new WiFiDataSetQueryGeneration().retrieveQueries(TEMPLATE, "all", QUERY_COUNT);
+        for (QueryStatement queryStatement : queries) {
+            for (Integer q : QUERIERS) {
+                String querier = String.valueOf(q);
+                GuardExp guardExp = guardCache.get(querier, PolicyConstants.USER_INDIVIDUAL,
+                        PolicyConstants.ACTION_ALLOW).getGuardExp();
+                if (guardExp == null || guardExp.getGuardParts().isEmpty()) continue;
+                GuardExp denyExp = guardCache.get(querier, PolicyConstants.USER_INDIVIDUAL,
+                        PolicyConstants.ACTION_DENY).getGuardExp();
+                List<RewritePlan> plans = rewriteOptimizer.enumerate(guardExp, denyExp, queryStatement);
+                plans.get(0).prepare();
+                requests.add(new Request(guardExp, plans));
+            }
+        }
+        if (requests.isEmpty()) throw new PolicyEngineException("No guarded queriers to run queries for");
+    }
+
+    public void runExperiment() {
+        prepareRequests();
+        Writer writer = new Writer();
+        writer.writeString("Requests,Admission,Completed,Timed_Out,Failed,Cancelled,In_Flight_After,Time (ms),"
+                + "Throughput (queries/s),Mean_Latency (ms),Shed,Degraded,Mean_Admission_Wait (ms)\n",
+                PolicyConstants.EXP_RESULTS_DIR, RESULTS_FILE);
+        AdmissionController admissionController = AdmissionController.getInstance();
+        try {
+            for (int count : REQUESTS) {
+                for (boolean admitted : new boolean[]{false, true}) {
+                    long shedBefore = admissionController.getShed();
+                    long degradedBefore = admissionController.getDegraded();
+                    long admittedBefore = admissionController.getAdmitted();
+                    double waitBefore = admissionController.getMeanWaitMillis() * admittedBefore;
+                    String row = count + "," + (admitted ? "fair" : "none") + "," + wave(count, admitted) + ",";
+                    if (admitted) {
+                        long admittedInWave = admissionController.getAdmitted() - admittedBefore;
+                        double waitInWave = admissionController.getMeanWaitMillis() * admissionController.getAdmitted()
+                                - waitBefore;
+                        row += (admissionController.getShed() - shedBefore) + ","
+                                + (admissionController.getDegraded() - degradedBefore) + ","
+                                + String.format("%.2f", admittedInWave == 0 ? 0 : waitInWave / admittedInWave) + "\n";
+                    } else row += "NA,NA,NA\n";
+                    System.out.print(row);
+                    writer.writeString(row, PolicyConstants.EXP_RESULTS_DIR, RESULTS_FILE);
+                }
+            }
+        } finally {
+            for (Request request : requests) request.plans.forEach(RewritePlan::release);
+        }
+    }
+
+    /**
+     * Submits count requests at once and waits for them until the deadline
+     * @param admitted whether the requests are queued by the AdmissionController
+     * @return execution columns of the wave
+     */
+    private String wave(int count, boolean admitted) {
+        List<CompletableFuture<QueryResult>> futures = new ArrayList<>();
+        AtomicInteger completed = new AtomicInteger(), timedOut = new AtomicInteger(), failed = new AtomicInteger();
+        AtomicLong latencyNanos = new AtomicLong();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Request request = requests.get(i % requests.size());
+            long submitted = System.nanoTime();
+            CompletableFuture<QueryResult> future = admitted
+                    ? asyncQueryManager.executeAsync(request.guardExp, request.query, false)
+                    : asyncQueryManager.executeAsync(request.query, false);
+            future.whenComplete((result, failure) -> {
+                if (failure != null) {
+                    if (!future.isCancelled()) failed.incrementAndGet();
+                } else if (result.getTimeTaken().equals(PolicyConstants.MAX_DURATION)) {
+                    timedOut.incrementAndGet();
+                } else {
+                    completed.incrementAndGet();
+                    latencyNanos.addAndGet(System.nanoTime() - submitted);
+                }
+            });
+            futures.add(future);
+        }
+        int cancelled = 0;
+        long deadline = start + WAVE_DEADLINE.toNanos();
+        for (CompletableFuture<QueryResult> future : futures) {
+            try {
+                future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if (future.cancel(true)) cancelled++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PolicyEngineException("Interrupted while waiting for the queries");
+            } catch (ExecutionException e) {
+                //counted as failed
+            }
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int inFlight = awaitInFlight();
+        double throughput = (completed.get() + timedOut.get()) * 1000.0 / Math.max(1, elapsedMillis);
+        double meanLatency = completed.get() == 0 ? 0 : latencyNanos.get() / 1e6 / completed.get();
+        return completed.get() + "," + timedOut.get() + "," + failed.get() + "," + cancelled + "," + inFlight + ","
+                + elapsedMillis + "," + String.format("%.2f", throughput) + "," + String.format("%.2f", meanLatency);
+    }
+
+    /**
+     * Waits up to a second for the cancelled requests to release their slots
+     * @return requests still in flight
+     */
+    private int awaitInFlight() {
+        long until = System.currentTimeMillis() + 1000;
+        while (asyncQueryManager.getInFlight() > 0 && System.currentTimeMillis() < until) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return asyncQueryManager.getInFlight();
+    }
+
+    public static void main(String[] args) {
+        ConcurrentQueryPerformance experiment = new ConcurrentQueryPerformance();
+        experiment.runExperiment();
+    }
+}
@@ -0,0 +1,136 @@
+package edu.uci.ics.tippers.execution.experiments.performance;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.common.PolicyEngineException;
+import edu.uci.ics.tippers.dbms.ConnectionPool;
+import edu.uci.ics.tippers.fileop.Writer;
+import edu.uci.ics.tippers.persistor.PolicyPersistor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of concurrent queriers on the connection pool compared with the single shared connection
+ * Every querier thread repeatedly retrieves the policies of a random querier and counts the rows it owns,
+ * the shared connection serializes the threads the way the static connection of the connection managers did.
+ */
+public class ConnectionPoolBenchmark {
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+
+    private static final int OPERATIONS_PER_THREAD = 50;
+
+    private static final int QUERIERS = 200;
+
+    private static final String RESULTS_FILE = "connection_pool_benchmark.csv";
+
+    private static final String OWNER_COUNT = "SELECT count(*) FROM " + PolicyConstants.TABLE_NAME + " WHERE user_id = ?";
+
+    private final PolicyPersistor polper;
+
+    private final List<String> queriers;
+
+    private final Object sharedLock = new Object();
+
+    public ConnectionPoolBenchmark() {
+        PolicyConstants.initialize();
+        this.polper = PolicyPersistor.getInstance();
+        this.queriers = retrieveQueriers();
+    }
+
+    private List<String> retrieveQueriers() {
+        List<String> queriers = new ArrayList<>();
+        try (Connection connection = PolicyConstants.getDataSource().getConnection();
+             PreparedStatement stm = connection.prepareStatement("SELECT distinct querier FROM USER_POLICY")) {
+            ResultSet rs = stm.executeQuery();
+            while (rs.next() && queriers.size() < QUERIERS) queriers.add(rs.getString(1));
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        if (queriers.isEmpty()) throw new PolicyEngineException("No user policies to benchmark with");
+        return queriers;
+    }
+
+    public void runExperiment() {
+        Writer writer = new Writer();
+        writer.writeString("Threads,Connection,Operations,Time (ms),Throughput (ops/s),Pool wait (ms)\n",
+                PolicyConstants.EXP_RESULTS_DIR, RESULTS_FILE);
+        ConnectionPool pool = ConnectionPool.getInstance();
+        for (int threads : THREADS) {
+            for (boolean pooled : new boolean[]{false, true}) {
+                long waitBefore = pool.getWaitMillis();
+                Duration elapsed = run(threads, pooled);
+                long operations = (long) threads * OPERATIONS_PER_THREAD;
+                double throughput = operations * 1000.0 / Math.max(1, elapsed.toMillis());
+                String row = threads + "," + (pooled ? "pool" : "shared") + "," + operations + ","
+                        + elapsed.toMillis() + "," + String.format("%.2f", throughput) + ","
+                        + (pooled ? pool.getWaitMillis() - waitBefore : 0) + "\n";
+                System.out.print(row);
+                writer.writeString(row, PolicyConstants.EXP_RESULTS_DIR, RESULTS_FILE);
+            }
+        }
+        System.out.println("Pool opened " + pool.getOpened() + " of " + pool.getMaxSize() + " connections for "
+                + pool.getBorrowed() + " borrows");
+    }
+
+    private Duration run(int threads, boolean pooled) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        Instant start = Instant.now();
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            futures.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                    String querier = queriers.get(random.nextInt(queriers.size()));
+                    if (pooled) operation(querier);
+                    else synchronized (sharedLock) {
+                        operation(querier);
+                    }
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : futures) future.get();
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new PolicyEngineException("Benchmark failed " + e);
+        } finally {
+            executor.shutdown();
+        }
+        Duration elapsed = Duration.between(start, Instant.now());
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return elapsed;
+    }
+
+    private void operation(String querier) throws SQLException {
+        polper.retrievePolicies(querier, PolicyConstants.USER_INDIVIDUAL, PolicyConstants.ACTION_ALLOW);
+        try (Connection connection = PolicyConstants.getDataSource().getConnection();
+             PreparedStatement stm = connection.prepareStatement(OWNER_COUNT)) {
+            stm.setString(1, querier);
+            ResultSet rs = stm.executeQuery();
+            rs.next();
+        }
+    }
+
+    public static void main(String[] args) {
+        ConnectionPoolBenchmark benchmark = new ConnectionPoolBenchmark();
+        benchmark.runExperiment();
+    }
+}
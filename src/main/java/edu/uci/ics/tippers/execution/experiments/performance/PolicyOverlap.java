@@ -43,7 +43,7 @@ public class PolicyOverlap {
                     PolicyConstants.USER_INDIVIDUAL, PolicyConstants.ACTION_ALLOW));
             if(beExpression == null) continue;
             System.out.println(beExpression.getPolicies().size() + "," + overlap + ","
-                    +  (double) queryManager.runTimedQueryWithOutSorting(beExpression.createQueryFromPolices(), true).getResultCount()/PolicyConstants.getNumberOfTuples());
+                    +  (double) queryManager.runTimedCount(PolicyConstants.SELECT_ALL_WHERE + beExpression.createQueryFromPolices()).getResultCount()/PolicyConstants.getNumberOfTuples());
         }
     }
 
@@ -3,26 +3,36 @@ package edu.uci.ics.tippers.execution.experiments.performance;
 import edu.uci.ics.tippers.common.PolicyConstants;
 import edu.uci.ics.tippers.dbms.QueryManager;
 import edu.uci.ics.tippers.dbms.QueryResult;
+import edu.uci.ics.tippers.dbms.ResultCache;
+import edu.uci.ics.tippers.fileop.ResultExporter;
 import edu.uci.ics.tippers.fileop.Writer;
 import edu.uci.ics.tippers.generation.policy.WiFiDataSet.PolicyUtil;
 import edu.uci.ics.tippers.generation.query.QueryExplainer;
 import edu.uci.ics.tippers.generation.query.WiFiDataSet.WiFiDataSetQueryGeneration;
-import edu.uci.ics.tippers.persistor.GuardPersistor;
-import edu.uci.ics.tippers.persistor.PolicyPersistor;
+import edu.uci.ics.tippers.model.guard.GuardCache;
+import edu.uci.ics.tippers.model.guard.GuardCombiner;
 import edu.uci.ics.tippers.model.guard.GuardExp;
 import edu.uci.ics.tippers.model.guard.GuardPart;
+import edu.uci.ics.tippers.model.guard.GuardRewriter;
+import edu.uci.ics.tippers.model.guard.RewriteOptimizer;
+import edu.uci.ics.tippers.model.guard.RewritePlan;
+import edu.uci.ics.tippers.model.guard.RewriteStrategy;
 import edu.uci.ics.tippers.model.policy.BEExpression;
 import edu.uci.ics.tippers.model.policy.BEPolicy;
+import edu.uci.ics.tippers.model.query.ConjunctiveQuery;
 import edu.uci.ics.tippers.model.query.QueryStatement;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
+import java.util.function.Function;
 
 /**
  * Experiment 3 in the paper
@@ -31,9 +41,10 @@ import java.util.Properties;
 public class QueryPerformance {
 
 
-    PolicyPersistor polper;
+    GuardCache guardCache;
     QueryExplainer queryExplainer;
     QueryManager queryManager;
+    RewriteOptimizer rewriteOptimizer;
 
     private static boolean QUERY_EXEC;
     private static boolean BASE_LINE_POLICIES;
@@ -45,16 +56,24 @@ public class QueryPerformance {
     private static boolean QUERY_INDEX;
     private static boolean SIEVE_EXEC;
     private static boolean RESULT_CHECK;
+    private static boolean REWRITE_CALIBRATION;
+    private static boolean SCATTER_GATHER;
+    private static boolean COMBINED_GUARDS;
 
     private static int NUM_OF_REPS;
 
     private static String RESULTS_FILE;
 
+    private static ResultExporter.Format EXPORT_FORMAT;
+
+    private static ResultExporter.Compression EXPORT_COMPRESSION;
+
     public QueryPerformance() {
         PolicyConstants.initialize();
-        polper = PolicyPersistor.getInstance();
+        guardCache = GuardCache.getInstance();
         queryExplainer = new QueryExplainer();
         queryManager = new QueryManager();
+        rewriteOptimizer = new RewriteOptimizer();
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
         try {
@@ -72,14 +91,31 @@ public class QueryPerformance {
                 QUERY_INDEX = Boolean.parseBoolean(props.getProperty("query_index"));
                 SIEVE_EXEC = Boolean.parseBoolean(props.getProperty("sieve_exec"));
                 RESULT_CHECK = Boolean.parseBoolean(props.getProperty("resultCheck"));
+                REWRITE_CALIBRATION = Boolean.parseBoolean(props.getProperty("rewrite_calibration"));
+                SCATTER_GATHER = Boolean.parseBoolean(props.getProperty("scatter_gather"));
+                COMBINED_GUARDS = Boolean.parseBoolean(props.getProperty("combined_guards"));
                 NUM_OF_REPS = Integer.parseInt(props.getProperty("num_repetitions"));
                 RESULTS_FILE = props.getProperty("results_file");
+                String exportFormat = props.getProperty("export_results", "").trim();
+                if (!exportFormat.isEmpty()) {
+                    EXPORT_FORMAT = ResultExporter.Format.valueOf(exportFormat.toUpperCase());
+                    EXPORT_COMPRESSION = ResultExporter.Compression.valueOf(
+                            props.getProperty("export_compression", "none").trim().toUpperCase());
+                }
             }
         } catch (IOException ie) {
             ie.printStackTrace();
         }
     }
 
+    /**
+     * Rewrite compiled once per querier when its guards are cached, compiled for every query otherwise
+     */
+    private static String compiled(GuardCache.CachedGuard cachedGuard, GuardExp guardExp, String name,
+                                   Function<GuardExp, String> compiler) {
+        return cachedGuard != null ? cachedGuard.fragment(name, compiler) : compiler.apply(guardExp);
+    }
+
     private String runBEPolicies(String querier, QueryStatement queryStatement, List<BEPolicy> bePolicies) {
 
         BEExpression beExpression = new BEExpression(bePolicies);
@@ -156,8 +192,18 @@ public class QueryPerformance {
             else resultString.append("NA").append(",");
 
 
-            GuardPersistor guardPersistor = new GuardPersistor();
-            GuardExp guardExp = guardPersistor.retrieveGuardExpression(querier, "user", bePolicies);
+            GuardExp guardExp, denyExp;
+            GuardCache.CachedGuard cachedGuard = null;
+            if (COMBINED_GUARDS) {
+                //user guards merged with the shared guards of the groups of the querier
+                guardExp = GuardCombiner.getInstance().combine(querier, PolicyConstants.ACTION_ALLOW);
+                denyExp = GuardCombiner.getInstance().combine(querier, PolicyConstants.ACTION_DENY);
+            } else {
+                //policies, guards and compiled rewrites of the querier are kept between queries
+                cachedGuard = guardCache.get(querier, PolicyConstants.USER_INDIVIDUAL, PolicyConstants.ACTION_ALLOW);
+                guardExp = cachedGuard.getGuardExp();
+                denyExp = guardCache.get(querier, PolicyConstants.USER_INDIVIDUAL, PolicyConstants.ACTION_DENY).getGuardExp();
+            }
             if(guardExp.getGuardParts().isEmpty()) return "empty";
             resultString.append(guardExp.getGuardParts().size()).append(",");
             double guardTotalCard = guardExp.getGuardParts().stream().mapToDouble(GuardPart::getCardinality).sum();
@@ -167,15 +213,15 @@ public class QueryPerformance {
             if(GUARD_POLICY_INLINE) {
                 //TODO: Does not work for template 3
                 Duration execTime = Duration.ofMillis(0);
-                String guard_query_with_union = guardExp.inlineRewrite(true);
-                String guard_query_with_or = guardExp.inlineRewrite(false);
+                String guard_query_with_union = compiled(cachedGuard, guardExp, "inline_union", g -> g.inlineRewrite(true));
+                String guard_query_with_or = compiled(cachedGuard, guardExp, "inline_or", g -> g.inlineRewrite(false));
                 guard_query_with_union += "Select * from polEval where " + queryStatement.getQuery();
                 guard_query_with_or += "Select * from polEval where " + queryStatement.getQuery();
-                QueryResult execResult = queryManager.runTimedQueryExp(guard_query_with_union, NUM_OF_REPS);
+                QueryResult execResult = queryManager.runTimedQueryExp(guardExp.hint(guard_query_with_union), NUM_OF_REPS);
                 execTime = execTime.plus(execResult.getTimeTaken());
                 resultString.append(execTime.toMillis()).append(",");
                 System.out.println("Guard inline execution with union: "  + " Time: " + execTime.toMillis());
-                execResult = queryManager.runTimedQueryExp(guard_query_with_or, NUM_OF_REPS);
+                execResult = queryManager.runTimedQueryExp(guardExp.hint(guard_query_with_or), NUM_OF_REPS);
                 execTime = execTime.plus(execResult.getTimeTaken());
                 resultString.append(execTime.toMillis()).append(",");
                 System.out.println("Guard inline execution with OR: "  + " Time: " + execTime.toMillis());
@@ -183,27 +229,25 @@ public class QueryPerformance {
             if(GUARD_UDF){
                 //TODO: Does not work for template 3
                 Duration execTime = Duration.ofMillis(0);
-                String guard_query_with_union = guardExp.udfRewrite(true);
-                String guard_query_with_or = guardExp.udfRewrite(false);
+                String guard_query_with_union = compiled(cachedGuard, guardExp, "udf_union", g -> g.udfRewrite(true));
+                String guard_query_with_or = compiled(cachedGuard, guardExp, "udf_or", g -> g.udfRewrite(false));
                 guard_query_with_union += "Select * from polEval where " + queryStatement.getQuery();
                 guard_query_with_or += "Select * from polEval where " + queryStatement.getQuery();
-                QueryResult execResult = queryManager.runTimedQueryExp(guard_query_with_union, NUM_OF_REPS);
+                guardExp.deploy();
+                QueryResult execResult = queryManager.runTimedQueryExp(guardExp.hint(guard_query_with_union), NUM_OF_REPS);
                 execTime = execTime.plus(execResult.getTimeTaken());
                 resultString.append(execTime.toMillis()).append(",");
                 System.out.println("Guard udf execution with union: "  + " Time: " + execTime.toMillis());
-                execResult = queryManager.runTimedQueryExp(guard_query_with_or, NUM_OF_REPS);
+                execResult = queryManager.runTimedQueryExp(guardExp.hint(guard_query_with_or), NUM_OF_REPS);
                 execTime = execTime.plus(execResult.getTimeTaken());
                 resultString.append(execTime.toMillis());
                 System.out.println("Guard udf execution with OR: "  + " Time: " + execTime.toMillis());
             }
             if(GUARD_INDEX) {
                 Duration execTime = Duration.ofMillis(0);
-                String guard_hybrid_query = guardExp.inlineOrNot(true);
-                if(queryStatement.getTemplate() == 3){
-                    guard_hybrid_query +=  queryStatement.getQuery().replace("PRESENCE", "polEval");
-                }
-                else
-                    guard_hybrid_query += "Select * from polEval where " + queryStatement.getQuery();
+                GuardRewriter guardRewriter = new GuardRewriter(guardExp, RewriteStrategy.GUARD_HYBRID, null);
+                String guard_hybrid_query = guardRewriter.rewrite(queryStatement);
+                guardRewriter.deploy();
                 QueryResult execResult = queryManager.runTimedQueryExp(guard_hybrid_query, 1);
                 execTime = execTime.plus(execResult.getTimeTaken());
                 resultString.append(execTime.toMillis()).append(",");
@@ -212,17 +256,10 @@ public class QueryPerformance {
             if(QUERY_INDEX) {
                 Duration execTime = Duration.ofMillis(0);
                 String query_hint = qe.keyUsed(queryStatement);
-                String queryPredicates = queryStatement.getQuery();
-                String query_index_query;
                 if(query_hint != null) {
-                    if(queryStatement.getTemplate() == 3) {
-                        queryPredicates = queryPredicates.replace("from PRESENCE", "from PRESENCE force index("
-                                + query_hint +")" );
-                        query_index_query = "SELECT * from ( " + queryPredicates + " ) as P where " + guardExp.createQueryWithOR();
-                    }
-                    else
-                        query_index_query = "SELECT * from ( SELECT * from PRESENCE force index(" + query_hint
-                                + ") where " + queryPredicates + " ) as P where " + guardExp.createQueryWithOR();
+                    GuardRewriter guardRewriter = new GuardRewriter(guardExp, RewriteStrategy.QUERY_INDEX, query_hint);
+                    String query_index_query = guardRewriter.rewrite(queryStatement);
+                    guardRewriter.deploy();
                     QueryResult execResult = queryManager.runTimedQueryExp(query_index_query, 1);
                     execTime = execTime.plus(execResult.getTimeTaken());
                     resultString.append(execTime.toMillis()).append(",");
@@ -231,41 +268,69 @@ public class QueryPerformance {
                 else resultString.append("NA").append(","); //No index scan used with query predicate
             }
             if(SIEVE_EXEC){
-                Duration execTime = Duration.ofMillis(0);
-                String guardQuery = guardExp.inlineOrNot(true);
-                String query_hint = qe.keyUsed(queryStatement);
-                String sieve_query;
-                /** Calibration of choosing between IndexGuards and IndexQuery
-                 *  based on the ratio of querySel/guardTotalCard. In template 3
-                 *  because of the join, this ratio is a much smaller number.
-                 */
-                boolean indexGuards = querySel > 0.5 * guardTotalCard;
-                if(queryStatement.getTemplate() == 3) {
-                    indexGuards = querySel > 0.01 *guardTotalCard;
-                }
-                if (indexGuards || query_hint == null) { //Use Guards
-                    if(queryStatement.getTemplate() == 3){
-                        sieve_query = guardQuery + queryStatement.getQuery().replace("PRESENCE", "polEval");
+                List<RewritePlan> plans = new ArrayList<>();
+                try {
+                    QueryResult execResult = queryManager.runCachedQueryExp(guardExp, denyExp, queryStatement,
+                            () -> {
+                                plans.addAll(rewriteOptimizer.enumerate(guardExp, denyExp, queryStatement));
+                                plans.get(0).prepare();
+                                return plans.get(0).getQuery();
+                            }, NUM_OF_REPS);
+                    Duration execTime = execResult.getTimeTaken();
+                    if (plans.isEmpty()) {
+                        //a cache hit is not an execution, its lookup time goes in its own column
+                        resultString.append("CACHED").append(",").append("NA").append(",");
+                        resultString.append(execTime.toMillis());
+                        System.out.println("Sieve Query: cached Lookup time: " + execTime.toMillis() + " "
+                                + ResultCache.getInstance());
                     }
-                    else
-                        sieve_query = guardQuery + "Select * from polEval where " + queryStatement.getQuery();
-                    resultString.append("Guard Index").append(",");
-                }
-                else { //Use queries
-                    if(queryStatement.getTemplate() == 3) {
-                        String query_index = queryStatement.getQuery().replace("from PRESENCE", "from PRESENCE force index("
-                                + query_hint +")" );
-                        sieve_query = "SELECT * from ( " + query_index + " ) as P where " + guardExp.createQueryWithOR();
+                    else {
+                        RewritePlan sievePlan = plans.get(0);
+                        resultString.append(sievePlan.getStrategy()).append(",");
+                        rewriteOptimizer.recordExecution(querier, queryStatement, sievePlan, execTime, true);
+                        resultString.append(execTime.toMillis()).append(",").append("NA");
+                        System.out.println("Sieve Query: " + sievePlan.getStrategy() + " Time: " + execTime.toMillis());
+                        if (EXPORT_FORMAT != null) {
+                            //exported in a separate run so that writing the rows is not part of the measured time
+                            Path exportPath = Paths.get(PolicyConstants.EXP_RESULTS_DIR, querier + "_" + queryStatement.getId()
+                                    + (EXPORT_FORMAT == ResultExporter.Format.CSV ? ".csv" : ".bin"));
+                            QueryResult exported = queryManager.runExport(sievePlan.getQuery(), exportPath, EXPORT_FORMAT,
+                                    EXPORT_COMPRESSION);
+                            System.out.println("Exported " + exported.getResultCount() + " rows to " + exportPath);
+                        }
+                        if (RESULT_CHECK && denyExp == null && queryStatement.getTemplate() != 3) {
+                            //compared in separate runs against the inlined allow policies, rows kept in columnar results
+                            String baselineQuery = "With polEval as ( Select * from PRESENCE where "
+                                    + beExpression.createQueryFromPolices() + "  )" + "SELECT * from polEval where "
+                                    + queryStatement.getQuery();
+                            boolean same = queryManager.runCheckedQuery(sievePlan.getQuery())
+                                    .checkResults(queryManager.runCheckedQuery(baselineQuery));
+                            System.out.println("Sieve result check: " + (same ? "same as" : "differs from")
+                                    + " inlined policies");
+                        }
+                        if (REWRITE_CALIBRATION) {
+                            for (RewritePlan plan : plans.subList(1, plans.size())) {
+                                plan.prepare();
+                                QueryResult planResult = queryManager.runTimedQueryExp(plan.getQuery(), NUM_OF_REPS);
+                                rewriteOptimizer.recordExecution(querier, queryStatement, plan, planResult.getTimeTaken(), false);
+                            }
+                        }
                     }
-                    else
-                        sieve_query = "SELECT * from ( SELECT * from PRESENCE force index(" + query_hint
-                                + ") where " + queryStatement.getQuery() + " ) as P where " + guardExp.createQueryWithOR();
-                    resultString.append("Query Index").append(",");
+                } finally {
+                    //materialized rows read by the plans can be deleted once they are no longer executed
+                    plans.forEach(RewritePlan::release);
+                }
+            }
+            if(SCATTER_GATHER){
+                //rows of template 3 have no primary key to merge the branches on
+                if(queryStatement.getTemplate() == 3) resultString.append(",").append("NA");
+                else {
+                    QueryResult execResult = queryManager.runScatterGatherExp(
+                            guardExp.pushdown(ConjunctiveQuery.of(queryStatement)).branchQueries(null), NUM_OF_REPS);
+                    resultString.append(",").append(execResult.getTimeTaken().toMillis());
+                    System.out.println("Scatter gather over " + guardExp.getGuardParts().size() + " guards Time: "
+                            + execResult.getTimeTaken().toMillis());
                 }
-                QueryResult execResult = queryManager.runTimedQueryExp(sieve_query, NUM_OF_REPS);
-                execTime = execTime.plus(execResult.getTimeTaken());
-                resultString.append(execTime.toMillis());
-                System.out.println("Sieve Query: "  + " Time: " + execTime.toMillis());
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -312,11 +377,12 @@ public class QueryPerformance {
         users.addAll(undergrad);
         users.addAll(grad);
         users.addAll(staff);
-        PolicyPersistor polper = PolicyPersistor.getInstance();
+        GuardCache guardCache = GuardCache.getInstance();
 //        String file_header = "Querier,Querier_Profile,Query_Type,Query_Cardinality,Number_Of_Policies,Estimated_QPS,Query_Alone," +
 //                "Baseline_Policies, Baseline_UDF,Number_of_Guards,Total_Guard_Cardinality,With_Guard_Index,With_Query_Index,Sieve_Parameters, Sieve\n";
         String file_header = "Querier,Querier_Profile,Query_Type,Query_Cardinality,Number_Of_Policies,Estimated_QPS,Query_Alone," +
-                "Baseline_Policies, Baseline_UDF,Baseline_Index,Number_of_Guards,Total_Guard_Cardinality,Sieve_Parameters, Sieve\n";
+                "Baseline_Policies, Baseline_UDF,Baseline_Index,Number_of_Guards,Total_Guard_Cardinality,Sieve_Parameters, Sieve,Sieve_Cache_Lookup"
+                + (SCATTER_GATHER ? ",Scatter_Gather" : "") + "\n";
         Writer writer = new Writer();
         writer.writeString(file_header, PolicyConstants.EXP_RESULTS_DIR, RESULTS_FILE);
         List<QueryStatement> queries = e.getQueries(3, 9);
@@ -324,8 +390,8 @@ public class QueryPerformance {
             System.out.println("Total Query Selectivity " + queries.get(j).getSelectivity());
             for (int i = 0; i < users.size(); i++) {
                 String querier = String.valueOf(users.get(i));
-                List<BEPolicy> allowPolicies = polper.retrievePolicies(querier,
-                        PolicyConstants.USER_INDIVIDUAL, PolicyConstants.ACTION_ALLOW);
+                List<BEPolicy> allowPolicies = guardCache.get(querier,
+                        PolicyConstants.USER_INDIVIDUAL, PolicyConstants.ACTION_ALLOW).getPolicies();
                 if (allowPolicies == null) continue;
                 System.out.println("Querier " + querier);
                 writer.writeString(e.runBEPolicies(querier, queries.get(j),
@@ -334,5 +400,6 @@ public class QueryPerformance {
             }
             QUERY_EXEC = true;
         }
+        System.out.println(guardCache);
     }
 }
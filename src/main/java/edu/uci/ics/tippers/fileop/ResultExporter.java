@@ -0,0 +1,522 @@
+package edu.uci.ics.tippers.fileop;
+
+import edu.uci.ics.tippers.common.PolicyEngineException;
+import edu.uci.ics.tippers.dbms.RowConsumer;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the rows of a streamed result to a file through a FileChannel.
+ * Rows are encoded into direct buffers that a writer thread compresses and writes while the next rows are read,
+ * the reading thread only waits when all buffers are waiting for the disk.
+ * CSV writes the rows as the OpenCSV 2.3 CSVWriter and ResultSetHelperService did before: values separated by tabs,
+ * one row per line, every value within double quotes with its double quotes doubled, NULL as an empty value,
+ * DATE as dd-MMM-yyyy, TIMESTAMP as dd-MMM-yyyy HH:mm:ss in the default locale and decimals as BigDecimal.toString.
+ * Columns of types OpenCSV did not handle are written with getString instead of being left empty.
+ * BINARY writes batches of BATCH_ROWS rows column by column: a header with the column names and types, then per batch
+ * the number of rows and for every column a null bitmap followed by 8 byte longs (integers, dates as epoch days,
+ * times as seconds of the day, timestamps as epoch milliseconds), 8 byte doubles or for strings a dictionary of the
+ * distinct values of the batch followed by an int code per row.
+ * GZIP compresses every buffer into a gzip member, the file is a valid multi member gzip file.
+ * BLOCKS compresses every buffer at the fastest level into a block framed by its uncompressed and compressed length.
+ */
+public class ResultExporter implements RowConsumer, AutoCloseable {
+
+    public enum Format {CSV, BINARY}
+
+    public enum Compression {NONE, GZIP, BLOCKS}
+
+    public static final int BUFFER_SIZE = 1 << 20;
+
+    public static final int BUFFERS = 4;
+
+    public static final int BATCH_ROWS = 4096;
+
+    private static final byte[] MAGIC = "SIEVECOL1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final FileChannel channel;
+
+    private final Format format;
+
+    private final Compression compression;
+
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFERS);
+
+    private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(BUFFERS + 1);
+
+    private final Thread writer;
+
+    private volatile Throwable failure;
+
+    private ByteBuffer buffer;
+
+    private int[] types;
+
+    private int[] sqlTypes;
+
+    private String[] names;
+
+    private Batch batch;
+
+    private DateFormat dateFormat;
+
+    private DateFormat timestampFormat;
+
+    private long rows;
+
+    private boolean closed;
+
+    /**
+     * @param path file to write, replaced if it exists
+     * @param format
+     * @param compression
+     * @throws PolicyEngineException if the file cannot be opened
+     */
+    public ResultExporter(Path path, Format format, Compression compression) throws PolicyEngineException {
+        this.format = format;
+        this.compression = compression;
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new PolicyEngineException("Cannot open " + path + " for exporting results " + e);
+        }
+        for (int i = 0; i < BUFFERS; i++) free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        this.buffer = free.poll();
+        this.writer = new Thread(this::drain, "result-exporter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return rows exported so far
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    @Override
+    public void accept(ResultSet row) throws SQLException {
+        if (types == null) start(row.getMetaData());
+        if (format == Format.CSV) writeCsv(row);
+        else {
+            batch.read(row);
+            if (batch.size == BATCH_ROWS) flushBatch();
+        }
+        rows++;
+    }
+
+    /**
+     * Writes the rows of the result set from its current position
+     * @param resultSet
+     * @return number of rows written
+     * @throws SQLException
+     */
+    public long exportAll(ResultSet resultSet) throws SQLException {
+        long before = rows;
+        while (resultSet.next()) accept(resultSet);
+        return rows - before;
+    }
+
+    private void start(ResultSetMetaData metaData) throws SQLException {
+        int count = metaData.getColumnCount();
+        types = new int[count];
+        sqlTypes = new int[count];
+        names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = metaData.getColumnLabel(i + 1);
+            sqlTypes[i] = metaData.getColumnType(i + 1);
+            types[i] = kind(sqlTypes[i]);
+        }
+        if (format == Format.CSV) {
+            dateFormat = new SimpleDateFormat("dd-MMM-yyyy");
+            timestampFormat = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss");
+        }
+        if (format == Format.BINARY) {
+            put(MAGIC);
+            ensure(4);
+            buffer.putInt(count);
+            for (int i = 0; i < count; i++) {
+                putString(names[i]);
+                ensure(1);
+                buffer.put((byte) types[i]);
+            }
+            batch = new Batch(types, sqlTypes);
+        }
+    }
+
+    /** 0 long, 1 double, 2 string */
+    private static int kind(int sqlType) {
+        switch (sqlType) {
+            case Types.BIGINT: case Types.INTEGER: case Types.SMALLINT: case Types.TINYINT:
+            case Types.BIT: case Types.BOOLEAN: case Types.DATE: case Types.TIME: case Types.TIMESTAMP:
+                return 0;
+            case Types.REAL: case Types.FLOAT: case Types.DOUBLE: case Types.DECIMAL: case Types.NUMERIC:
+                return 1;
+            default:
+                return 2;
+        }
+    }
+
+    private void writeCsv(ResultSet row) throws SQLException {
+        for (int i = 0; i < types.length; i++) {
+            if (i > 0) put((byte) '\t');
+            String value = csvValue(row, i + 1);
+            put((byte) '"');
+            putChars(value.indexOf('"') < 0 ? value : value.replace("\"", "\"\""));
+            put((byte) '"');
+        }
+        put((byte) '\n');
+    }
+
+    /**
+     * Value of the column formatted as by OpenCSV 2.3, empty if it is NULL
+     */
+    private String csvValue(ResultSet row, int index) throws SQLException {
+        switch (sqlTypes[index - 1]) {
+            case Types.BIT: case Types.JAVA_OBJECT:
+                Object object = row.getObject(index);
+                return object == null ? "" : String.valueOf(object);
+            case Types.BOOLEAN:
+                return Boolean.toString(row.getBoolean(index));
+            case Types.BIGINT:
+                long longValue = row.getLong(index);
+                return row.wasNull() ? "" : Long.toString(longValue);
+            case Types.INTEGER: case Types.SMALLINT: case Types.TINYINT:
+                int intValue = row.getInt(index);
+                return row.wasNull() ? "" : Integer.toString(intValue);
+            case Types.REAL: case Types.FLOAT: case Types.DOUBLE: case Types.DECIMAL: case Types.NUMERIC:
+                BigDecimal decimal = row.getBigDecimal(index);
+                return decimal == null ? "" : decimal.toString();
+            case Types.DATE:
+                Date date = row.getDate(index);
+                return date == null ? "" : dateFormat.format(date);
+            case Types.TIME:
+                Time time = row.getTime(index);
+                return time == null ? "" : time.toString();
+            case Types.TIMESTAMP:
+                Timestamp timestamp = row.getTimestamp(index);
+                return timestamp == null ? "" : timestampFormat.format(timestamp);
+            default:
+                String value = row.getString(index);
+                return value == null ? "" : value;
+        }
+    }
+
+    private void flushBatch() {
+        if (batch.size == 0) return;
+        ensure(4);
+        buffer.putInt(batch.size);
+        for (int c = 0; c < types.length; c++) {
+            long[] nulls = batch.nulls[c];
+            int words = (batch.size + 63) / 64;
+            for (int w = 0; w < words; w++) {
+                ensure(8);
+                buffer.putLong(nulls[w]);
+            }
+            if (types[c] == 0) {
+                long[] values = batch.longs[c];
+                for (int r = 0; r < batch.size; r++) {
+                    ensure(8);
+                    buffer.putLong(values[r]);
+                }
+            } else if (types[c] == 1) {
+                double[] values = batch.doubles[c];
+                for (int r = 0; r < batch.size; r++) {
+                    ensure(8);
+                    buffer.putDouble(values[r]);
+                }
+            } else {
+                Dictionary dictionary = batch.dictionaries[c];
+                ensure(4);
+                buffer.putInt(dictionary.size);
+                for (int d = 0; d < dictionary.size; d++) putString(dictionary.values[d]);
+                int[] codes = batch.codes[c];
+                for (int r = 0; r < batch.size; r++) {
+                    ensure(4);
+                    buffer.putInt(codes[r]);
+                }
+            }
+        }
+        batch.clear();
+    }
+
+    private void putString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensure(4);
+        buffer.putInt(bytes.length);
+        put(bytes);
+    }
+
+    /**
+     * ASCII values are copied char by char into the buffer without encoding them into a byte array first
+     */
+    private void putChars(String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) >= 0x80) {
+                put(value.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            ensure(1);
+            buffer.put((byte) value.charAt(i));
+        }
+    }
+
+    private void put(byte b) {
+        ensure(1);
+        buffer.put(b);
+    }
+
+    private void put(byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            ensure(1);
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) handOff();
+    }
+
+    /**
+     * Passes the filled buffer to the writer thread and continues with a free one
+     */
+    private void handOff() {
+        checkFailure();
+        buffer.flip();
+        try {
+            full.put(buffer);
+            buffer = free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PolicyEngineException("Interrupted while exporting results");
+        }
+        buffer.clear();
+    }
+
+    private void checkFailure() {
+        if (failure != null) throw new PolicyEngineException("Exporting results failed " + failure);
+    }
+
+    private void drain() {
+        Deflater deflater = compression == Compression.NONE ? null
+                : new Deflater(Deflater.BEST_SPEED, compression == Compression.GZIP);
+        byte[] input = compression == Compression.NONE ? null : new byte[BUFFER_SIZE];
+        byte[] output = compression == Compression.NONE ? null : new byte[BUFFER_SIZE + BUFFER_SIZE / 8 + 64];
+        CRC32 crc = new CRC32();
+        try {
+            while (true) {
+                ByteBuffer next = full.take();
+                if (next == END) break;
+                try {
+                    if (failure == null) {
+                        if (deflater == null) {
+                            while (next.hasRemaining()) channel.write(next);
+                        } else {
+                            write(next, deflater, input, output, crc);
+                        }
+                    }
+                } finally {
+                    free.put(next);
+                }
+            }
+        } catch (Throwable t) {
+            failure = t;
+            free.clear();
+            for (int i = 0; i < BUFFERS; i++) free.offer(ByteBuffer.allocate(0));
+        } finally {
+            if (deflater != null) deflater.end();
+        }
+    }
+
+    private void write(ByteBuffer next, Deflater deflater, byte[] input, byte[] output, CRC32 crc) throws IOException {
+        int length = next.remaining();
+        next.get(input, 0, length);
+        deflater.reset();
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        int compressed = 0;
+        while (!deflater.finished()) compressed += deflater.deflate(output, compressed, output.length - compressed);
+        ByteBuffer frame;
+        if (compression == Compression.GZIP) {
+            crc.reset();
+            crc.update(input, 0, length);
+            frame = ByteBuffer.allocate(10).put(new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+            frame.flip();
+            while (frame.hasRemaining()) channel.write(frame);
+            writeFully(ByteBuffer.wrap(output, 0, compressed));
+            ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            trailer.putInt((int) crc.getValue()).putInt(length).flip();
+            writeFully(trailer);
+        } else {
+            frame = ByteBuffer.allocate(8).putInt(length).putInt(compressed);
+            frame.flip();
+            writeFully(frame);
+            writeFully(ByteBuffer.wrap(output, 0, compressed));
+        }
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) channel.write(bytes);
+    }
+
+    /**
+     * Writes the remaining rows and waits until everything is on disk
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            if (batch != null && failure == null) flushBatch();
+            if (buffer.position() > 0 && failure == null) handOff();
+            full.put(END);
+            writer.join();
+            channel.force(false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        checkFailure();
+    }
+
+    private static class Dictionary {
+
+        private final Map<String, Integer> codes = new HashMap<>();
+
+        private String[] values = new String[16];
+
+        private int size;
+
+        int code(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = size;
+                codes.put(value, code);
+                if (size == values.length) values = Arrays.copyOf(values, size * 2);
+                values[size++] = value;
+            }
+            return code;
+        }
+
+        void clear() {
+            codes.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * Rows of the current batch by column, reused for every batch
+     */
+    private static class Batch {
+
+        final int[] types;
+        final int[] sqlTypes;
+        final long[][] nulls;
+        final long[][] longs;
+        final double[][] doubles;
+        final int[][] codes;
+        final Dictionary[] dictionaries;
+        int size;
+
+        Batch(int[] types, int[] sqlTypes) {
+            this.types = types;
+            this.sqlTypes = sqlTypes;
+            int columns = types.length;
+            nulls = new long[columns][(BATCH_ROWS + 63) / 64];
+            longs = new long[columns][];
+            doubles = new double[columns][];
+            codes = new int[columns][];
+            dictionaries = new Dictionary[columns];
+            for (int c = 0; c < columns; c++) {
+                if (types[c] == 0) longs[c] = new long[BATCH_ROWS];
+                else if (types[c] == 1) doubles[c] = new double[BATCH_ROWS];
+                else {
+                    codes[c] = new int[BATCH_ROWS];
+                    dictionaries[c] = new Dictionary();
+                }
+            }
+        }
+
+        void read(ResultSet row) throws SQLException {
+            for (int c = 0; c < types.length; c++) {
+                boolean isNull;
+                if (types[c] == 0) {
+                    longs[c][size] = readLong(row, c + 1, sqlTypes[c]);
+                    isNull = row.wasNull();
+                } else if (types[c] == 1) {
+                    doubles[c][size] = row.getDouble(c + 1);
+                    isNull = row.wasNull();
+                } else {
+                    String value = row.getString(c + 1);
+                    isNull = value == null;
+                    codes[c][size] = isNull ? -1 : dictionaries[c].code(value);
+                }
+                if (isNull) nulls[c][size / 64] |= 1L << (size % 64);
+            }
+            size++;
+        }
+
+        private static long readLong(ResultSet row, int index, int sqlType) throws SQLException {
+            switch (sqlType) {
+                case Types.DATE:
+                    Date date = row.getDate(index);
+                    return date == null ? 0 : date.toLocalDate().toEpochDay();
+                case Types.TIME:
+                    Time time = row.getTime(index);
+                    return time == null ? 0 : time.toLocalTime().toSecondOfDay();
+                case Types.TIMESTAMP:
+                    Timestamp timestamp = row.getTimestamp(index);
+                    return timestamp == null ? 0 : timestamp.getTime();
+                default:
+                    return row.getLong(index);
+            }
+        }
+
+        void clear() {
+            for (int c = 0; c < types.length; c++) {
+                Arrays.fill(nulls[c], 0L);
+                if (dictionaries[c] != null) dictionaries[c].clear();
+            }
+            size = 0;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package edu.uci.ics.tippers.fileop;
 
-import au.com.bytecode.opencsv.CSVWriter;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
@@ -13,7 +14,9 @@ import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 
 
@@ -21,15 +24,49 @@ public class Writer {
 
     DateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
-    public void writeResultsToCSV(ResultSet rs, String fileName) {
-        Boolean includeHeaders = false;
-        CSVWriter writer = null;
+    private static final int MAX_APPENDERS = 16;
+
+    /** files appended to by writeString, the least recently used one is closed once MAX_APPENDERS are open */
+    private static final Map<String, BufferedWriter> APPENDERS = new LinkedHashMap<String, BufferedWriter>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BufferedWriter> eldest) {
+            if (size() <= MAX_APPENDERS) return false;
+            closeQuietly(eldest.getValue());
+            return true;
+        }
+    };
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(Writer::closeAppenders));
+    }
+
+    /**
+     * Closes the files kept open by writeString, they are opened again on the next write
+     */
+    public static void closeAppenders() {
+        synchronized (APPENDERS) {
+            for (BufferedWriter writer : APPENDERS.values()) closeQuietly(writer);
+            APPENDERS.clear();
+        }
+    }
+
+    private static void closeQuietly(BufferedWriter writer) {
         try {
-            writer = new CSVWriter(new FileWriter(fileName + ".csv"), '\t');
-            writer.writeAll(rs, includeHeaders);
             writer.close();
         } catch (IOException e) {
             e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the rows of the result set to fileName.csv, quoted values separated by tabs, through a ResultExporter
+     * @param rs
+     * @param fileName
+     */
+    public void writeResultsToCSV(ResultSet rs, String fileName) {
+        try (ResultExporter exporter = new ResultExporter(Paths.get(fileName + ".csv"), ResultExporter.Format.CSV,
+                ResultExporter.Compression.NONE)) {
+            exporter.exportAll(rs);
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -54,6 +91,23 @@ public class Writer {
         }
     }
 
+    /**
+     * Opens dir/filename.json for writing a JSON array one item at a time, in the format of writeJSONToFile
+     * @param dir
+     * @param filename
+     * @return generator positioned inside the array, the caller writes the end of the array and closes it
+     * @throws IOException
+     */
+    public JsonGenerator openJSONArray(String dir, String filename) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.setDateFormat(formatter);
+        JsonGenerator generator = mapper.getFactory().createGenerator(new File(String.valueOf(Paths.get(dir, filename + ".json"))),
+                JsonEncoding.UTF8);
+        generator.setPrettyPrinter(new DefaultPrettyPrinter());
+        generator.writeStartArray();
+        return generator;
+    }
+
     public void createTextReport(TreeMap<String, Duration> runTimes, String fileDir) {
         try {
             BufferedWriter writer = new BufferedWriter(new FileWriter(fileDir + "results.csv"));
@@ -120,16 +174,29 @@ public class Writer {
         }
     }
 
+    /**
+     * Appends to fileDir + fileName, the file is kept open for the following appends and flushed after each of them
+     * @param results
+     * @param fileDir
+     * @param fileName
+     */
     public void writeString(String results, String fileDir, String fileName) {
-        try {
-            BufferedWriter writer = new BufferedWriter(new FileWriter(fileDir + fileName, true));
-            writer.write(results);
-            writer.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        synchronized (APPENDERS) {
+            try {
+                BufferedWriter writer = APPENDERS.get(fileDir + fileName);
+                if (writer == null) {
+                    writer = new BufferedWriter(new FileWriter(fileDir + fileName, true));
+                    APPENDERS.put(fileDir + fileName, writer);
+                }
+                writer.write(results);
+                writer.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
+
     public void writeToFile(List<String> entries, String fileName, String fileDir){
         FileWriter writer = null;
         try {
@@ -2,6 +2,8 @@ package edu.uci.ics.tippers.generation.data.WiFi;
 
 import com.opencsv.CSVReader;
 import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.dbms.IngestWatermark;
+import edu.uci.ics.tippers.dbms.mysql.HistogramManager;
 import edu.uci.ics.tippers.dbms.mysql.MySQLConnectionManager;
 import org.json.JSONObject;
 
@@ -27,6 +29,7 @@ public class PresenceDataGeneration {
             e.printStackTrace();
         }
         this.user_id_map = new HashMap<>();
+        IngestWatermark.getInstance().addListener(HistogramManager.getInstance()::rowsIngested);
     }
 
     private void getAllUsers() {
@@ -82,6 +85,7 @@ public class PresenceDataGeneration {
                 "(USER_ID, LOCATION_ID, START_DATE, START_TIME) " +
                 "VALUES (?, ?, ?, ?)";
         int presenceCount = 0;
+        long firstDay = Long.MAX_VALUE, lastDay = Long.MIN_VALUE;
         try {
             InputStream in = getClass().getResourceAsStream(fileName);
             InputStreamReader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
@@ -114,14 +118,22 @@ public class PresenceDataGeneration {
                 presenceStmt.setTime(4, startTime);
                 presenceStmt.addBatch();
                 presenceCount++;
+                long day = startDate.toLocalDate().toEpochDay();
+                firstDay = Math.min(firstDay, day);
+                lastDay = Math.max(lastDay, day);
                 if (presenceCount % PolicyConstants.BATCH_SIZE_INSERTION == 0) {
                     presenceStmt.executeBatch();
+                    IngestWatermark.getInstance().rowsIngested(PolicyConstants.BATCH_SIZE_INSERTION, firstDay, lastDay);
+                    firstDay = Long.MAX_VALUE;
+                    lastDay = Long.MIN_VALUE;
                     System.out.println("# " + presenceCount + " inserted");
 //                    presenceStmt.close(); // needed for postgres
                 }
             }
             presenceStmt.executeBatch();
             presenceStmt.close();
+            IngestWatermark.getInstance().rowsIngested(presenceCount % PolicyConstants.BATCH_SIZE_INSERTION,
+                    firstDay, lastDay);
         } catch (IOException | SQLException e) {
             e.printStackTrace();
         }
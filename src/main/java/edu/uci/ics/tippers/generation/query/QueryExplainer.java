@@ -1,8 +1,8 @@
 package edu.uci.ics.tippers.generation.query;
 
 import edu.uci.ics.tippers.common.PolicyConstants;
-import edu.uci.ics.tippers.dbms.mysql.MySQLConnectionManager;
 import edu.uci.ics.tippers.model.query.QueryStatement;
+import org.apache.commons.dbutils.DbUtils;
 
 import java.sql.*;
 import java.util.ArrayList;
@@ -10,8 +10,6 @@ import java.util.List;
 
 public class QueryExplainer {
 
-    private static Connection connection = MySQLConnectionManager.getInstance().getConnection();
-
     public QExplain access_method(QueryStatement queryStatement){
         PreparedStatement explainStm = null;
         QExplain qe = new QExplain();
@@ -21,7 +19,7 @@ public class QueryExplainer {
         }
         else
             queryPredicates = "SELECT * from PRESENCE where " + queryPredicates;
-        try{
+        try (Connection connection = PolicyConstants.getDataSource().getConnection()) {
             explainStm = connection.prepareStatement("explain " + queryPredicates);
             ResultSet rs = explainStm.executeQuery();
             rs.next();
@@ -38,6 +36,8 @@ public class QueryExplainer {
             }
         } catch(SQLException e) {
             e.printStackTrace();
+        } finally {
+            DbUtils.closeQuietly(explainStm);
         }
         return qe;
     }
@@ -45,7 +45,7 @@ public class QueryExplainer {
     public String printExplain(String query){
         PreparedStatement explainStm = null;
         StringBuilder exResult = new StringBuilder();
-        try {
+        try (Connection connection = PolicyConstants.getDataSource().getConnection()) {
             explainStm = connection.prepareStatement("explain " + query);
             ResultSet rs = explainStm.executeQuery();
             ResultSetMetaData metaData = rs.getMetaData();
@@ -60,6 +60,8 @@ public class QueryExplainer {
             }
         } catch(SQLException e) {
             e.printStackTrace();
+        } finally {
+            DbUtils.closeQuietly(explainStm);
         }
         return exResult.toString();
     }
@@ -0,0 +1,14 @@
+package edu.uci.ics.tippers.model.guard;
+
+/**
+ * Ways of removing the rows denied by the deny guards of a querier from the rows allowed by the allow guards
+ * A LEFT JOIN anti join is not a separate strategy: the engines plan it like NOT EXISTS (hash anti join on id).
+ * EXCEPT is not used either, it compares whole rows and is only supported by MySQL from 8.0.31.
+ */
+public enum DenyStrategy {
+
+    /** Allowed rows filtered with the negated deny guards and partitions */
+    NOT_PREDICATE,
+    /** Allowed rows without a denied row of the same id, the denied rows are read with the deny guard indexes */
+    NOT_EXISTS
+}
@@ -0,0 +1,343 @@
+package edu.uci.ics.tippers.model.guard;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.model.policy.BEPolicy;
+import edu.uci.ics.tippers.model.policy.BooleanPredicate;
+import edu.uci.ics.tippers.model.policy.ObjectCondition;
+import edu.uci.ics.tippers.persistor.GuardPersistor;
+import edu.uci.ics.tippers.persistor.PolicyStore;
+
+import java.sql.Timestamp;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Policies, guarded expression and compiled SQL fragments (e.g. inline and UDF rewrites) of a querier,
+ * kept between queries so that a query does not start with the retrieval of its policies and guards.
+ * The size of every entry is estimated and entries are evicted once guard_cache_bytes is exceeded,
+ * in least recently used order (guard_cache_eviction = lru) or, with lfu, skipping entries used more than once
+ * and halving their use count so that frequently used queriers stay cached.
+ * Entries of a querier are dropped when its policies or guards are inserted.
+ * A cached guard that needs re-costing (GuardExp.needsRecosting) is still used while it is re-costed in the background,
+ * at most once every guard_cache_refresh milliseconds.
+ * With guard_cache_bytes = 0 every call retrieves the policies and guards again.
+ */
+public class GuardCache {
+
+    private static GuardCache _instance;
+
+    private final LinkedHashMap<String, CachedGuard> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final long budget;
+
+    private final boolean lfu;
+
+    private final long refreshInterval;
+
+    private long bytes;
+
+    /** incremented on every invalidation so that entries loaded before it are not cached */
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong(),
+            invalidations = new AtomicLong(), refreshes = new AtomicLong();
+
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "guard-cache-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private GuardCache(long budget, boolean lfu, long refreshInterval) {
+        this.budget = budget;
+        this.lfu = lfu;
+        this.refreshInterval = refreshInterval;
+    }
+
+    public static synchronized GuardCache getInstance() {
+        if (_instance == null)
+            _instance = new GuardCache(PolicyConstants.GUARD_CACHE_BYTES,
+                    "lfu".equalsIgnoreCase(PolicyConstants.GUARD_CACHE_EVICTION), PolicyConstants.GUARD_CACHE_REFRESH);
+        return _instance;
+    }
+
+    public boolean isEnabled() {
+        return budget > 0;
+    }
+
+    /**
+     * Policies and guarded expression of the querier with the enforcement action, they must not be modified
+     */
+    public class CachedGuard {
+
+        private final String key, querier, querier_type, enforcement_action;
+
+        private final List<BEPolicy> policies;
+
+        private volatile GuardExp guardExp;
+
+        private final Map<String, String> fragments = new ConcurrentHashMap<>();
+
+        private long size;
+
+        private int uses = 1;
+
+        private volatile boolean refreshing;
+
+        private volatile long refreshedAt;
+
+        CachedGuard(String key, String querier, String querier_type, String enforcement_action,
+                    List<BEPolicy> policies, GuardExp guardExp) {
+            this.key = key;
+            this.querier = querier;
+            this.querier_type = querier_type;
+            this.enforcement_action = enforcement_action;
+            this.policies = policies;
+            this.guardExp = guardExp;
+            this.size = estimate(policies, guardExp);
+        }
+
+        /**
+         * @return policies of the querier, null if it has none
+         */
+        public List<BEPolicy> getPolicies() {
+            return policies;
+        }
+
+        /**
+         * @return guarded expression of the policies, null if the querier has no policies
+         */
+        public GuardExp getGuardExp() {
+            return guardExp;
+        }
+
+        /**
+         * SQL compiled from the guarded expression once and reused by later queries of the querier
+         * @param name identifies the fragment, e.g. the rewrite it was compiled for
+         * @param compiler builds the fragment from the guarded expression
+         * @return
+         */
+        public String fragment(String name, Function<GuardExp, String> compiler) {
+            String sql = fragments.get(name);
+            if (sql != null) return sql;
+            sql = compiler.apply(guardExp);
+            if (fragments.putIfAbsent(name, sql) == null) resized(this, stringBytes(name) + stringBytes(sql));
+            return sql;
+        }
+    }
+
+    private static String key(String querier, String querier_type, String enforcement_action) {
+        return querier_type.toLowerCase() + "|" + querier + "|" + enforcement_action;
+    }
+
+    /**
+     * Cached policies and guarded expression of the querier, retrieved from the policy store
+     * and the guard persistor on a miss
+     * @param querier
+     * @param querier_type user or group
+     * @param enforcement_action allow or deny
+     * @return
+     */
+    public CachedGuard get(String querier, String querier_type, String enforcement_action) {
+        String key = key(querier, querier_type, enforcement_action);
+        CachedGuard cached;
+        long loadedGeneration;
+        synchronized (this) {
+            cached = entries.get(key);
+            if (cached != null) cached.uses++;
+            loadedGeneration = generation;
+        }
+        if (cached != null) {
+            hits.incrementAndGet();
+            refreshIfNeeded(cached);
+            return cached;
+        }
+        misses.incrementAndGet();
+        List<BEPolicy> policies = PolicyStore.getInstance().retrievePolicies(querier, querier_type, enforcement_action);
+        GuardExp guardExp = policies == null ? null : GuardPersistor.getInstance()
+                .retrieveGuardExpression(querier, querier_type, enforcement_action, policies);
+        CachedGuard loaded = new CachedGuard(key, querier, querier_type, enforcement_action, policies, guardExp);
+        if (!isEnabled()) return loaded;
+        synchronized (this) {
+            if (generation != loadedGeneration) return loaded;
+            CachedGuard raced = entries.get(key);
+            if (raced != null) return raced;
+            entries.put(key, loaded);
+            bytes += loaded.size;
+            evict();
+        }
+        return loaded;
+    }
+
+    private synchronized void resized(CachedGuard cached, long added) {
+        cached.size += added;
+        if (entries.get(cached.key) != cached) return;
+        bytes += added;
+        evict();
+    }
+
+    /**
+     * Evicts from the least recently used entry until the cache is within its budget,
+     * with lfu an entry used more than once has its use count halved instead
+     */
+    private void evict() {
+        while (bytes > budget && !entries.isEmpty()) {
+            Iterator<CachedGuard> it = entries.values().iterator();
+            while (bytes > budget && it.hasNext()) {
+                CachedGuard eldest = it.next();
+                if (lfu && eldest.uses > 1) {
+                    eldest.uses /= 2;
+                    continue;
+                }
+                it.remove();
+                bytes -= eldest.size;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Re-costs the guarded expression of the entry in the background if it needs re-costing
+     */
+    private void refreshIfNeeded(CachedGuard cached) {
+        GuardExp guardExp = cached.guardExp;
+        if (guardExp == null || guardExp.getId() == null || !guardExp.needsRecosting()) return;
+        synchronized (cached) {
+            if (cached.refreshing || System.currentTimeMillis() - cached.refreshedAt < refreshInterval) return;
+            cached.refreshing = true;
+        }
+        refresher.execute(() -> {
+            try {
+                GuardExp fresh = GuardPersistor.getInstance().retrieveGuardExpression(cached.querier,
+                        cached.querier_type, cached.enforcement_action, cached.policies);
+                if (fresh.needsRecosting()) GuardPersistor.getInstance().recost(fresh);
+                synchronized (this) {
+                    if (entries.get(cached.key) == cached) {
+                        cached.guardExp = fresh;
+                        cached.fragments.clear();
+                        long size = estimate(cached.policies, fresh);
+                        bytes += size - cached.size;
+                        cached.size = size;
+                        evict();
+                    }
+                }
+                refreshes.incrementAndGet();
+            } catch (RuntimeException | Error e) {
+                System.out.println("Refreshing the guards of querier " + cached.querier + " failed " + e);
+            } finally {
+                cached.refreshedAt = System.currentTimeMillis();
+                cached.refreshing = false;
+            }
+        });
+    }
+
+    /**
+     * Drops the cached policies and guards of the querier, e.g. after its policies or guards are inserted
+     * @param querier
+     * @param querier_type
+     */
+    public synchronized void invalidate(String querier, String querier_type) {
+        generation++;
+        for (String enforcement_action : new String[]{PolicyConstants.ACTION_ALLOW, PolicyConstants.ACTION_DENY}) {
+            CachedGuard cached = entries.remove(key(querier, querier_type, enforcement_action));
+            if (cached == null) continue;
+            bytes -= cached.size;
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Flags the cached guards costed before the given time, see GuardPersistor.markDirty
+     * @param costedBefore
+     */
+    public synchronized void markDirty(Timestamp costedBefore) {
+        for (CachedGuard cached : entries.values()) {
+            GuardExp guardExp = cached.guardExp;
+            if (guardExp != null && guardExp.getLast_updated() != null && guardExp.getLast_updated().before(costedBefore))
+                guardExp.setDirty("true");
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        invalidations.addAndGet(entries.size());
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Approximate heap size of the policies and the guarded expression of an entry
+     */
+    private static long estimate(List<BEPolicy> policies, GuardExp guardExp) {
+        long size = 128;
+        if (policies != null)
+            for (BEPolicy bp : policies) {
+                size += 96 + stringBytes(bp.getId()) + 2 * 160;
+                for (ObjectCondition oc : bp.getObject_conditions()) size += conditionBytes(oc);
+            }
+        if (guardExp != null)
+            for (GuardPart gp : guardExp.getGuardParts()) {
+                size += 96 + stringBytes(gp.getId()) + conditionBytes(gp.getGuard());
+                if (gp.getGuardPartition() != null) size += 48 + 8L * gp.getGuardPartition().getPolicies().size();
+            }
+        return size;
+    }
+
+    private static long conditionBytes(ObjectCondition oc) {
+        if (oc == null) return 0;
+        long size = 64;
+        for (BooleanPredicate bp : oc.getBooleanPredicates()) size += 32 + stringBytes(bp.getValue());
+        return size;
+    }
+
+    private static long stringBytes(String value) {
+        return value == null ? 0 : 40 + 2L * value.length();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    public double getHitRatio() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0.0 : (double) hits.get() / lookups;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "GuardCache{size=" + size() + ", bytes=" + getBytes() + ", budget=" + budget + ", hits=" + getHits()
+                + ", misses=" + getMisses() + ", hitRatio=" + getHitRatio() + ", evictions=" + getEvictions()
+                + ", invalidations=" + getInvalidations() + ", refreshes=" + getRefreshes() + "}";
+    }
+}
@@ -0,0 +1,171 @@
+package edu.uci.ics.tippers.model.guard;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.model.policy.BEExpression;
+import edu.uci.ics.tippers.model.policy.BEPolicy;
+import edu.uci.ics.tippers.persistor.GuardPersistor;
+import edu.uci.ics.tippers.persistor.PolicyStore;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Combines at query time the guarded expression of the user policies of a querier with the guarded expressions
+ * of the group policies of every group the querier belongs to (USER_GROUP_MEMBERSHIP).
+ * Guard parts with the same guard predicate are merged into one part whose partition has the policies of all of them,
+ * so that the guard index is scanned once for the querier and not once per group.
+ * Group guarded expressions are cached and shared by all members of the group until the guards of the group
+ * are regenerated (GuardPersistor.insertGuard) or invalidated explicitly.
+ */
+public class GuardCombiner {
+
+    private static GuardCombiner _instance;
+
+    private final Map<String, GuardExp> groupGuards = new ConcurrentHashMap<>();
+
+    private final PolicyStore policyStore;
+
+    private final GuardPersistor guardPersistor;
+
+    private GuardCombiner() {
+        this.policyStore = PolicyStore.getInstance();
+        this.guardPersistor = GuardPersistor.getInstance();
+    }
+
+    public static synchronized GuardCombiner getInstance() {
+        if (_instance == null) _instance = new GuardCombiner();
+        return _instance;
+    }
+
+    /**
+     * Guarded expression of the user policies and the group policies of the querier
+     * @param querier
+     * @param enforcement_action allow or deny
+     * @return combined expression, without guard parts if the querier has no policies with the action
+     */
+    public GuardExp combine(String querier, String enforcement_action) {
+        List<GuardExp> guardExps = new ArrayList<>();
+        List<BEPolicy> userPolicies = policyStore.retrievePolicies(querier, PolicyConstants.USER_INDIVIDUAL, enforcement_action);
+        if (userPolicies != null)
+            guardExps.add(guardPersistor.retrieveGuardExpression(querier, PolicyConstants.USER_INDIVIDUAL,
+                    enforcement_action, userPolicies));
+        for (String group : retrieveGroups(querier))
+            guardExps.add(groupGuard(group, enforcement_action));
+        return merge(querier, enforcement_action, guardExps);
+    }
+
+    /**
+     * Cached guarded expression of the group, retrieved once for all members
+     * @param group
+     * @param enforcement_action
+     * @return
+     */
+    public GuardExp groupGuard(String group, String enforcement_action) {
+        return groupGuards.computeIfAbsent(group + "|" + enforcement_action, k -> {
+            List<BEPolicy> groupPolicies = policyStore.retrievePolicies(group, PolicyConstants.USER_GROUP, enforcement_action);
+            if (groupPolicies == null) {
+                GuardExp empty = new GuardExp(null, null, enforcement_action, null, new ArrayList<>());
+                empty.setQuerier(group);
+                empty.setQuerier_type(PolicyConstants.USER_GROUP);
+                return empty;
+            }
+            return guardPersistor.retrieveGuardExpression(group, PolicyConstants.USER_GROUP,
+                    enforcement_action, groupPolicies);
+        });
+    }
+
+    /**
+     * Drops the cached guarded expressions of the group, e.g. after its guards are regenerated
+     * @param group
+     */
+    public void invalidate(String group) {
+        groupGuards.keySet().removeIf(k -> k.startsWith(group + "|"));
+    }
+
+    public void clear() {
+        groupGuards.clear();
+    }
+
+    private List<String> retrieveGroups(String querier) {
+        List<String> groups = new ArrayList<>();
+        try (Connection connection = PolicyConstants.getDataSource().getConnection();
+             PreparedStatement queryStm = connection.prepareStatement(
+                "SELECT distinct USER_GROUP_ID as ugid FROM USER_GROUP_MEMBERSHIP WHERE USER_ID = ?")) {
+            queryStm.setInt(1, Integer.parseInt(querier));
+            ResultSet rs = queryStm.executeQuery();
+            while (rs.next()) groups.add(rs.getString("ugid"));
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return groups;
+    }
+
+    /**
+     * Merges the guarded expressions into one for the querier
+     * Guard parts with equal guards (ignoring ids) share one part with the union of their partitions;
+     * parts that are not merged are reused as they are, so cached group expressions are never modified.
+     * The id is derived from the ids of the merged expressions and last_updated is the latest of them,
+     * so that caches keyed on the guarded expression see any change of the user or of a group guard.
+     * @param querier
+     * @param enforcement_action
+     * @param guardExps
+     * @return
+     */
+    public static GuardExp merge(String querier, String enforcement_action, List<GuardExp> guardExps) {
+        List<GuardPart> merged = new ArrayList<>();
+        StringBuilder ids = new StringBuilder();
+        Timestamp lastUpdated = null;
+        String purpose = null;
+        boolean dirty = false;
+        for (GuardExp guardExp : guardExps) {
+            if (guardExp.getGuardParts().isEmpty()) continue;
+            ids.append(guardExp.getId()).append("|");
+            if (lastUpdated == null || (guardExp.getLast_updated() != null && guardExp.getLast_updated().after(lastUpdated)))
+                lastUpdated = guardExp.getLast_updated();
+            if (purpose == null) purpose = guardExp.getPurpose();
+            dirty |= "true".equalsIgnoreCase(guardExp.getDirty());
+            for (GuardPart gp : guardExp.getGuardParts()) {
+                int match = -1;
+                for (int i = 0; i < merged.size(); i++) {
+                    if (merged.get(i).getGuard().equalsWithoutId(gp.getGuard())) {
+                        match = i;
+                        break;
+                    }
+                }
+                if (match < 0) merged.add(gp);
+                else merged.set(match, mergeParts(merged.get(match), gp));
+            }
+        }
+        String id = ids.length() == 0 ? null : UUID.nameUUIDFromBytes(ids.toString().getBytes(StandardCharsets.UTF_8)).toString();
+        GuardExp combined = new GuardExp(id, purpose, enforcement_action, lastUpdated, merged);
+        combined.setQuerier(querier);
+        combined.setQuerier_type(PolicyConstants.USER_INDIVIDUAL);
+        combined.setDirty(String.valueOf(dirty));
+        return combined;
+    }
+
+    private static GuardPart mergeParts(GuardPart first, GuardPart second) {
+        List<BEPolicy> policies = new ArrayList<>(first.getGuardPartition().getPolicies());
+        Set<String> policyIds = new HashSet<>();
+        for (BEPolicy bp : policies) policyIds.add(bp.getId());
+        for (BEPolicy bp : second.getGuardPartition().getPolicies())
+            if (policyIds.add(bp.getId())) policies.add(bp);
+        GuardPart gp = new GuardPart();
+        gp.setId(first.getId());
+        gp.setGuard(first.getGuard());
+        gp.setCardinality(first.getCardinality());
+        gp.setGuardPartition(new BEExpression(policies));
+        return gp;
+    }
+}
@@ -2,11 +2,24 @@ package edu.uci.ics.tippers.model.guard;
 
 import edu.uci.ics.tippers.common.PolicyConstants;
 import edu.uci.ics.tippers.common.PolicyEngineException;
+import edu.uci.ics.tippers.dbms.CountQuery;
+import edu.uci.ics.tippers.dbms.mysql.Histogram;
+import edu.uci.ics.tippers.model.policy.BEExpression;
 import edu.uci.ics.tippers.model.policy.BEPolicy;
+import edu.uci.ics.tippers.model.policy.BooleanPredicate;
+import edu.uci.ics.tippers.model.policy.ObjectCondition;
+import edu.uci.ics.tippers.model.policy.Operation;
+import edu.uci.ics.tippers.model.query.ConjunctiveQuery;
+import edu.uci.ics.tippers.persistor.PolicyFunctionPersistor;
+import edu.uci.ics.tippers.persistor.PolicyLookupPersistor;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class GuardExp {
 
@@ -26,6 +39,18 @@ public class GuardExp {
 
     List<GuardPart> guardParts;
 
+    /**
+     * predicate of the query pushed into every guard branch by pushdown, null if none
+     */
+    String pushedPredicate;
+
+    /**
+     * policy functions and lookups referenced by the queries generated from this expression, see deploy
+     */
+    final Map<String, PolicyFunction> functions = new ConcurrentHashMap<>();
+
+    final Map<String, PolicyLookup> lookups = new ConcurrentHashMap<>();
+
     public GuardExp(String id, String purpose, String action, Timestamp last_updated, List<GuardPart> guardParts) {
         this.id = id;
         this.purpose = purpose;
@@ -106,6 +131,70 @@ public class GuardExp {
         return this.querier_type.equalsIgnoreCase("user");
     }
 
+    /**
+     * A guard has to be re-costed if it was marked dirty or if it was built before
+     * the histograms currently used for estimation were generated
+     * @return
+     */
+    public boolean needsRecosting() {
+        if ("true".equalsIgnoreCase(this.dirty)) return true;
+        long histogramBuiltAt = Histogram.currentBuiltAt();
+        return this.last_updated != null && histogramBuiltAt > 0 && this.last_updated.getTime() < histogramBuiltAt;
+    }
+
+    /**
+     * Copy of the guarded expression for a single query: the conjuncts of the query on the base table
+     * are added to every guard branch, guard parts whose guard cannot intersect the query and
+     * policies whose object conditions cannot intersect the query are dropped.
+     * If no guard part is left, the first one is kept so that the rewrites stay valid and return no rows.
+     * @param query
+     * @return
+     */
+    public GuardExp pushdown(ConjunctiveQuery query) {
+        GuardExp pushed = new GuardExp(id, purpose, action, last_updated, new ArrayList<>());
+        pushed.querier = querier;
+        pushed.querier_type = querier_type;
+        pushed.dirty = dirty;
+        pushed.pushedPredicate = query.pushablePredicate();
+        for (GuardPart gp : this.guardParts) {
+            if (!query.intersects(gp.getGuard())) continue;
+            List<BEPolicy> policies = new ArrayList<>();
+            for (BEPolicy bp : gp.getGuardPartition().getPolicies())
+                if (query.intersects(bp)) policies.add(bp);
+            if (policies.isEmpty()) continue;
+            if (policies.size() == gp.getGuardPartition().getPolicies().size()) {
+                pushed.guardParts.add(gp);
+                continue;
+            }
+            GuardPart pruned = new GuardPart();
+            pruned.setId(gp.getId());
+            pruned.setGuard(gp.getGuard());
+            pruned.setCardinality(gp.getCardinality());
+            pruned.setInline(gp.isInline());
+            pruned.setGuardPartition(new BEExpression(policies));
+            pushed.guardParts.add(pruned);
+        }
+        if (pushed.guardParts.isEmpty() && !this.guardParts.isEmpty())
+            pushed.guardParts.add(this.guardParts.get(0));
+        return pushed;
+    }
+
+    public String getPushedPredicate() {
+        return pushedPredicate;
+    }
+
+    /**
+     * Select * from TABLE_NAME where (Q) AND (guards combined with OR), Q being the pushed query predicate
+     * @param guards
+     * @return
+     */
+    private String orOfGuards(String guards) {
+        if (pushedPredicate == null)
+            return PolicyConstants.SELECT_ALL_WHERE + guards;
+        return PolicyConstants.SELECT_ALL_WHERE + "(" + pushedPredicate + ")" + PolicyConstants.CONJUNCTION
+                + "(" + guards + ")";
+    }
+
     /**
      * Creates the complete guarded query string
      * SELECT * FROM PRESENCE where G1 AND (P1) OR G2 AND (P2) OR .......... GN AND (PN)
@@ -125,39 +214,161 @@ public class GuardExp {
     }
 
     /**
-     * Creates the complete guarded query string with or without hints depending on DBMS_CHOICE value
+     * Creates the complete guarded query string with the index hints of the DBMS dialect
      * @return query string
      */
     public String createQueryWithUnion(boolean remove_duplicate){
-        StringBuilder queryExp = new StringBuilder();
-        String delim = "";
-        if (PolicyConstants.DBMS_CHOICE.equalsIgnoreCase(PolicyConstants.MYSQL_DBMS)) { //adding force index hints
-            for (GuardPart gp : this.guardParts) {
-                queryExp.append(delim);
-                queryExp.append(PolicyConstants.SELECT_ALL)
-                        .append(" force index (")
-                        .append(PolicyConstants.ATTRIBUTE_INDEXES.get(gp.getGuard().getAttribute()))
-                        .append(" ) Where")
-                        .append(gp.getGuard().print())
-                        .append(PolicyConstants.CONJUNCTION);
-                queryExp.append(gp.getGuardPartition().createQueryFromPolices());
-                delim = remove_duplicate? PolicyConstants.UNION: PolicyConstants.UNION_ALL;
+        return hint(unionOfGuards(remove_duplicate));
+    }
+
+    /**
+     * Counts the tuples of the guarded query on the DBMS.
+     * With UNION ALL, or when no tuple satisfies two guards, every branch computes its own count and the counts
+     * are added, otherwise the duplicates are removed by the UNION before counting.
+     * @param remove_duplicate
+     * @return statement returning the count in the column total
+     */
+    public String createCountWithUnion(boolean remove_duplicate){
+        if (remove_duplicate && !hasDisjointGuards())
+            return CountQuery.wrap(createQueryWithUnion(true));
+        List<String> branches = new ArrayList<>();
+        for (GuardPart gp : this.guardParts)
+            branches.add(guardScan(gp, "count(*) as " + CountQuery.COLUMN)
+                    + "(" + gp.getGuardPartition().createQueryFromPolices() + ")");
+        return hint(CountQuery.sum(branches));
+    }
+
+    /**
+     * Whether no tuple satisfies two of the guards, i.e. the guards are on the same attribute
+     * and their ranges, an equality being a range of one value, do not overlap
+     * @return
+     */
+    public boolean hasDisjointGuards(){
+        List<BooleanPredicate[]> ranges = new ArrayList<>();
+        String attribute = null;
+        for (GuardPart gp : this.guardParts) {
+            ObjectCondition guard = gp.getGuard();
+            if (attribute != null && !attribute.equalsIgnoreCase(guard.getAttribute())) return false;
+            attribute = guard.getAttribute();
+            BooleanPredicate[] range = new BooleanPredicate[2];
+            for (BooleanPredicate bp : guard.getBooleanPredicates()) {
+                if (bp.getOperator() == Operation.EQ) {
+                    range[0] = bp;
+                    range[1] = bp;
+                } else if (bp.getOperator() == Operation.GTE) range[0] = bp;
+                else if (bp.getOperator() == Operation.LTE) range[1] = bp;
+                else return false;
             }
+            if (range[0] == null || range[1] == null) return false;
+            ranges.add(range);
         }
-        else if (PolicyConstants.DBMS_CHOICE.equalsIgnoreCase(PolicyConstants.PGSQL_DBMS)) { //no hints added
-            for (GuardPart gp: this.guardParts) {
-                queryExp.append(delim);
-                queryExp.append(PolicyConstants.SELECT_ALL_WHERE)
-                        .append(gp.getGuard().print());
-                queryExp.append(PolicyConstants.CONJUNCTION);
-                queryExp.append(gp.getGuardPartition().createQueryFromPolices());
-                delim = remove_duplicate? PolicyConstants.UNION: PolicyConstants.UNION_ALL;
-            }
+        try {
+            for (int i = 0; i < ranges.size(); i++)
+                for (int j = i + 1; j < ranges.size(); j++)
+                    if (ranges.get(i)[0].compareOnType(ranges.get(j)[1], attribute) <= 0
+                            && ranges.get(j)[0].compareOnType(ranges.get(i)[1], attribute) <= 0)
+                        return false;
+        } catch (PolicyEngineException | RuntimeException e) {
+            return false;
         }
-        else {
-            throw new PolicyEngineException("Unknown DBMS");
+        return true;
+    }
+
+    /**
+     * One statement per guard part with the query predicate pushed into it, to be executed independently
+     * Select * from TABLE_NAME (with the index of the guard) where G AND (P) AND (Q)
+     * @param queryPredicate predicates of the query on the base table, null if there are none
+     * @return
+     */
+    public List<String> branchQueries(String queryPredicate){
+        List<String> branches = new ArrayList<>();
+        for (GuardPart gp : this.guardParts) {
+            String branch = guardScan(gp) + "(" + gp.getGuardPartition().createQueryFromPolices() + ")";
+            if (queryPredicate != null)
+                branch += PolicyConstants.CONJUNCTION + "(" + queryPredicate + ")";
+            branches.add(PolicyConstants.getDialect().hint(branch, PolicyConstants.TABLE_NAME,
+                    Collections.singletonList(PolicyConstants.ATTRIBUTE_INDEXES.get(gp.getGuard().getAttribute()))));
         }
-        return  queryExp.toString();
+        return branches;
+    }
+
+    private String unionOfGuards(boolean remove_duplicate){
+        StringBuilder queryExp = new StringBuilder();
+        String delim = "";
+        for (GuardPart gp : this.guardParts) {
+            queryExp.append(delim);
+            queryExp.append(guardScan(gp));
+            queryExp.append("(").append(gp.getGuardPartition().createQueryFromPolices()).append(")");
+            delim = PolicyConstants.getDialect().union(remove_duplicate);
+        }
+        return queryExp.toString();
+    }
+
+    /**
+     * Select * from TABLE_NAME (with the index of the guard) where G AND (Q) AND
+     * @param gp
+     * @return
+     */
+    private String guardScan(GuardPart gp){
+        return guardScan(gp, "*");
+    }
+
+    /**
+     * Select projection from TABLE_NAME (with the index of the guard) where G AND (Q) AND
+     * @param gp
+     * @param projection
+     * @return
+     */
+    private String guardScan(GuardPart gp, String projection){
+        String scan = "Select " + projection + " from " + PolicyConstants.getDialect().scan(PolicyConstants.TABLE_NAME,
+                PolicyConstants.ATTRIBUTE_INDEXES.get(gp.getGuard().getAttribute()))
+                + " Where" + gp.getGuard().print() + PolicyConstants.CONJUNCTION;
+        if (pushedPredicate != null)
+            scan += "(" + pushedPredicate + ")" + PolicyConstants.CONJUNCTION;
+        return scan;
+    }
+
+    /**
+     * Call of the function generated for the partition of the guard part, created in the database by deploy
+     * @param gp
+     * @return
+     */
+    private String udfCheck(GuardPart gp){
+        PolicyFunction function = gp.getPolicyFunction();
+        functions.putIfAbsent(function.getName(), function);
+        return PolicyConstants.getDialect().udfCall(function.getName(), function.getArguments());
+    }
+
+    /**
+     * Creates the policy functions and stores the lookup rows referenced by the queries generated so far.
+     * Generating a query does not write to the database, e.g. when the optimizer only costs its rewrite,
+     * so this is called before a generated query is executed.
+     */
+    public void deploy() {
+        for (PolicyFunction function : functions.values())
+            PolicyFunctionPersistor.getInstance().deploy(function);
+        for (PolicyLookup lookup : lookups.values())
+            PolicyLookupPersistor.getInstance().deploy(lookup);
+    }
+
+    /**
+     * Indexes of the guards used in the rewrites
+     * @return
+     */
+    public List<String> guardIndexes(){
+        List<String> indexes = new ArrayList<>();
+        for (GuardPart gp : this.guardParts)
+            indexes.add(PolicyConstants.ATTRIBUTE_INDEXES.get(gp.getGuard().getAttribute()));
+        return indexes;
+    }
+
+    /**
+     * Adds the statement level hints of the DBMS dialect for the guard indexes to a complete query
+     * @param query
+     * @return
+     */
+    public String hint(String query){
+        return PolicyConstants.getDialect().hint(query, PolicyConstants.TABLE_NAME, guardIndexes());
     }
 
     /**
@@ -196,9 +407,19 @@ public class GuardExp {
         return gcost;
     }
 
+    /**
+     * Estimated cost of the guarded query, the scans of the guards and the cheapest evaluation of each partition
+     * @return
+     */
+    public double estimateCost(){
+        double cost = estimateCostofGuardScan();
+        for (GuardPart gp : this.guardParts)
+            cost += Math.min(Math.min(gp.estimateCostOfInline(), gp.estimateCostOfUDF()), gp.estimateCostOfLookup());
+        return cost;
+    }
+
     public String rewriteWithoutHint() {
         StringBuilder queryExp = new StringBuilder();
-        queryExp.append("WITH polEval as (");
         String delim = "";
         for (GuardPart gp : this.guardParts) {
             queryExp.append(delim);
@@ -207,39 +428,41 @@ public class GuardExp {
                     .append(gp.getGuard().print())
                     .append(PolicyConstants.CONJUNCTION);
             queryExp.append(gp.getGuardPartition().createQueryFromPolices());
-            delim = PolicyConstants.UNION;
+            delim = PolicyConstants.getDialect().union(true);
         }
-        queryExp.append(")");
-        return queryExp.toString();
+        return PolicyConstants.getDialect().cte("polEval", queryExp.toString());
     }
 
     public String inlineRewrite(boolean union) {
+        return PolicyConstants.getDialect().cte("polEval", inlineQuery(union));
+    }
+
+    /**
+     * Guarded expression with the policies of every guard inlined
+     * @param union guards combined with UNION or OR
+     * @return statement over the base table
+     */
+    String inlineQuery(boolean union) {
         StringBuilder queryExp = new StringBuilder();
-        queryExp.append("WITH polEval as (");
         String delim = "";
         if (union) {
             for (GuardPart gp : this.guardParts) {
                 queryExp.append(delim);
-                queryExp.append(PolicyConstants.SELECT_ALL)
-                        .append(" force index (")
-                        .append(PolicyConstants.ATTRIBUTE_INDEXES.get(gp.getGuard().getAttribute()))
-                        .append(" ) Where")
-                        .append(gp.getGuard().print())
-                        .append(PolicyConstants.CONJUNCTION);
-                queryExp.append(gp.getGuardPartition().createQueryFromPolices());
-                delim = PolicyConstants.UNION;
+                queryExp.append(guardScan(gp));
+                queryExp.append("(").append(gp.getGuardPartition().createQueryFromPolices()).append(")");
+                delim = PolicyConstants.getDialect().union(true);
             }
         }
         else {
-            queryExp.append(PolicyConstants.SELECT_ALL_WHERE);
+            StringBuilder guards = new StringBuilder();
             for (GuardPart gp: this.guardParts) {
-                queryExp.append(delim).append(gp.getGuard().print())
+                guards.append(delim).append(gp.getGuard().print())
                         .append(PolicyConstants.CONJUNCTION);
-                queryExp.append(gp.getGuardPartition().createQueryFromPolices());
+                guards.append(gp.getGuardPartition().createQueryFromPolices());
                 delim = PolicyConstants.DISJUNCTION;
             }
+            queryExp.append(orOfGuards(guards.toString()));
         }
-        queryExp.append(")");
         return queryExp.toString();
     }
 
@@ -251,48 +474,44 @@ public class GuardExp {
      * @return
      */
     public String queryRewrite(boolean cte, boolean union) {
-        String query = null;
-        if (cte) query = "WITH polEval as (";
+        String query;
         if (union)
-            query += createQueryWithUnion(true); //Change it to false to have UNION ALL
+            query = unionOfGuards(true); //Change it to false to have UNION ALL
         else
-            query += PolicyConstants.SELECT_ALL_WHERE +  createQueryWithOR();
-        if(cte) query += ") SELECT * from polEval";
-        return query;
+            query = orOfGuards(createQueryWithOR());
+        if(cte) query = PolicyConstants.getDialect().cte("polEval", query) + " SELECT * from polEval";
+        return hint(query);
     }
 
     public String udfRewrite(boolean union) {
+        return PolicyConstants.getDialect().cte("polEval", udfQuery(union));
+    }
+
+    /**
+     * Guarded expression with the policies of every guard evaluated by the UDF
+     * @param union guards combined with UNION or OR
+     * @return statement over the base table
+     */
+    String udfQuery(boolean union) {
         StringBuilder queryExp = new StringBuilder();
-        queryExp.append("WITH polEval as (");
         String delim = "";
         if (union) {
             for (GuardPart gp : this.guardParts) {
                 queryExp.append(delim);
-                queryExp.append(PolicyConstants.SELECT_ALL)
-                        .append(" force index (")
-                        .append(PolicyConstants.ATTRIBUTE_INDEXES.get(gp.getGuard().getAttribute()))
-                        .append(" ) Where")
-                        .append(gp.getGuard().print())
-                        .append(PolicyConstants.CONJUNCTION);
-                queryExp.append(" hybcheck(").append(querier).append(", \'")
-                        .append(gp.getId()).append("\', ")
-                        .append("user_id, location_id, start_date, " +
-                                "start_time, user_profile, user_group ) = 1 ");
-                delim = PolicyConstants.UNION;
+                queryExp.append(guardScan(gp));
+                queryExp.append(udfCheck(gp));
+                delim = PolicyConstants.getDialect().union(true);
             }
         } else {
-            queryExp.append(PolicyConstants.SELECT_ALL_WHERE);
+            StringBuilder guards = new StringBuilder();
             for (GuardPart gp : this.guardParts) {
-                queryExp.append(delim).append(gp.getGuard().print())
+                guards.append(delim).append(gp.getGuard().print())
                         .append(PolicyConstants.CONJUNCTION);
-                queryExp.append(" hybcheck(").append(querier).append(", \'")
-                        .append(gp.getId()).append("\', ")
-                        .append("user_id, location_id, start_date, " +
-                                "start_time, user_profile, user_group ) = 1 ");
+                guards.append(udfCheck(gp));
                 delim = PolicyConstants.DISJUNCTION;
             }
+            queryExp.append(orOfGuards(guards.toString()));
         }
-        queryExp.append(")");
         return queryExp.toString();
     }
 
@@ -302,46 +521,75 @@ public class GuardExp {
      * @return
      */
     public String inlineOrNot(boolean union){
+        return PolicyConstants.getDialect().cte("polEval", hybridQuery(union));
+    }
+
+    /**
+     * Guarded expression with the policies of each guard inlined or evaluated by the UDF based on cost
+     * @param union guards combined with UNION or OR
+     * @return statement over the base table
+     */
+    String hybridQuery(boolean union) {
+        return hybridQuery(union, false);
+    }
+
+    /**
+     * Guarded expression with the policies of each guard inlined, evaluated by the UDF or joined with
+     * the lookup table of the guard based on cost
+     * @param union guards combined with UNION or OR
+     * @param lookup whether partitions can be joined with their lookup table
+     * @return statement over the base table
+     */
+    String hybridQuery(boolean union, boolean lookup) {
         StringBuilder queryExp = new StringBuilder();
-        queryExp.append("WITH polEval as (");
         String delim = "";
         if (union){
             for (GuardPart gp: this.guardParts) {
                 queryExp.append(delim);
-                queryExp.append(PolicyConstants.SELECT_ALL)
-                        .append(" force index (")
-                        .append(PolicyConstants.ATTRIBUTE_INDEXES.get(gp.getGuard().getAttribute()))
-                        .append(" ) Where")
-                        .append(gp.getGuard().print())
-                        .append(PolicyConstants.CONJUNCTION);
-                if(gp.estimateCostOfInline() < gp.estimateCostOfUDF())
-                    queryExp.append(gp.getGuardPartition().createQueryFromPolices());
-                else
-                    queryExp.append(" hybcheck(").append(querier).append(", \'")
-                        .append(gp.getId()).append("\', ")
-                        .append("user_id, location_id, start_date, " +
-                                "start_time, user_profile, user_group ) = 1 ");
-                delim = PolicyConstants.UNION;
+                queryExp.append(guardScan(gp));
+                queryExp.append(partitionCheck(gp, lookup));
+                delim = PolicyConstants.getDialect().union(true);
             }
         }
         else {
-            queryExp.append(PolicyConstants.SELECT_ALL_WHERE);
+            StringBuilder guards = new StringBuilder();
             for (GuardPart gp: this.guardParts) {
-                queryExp.append(delim).append(gp.getGuard().print())
+                guards.append(delim).append(gp.getGuard().print())
                         .append(PolicyConstants.CONJUNCTION);
-                if(gp.estimateCostOfInline() < gp.estimateCostOfUDF())
-                    queryExp.append(gp.getGuardPartition().createQueryFromPolices());
-                else
-                    queryExp.append(" hybcheck(").append(querier).append(", \'")
-                            .append(gp.getId()).append("\', ")
-                            .append("user_id, location_id, start_date, " +
-                                    "start_time, user_profile, user_group ) = 1 ");
+                guards.append(partitionCheck(gp, lookup));
                 delim = PolicyConstants.DISJUNCTION;
             }
+            queryExp.append(orOfGuards(guards.toString()));
         }
-        queryExp.append(")");
         return queryExp.toString();
     }
 
+    /**
+     * Cheapest evaluation of the partition of the guard part
+     * @param gp
+     * @param lookup whether the lookup join is considered
+     * @return predicate on the base table
+     */
+    private String partitionCheck(GuardPart gp, boolean lookup) {
+        double inline = gp.estimateCostOfInline();
+        double udf = gp.estimateCostOfUDF();
+        if (lookup && gp.estimateCostOfLookup() < Math.min(inline, udf))
+            return lookupCheck(gp);
+        if (inline < udf)
+            return "(" + gp.getGuardPartition().createQueryFromPolices() + ")";
+        return udfCheck(gp);
+    }
+
+    /**
+     * Semi join of the guarded rows with the lookup rows of the partition, stored by deploy
+     * @param gp
+     * @return
+     */
+    private String lookupCheck(GuardPart gp) {
+        PolicyLookup lookup = gp.getPolicyLookup();
+        lookups.putIfAbsent(lookup.getName(), lookup);
+        return lookup.getPredicate();
+    }
+
 
 }
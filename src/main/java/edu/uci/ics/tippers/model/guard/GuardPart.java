@@ -20,6 +20,10 @@ public class GuardPart {
      */
     boolean inline;
 
+    private PolicyFunction policyFunction;
+
+    private PolicyLookup policyLookup;
+
     public ObjectCondition getGuard() {
         return guard;
     }
@@ -34,6 +38,26 @@ public class GuardPart {
 
     public void setGuardPartition(BEExpression guardPartition) {
         this.guardPartition = guardPartition;
+        this.policyFunction = null;
+        this.policyLookup = null;
+    }
+
+    /**
+     * Function generated for the partition, used by the UDF rewrites
+     * @return
+     */
+    public PolicyFunction getPolicyFunction() {
+        if (policyFunction == null) policyFunction = new PolicyFunction(this);
+        return policyFunction;
+    }
+
+    /**
+     * Lookup table rows of the partition, used by the lookup join rewrite
+     * @return
+     */
+    public PolicyLookup getPolicyLookup() {
+        if (policyLookup == null) policyLookup = new PolicyLookup(this);
+        return policyLookup;
     }
 
     public String getId() {
@@ -71,9 +95,24 @@ public class GuardPart {
     }
 
     /**
-     * cost = size(D) * sel(g) * (udf_invocation_cost * policy_eval_cost)
+     * cost = size(D) * sel(g) * udf_invocation_cost
+     * udf_invocation_cost is per row and includes evaluating the partition in the function
      */
     public double estimateCostOfUDF(){
         return  PolicyConstants.getNumberOfTuples() * guard.computeL() * PolicyConstants.UDF_INVOCATION_COST;
     }
+
+    /**
+     * cost = number of policies * row_evaluate_cost to read the lookup rows of the partition
+     * + size(D) * sel(g) * (lookup_probe_cost + expected matched lookup rows * alpha * policy_eval_cost)
+     * Partitions that cannot be stored in the lookup table cost Double.MAX_VALUE
+     */
+    public double estimateCostOfLookup(){
+        PolicyLookup lookup = getPolicyLookup();
+        if (!lookup.isFlat()) return Double.MAX_VALUE;
+        return guardPartition.getPolicies().size() * PolicyConstants.ROW_EVALUATE_COST
+                + PolicyConstants.getNumberOfTuples() * guard.computeL() * (PolicyConstants.LOOKUP_PROBE_COST
+                + lookup.getExpectedMatches() * PolicyConstants.NUMBER_OF_PREDICATES_EVALUATED
+                * PolicyConstants.POLICY_EVAL_COST);
+    }
 }
@@ -0,0 +1,196 @@
+package edu.uci.ics.tippers.model.guard;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.common.PolicyEngineException;
+import edu.uci.ics.tippers.dbms.SQLDialect;
+import edu.uci.ics.tippers.model.query.ConjunctiveQuery;
+import edu.uci.ics.tippers.model.query.QueryStatement;
+import edu.uci.ics.tippers.model.query.SelectQuery;
+import edu.uci.ics.tippers.persistor.MaterializedGuardPersistor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites a query with the guarded expression of its querier on the parsed query instead of on its text.
+ * Every reference to the base table in the FROM clause is replaced with the rows allowed by the guards:
+ * a common table expression polEval (polEval1, polEval2, ... for further references) for the guard strategies
+ * and the materialized guards, or a derived table scanned with the query index for QUERY_INDEX.
+ * The conjuncts of the WHERE clause that only refer to the replaced reference are pushed into the guard branches,
+ * everything else (joins, other tables, group by, order by) is left in the outer query.
+ * The reference keeps the name the query uses for it, e.g. PRESENCE.user_id still resolves after the rewrite.
+ * If the querier has deny guards, the denied rows are removed from the allowed rows of every reference
+ * with the deny strategy, so that deny policies are only checked against rows that pass the allow guards.
+ */
+public class GuardRewriter {
+
+    private static final String GUARDED = "polEval";
+
+    private final GuardExp guardExp;
+
+    private final RewriteStrategy strategy;
+
+    private final String queryIndex;
+
+    private final GuardExp denyExp;
+
+    private final DenyStrategy denyStrategy;
+
+    /**
+     * pruned guarded expressions the rewrites were generated from, deployed before the rewrites are executed
+     */
+    private final List<GuardExp> generated = new ArrayList<>();
+
+    /**
+     * leases on the materialized generations the rewrites read, released once they are executed
+     */
+    private final List<MaterializedGuardPersistor.Lease> leases = new ArrayList<>();
+
+    /**
+     * @param guardExp guarded expression of the querier
+     * @param strategy
+     * @param queryIndex index of the base table used by the query predicates, only used by QUERY_INDEX
+     */
+    public GuardRewriter(GuardExp guardExp, RewriteStrategy strategy, String queryIndex) {
+        this(guardExp, strategy, queryIndex, null, null);
+    }
+
+    /**
+     * @param guardExp guarded expression of the querier
+     * @param strategy
+     * @param queryIndex index of the base table used by the query predicates, only used by QUERY_INDEX
+     * @param denyExp guarded expression of the deny policies of the querier, null if there are none
+     * @param denyStrategy
+     */
+    public GuardRewriter(GuardExp guardExp, RewriteStrategy strategy, String queryIndex,
+                         GuardExp denyExp, DenyStrategy denyStrategy) {
+        this.guardExp = guardExp;
+        this.strategy = strategy;
+        this.queryIndex = queryIndex;
+        this.denyExp = denyExp != null && !denyExp.getGuardParts().isEmpty() ? denyExp : null;
+        this.denyStrategy = denyStrategy;
+    }
+
+    public String rewrite(QueryStatement queryStatement) {
+        return rewrite(SelectQuery.of(queryStatement));
+    }
+
+    /**
+     * @param query query on the base table, not modified
+     * @return complete statement with the hints of the dialect
+     */
+    public String rewrite(SelectQuery query) {
+        SQLDialect dialect = PolicyConstants.getDialect();
+        SelectQuery rewritten = query.copy();
+        boolean qualified = rewritten.qualifies(PolicyConstants.TABLE_NAME);
+        Map<String, String> ctes = new LinkedHashMap<>();
+        List<String> indexes = new ArrayList<>();
+        for (SelectQuery.TableRef ref : rewritten.getFrom()) {
+            if (!ref.isBaseTable()) continue;
+            if (ref.getAlias() == null && qualified) ref.setAlias(PolicyConstants.TABLE_NAME);
+            String body;
+            GuardExp pushed = guardExp;
+            ConjunctiveQuery local = ConjunctiveQuery.parse("");
+            if (strategy == RewriteStrategy.MATERIALIZED) {
+                //the materialized rows are read by id, the query is evaluated on them in the outer query
+                MaterializedGuardPersistor.Lease lease = MaterializedGuardPersistor.getInstance().lease(guardExp);
+                leases.add(lease);
+                body = lease.allowedRows();
+            } else {
+                local = ConjunctiveQuery.parse(String.join(PolicyConstants.CONJUNCTION, rewritten.takeConjuncts(ref)));
+                pushed = guardExp.pushdown(local);
+                generated.add(pushed);
+                if (strategy == RewriteStrategy.QUERY_INDEX) {
+                    String predicate = local.pushablePredicate();
+                    body = "Select * from " + dialect.scan(PolicyConstants.TABLE_NAME, queryIndex) + " where "
+                            + (predicate == null ? "" : "(" + predicate + ")" + PolicyConstants.CONJUNCTION)
+                            + "(" + pushed.createQueryWithOR() + ")";
+                    ref.setDerived(excludeDenied(body, local, indexes));
+                    continue;
+                }
+                body = guardedRows(pushed);
+            }
+            indexes.addAll(pushed.guardIndexes());
+            body = excludeDenied(body, local, indexes);
+            String name = ctes.isEmpty() ? GUARDED : GUARDED + ctes.size();
+            ctes.put(name, body);
+            ref.setTable(name);
+        }
+        if (strategy == RewriteStrategy.QUERY_INDEX) {
+            indexes.add(0, queryIndex);
+            return dialect.hint(rewritten.toSql(), PolicyConstants.TABLE_NAME, indexes);
+        }
+        if (ctes.isEmpty())
+            throw new PolicyEngineException("Query does not read " + PolicyConstants.TABLE_NAME + ": " + query);
+        return dialect.hint(dialect.cte(ctes) + " " + rewritten.toSql(), PolicyConstants.TABLE_NAME, indexes);
+    }
+
+    /**
+     * Creates the policy functions and lookup rows used by the rewrites, to be called before executing them
+     */
+    public void deploy() {
+        for (GuardExp exp : generated)
+            exp.deploy();
+    }
+
+    /**
+     * Releases the materialized rows read by the rewrites, to be called once they are no longer executed
+     */
+    public void release() {
+        for (MaterializedGuardPersistor.Lease lease : leases)
+            lease.release();
+        leases.clear();
+    }
+
+    /**
+     * Removes the rows denied for the querier from the allowed rows
+     * Deny guards and policies that cannot intersect the query are dropped first.
+     * @param allowed statement returning the allowed rows
+     * @param query conjuncts of the query on the base table
+     * @param indexes indexes used by the rewrite, the deny guard indexes are added if the denied rows are scanned
+     * @return statement returning the allowed rows that are not denied
+     */
+    private String excludeDenied(String allowed, ConjunctiveQuery query, List<String> indexes) {
+        if (denyExp == null) return allowed;
+        GuardExp deny = denyExp.pushdown(query);
+        generated.add(deny);
+        if (denyStrategy == DenyStrategy.NOT_PREDICATE) {
+            //CASE keeps rows on which the deny predicates are unknown (NULL), which NOT (...) would drop
+            return "Select * from (" + allowed + ") as allowed where CASE WHEN (" + deny.createQueryWithOR()
+                    + ") THEN 0 ELSE 1 END = 1";
+        }
+        indexes.addAll(deny.guardIndexes());
+        String denied = deny.hybridQuery(PolicyConstants.getDialect().prefersUnion());
+        switch (denyStrategy) {
+            case NOT_EXISTS:
+                return "Select * from (" + allowed + ") as allowed where NOT EXISTS (Select 1 from (" + denied
+                        + ") as denied where denied.id = allowed.id)";
+            default:
+                throw new PolicyEngineException("Unknown deny strategy " + denyStrategy);
+        }
+    }
+
+    /**
+     * Statement over the base table returning the rows allowed by the guards for the strategy
+     */
+    private String guardedRows(GuardExp pushed) {
+        switch (strategy) {
+            case GUARD_OR_INLINE:
+                return pushed.inlineQuery(false);
+            case GUARD_UNION_INLINE:
+                return pushed.inlineQuery(true);
+            case GUARD_OR_UDF:
+                return pushed.udfQuery(false);
+            case GUARD_UNION_UDF:
+                return pushed.udfQuery(true);
+            case GUARD_HYBRID:
+                return pushed.hybridQuery(true);
+            case GUARD_LOOKUP:
+                return pushed.hybridQuery(true, true);
+            default:
+                throw new PolicyEngineException("Unknown rewrite strategy " + strategy);
+        }
+    }
+}
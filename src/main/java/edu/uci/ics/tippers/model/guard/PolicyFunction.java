@@ -0,0 +1,94 @@
+package edu.uci.ics.tippers.model.guard;
+
+import edu.uci.ics.tippers.common.AttributeType;
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.model.policy.BEPolicy;
+import edu.uci.ics.tippers.model.policy.ObjectCondition;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Deterministic function evaluating the partition of a guard part on the attributes of a single row,
+ * replacing the hybcheck UDF which reads FLAT_POLICY with a cursor for every row.
+ * The policies are compiled into nested CASE expressions without any table access:
+ * policies are checked in the decreasing order of their selectivity so that allowed rows return early,
+ * and the object conditions of a policy in the increasing order of their selectivity so that a policy
+ * that does not match fails on its first conditions.
+ * The name is derived from the compiled expression, so guard parts with the same partition share a function.
+ */
+public class PolicyFunction {
+
+    private static final String PREFIX = "pcheck_";
+
+    private final String name;
+
+    private final Map<String, AttributeType> parameters = new LinkedHashMap<>();
+
+    private final String expression;
+
+    public PolicyFunction(GuardPart gp) {
+        List<BEPolicy> policies = new ArrayList<>(gp.getGuardPartition().getPolicies());
+        Map<BEPolicy, Double> policySel = new LinkedHashMap<>();
+        for (BEPolicy bp : policies) {
+            double sel = 1.0;
+            for (ObjectCondition oc : bp.getObject_conditions()) sel *= oc.computeL();
+            policySel.put(bp, sel);
+        }
+        policies.sort(Comparator.comparingDouble(policySel::get).reversed());
+
+        StringBuilder expression = new StringBuilder("CASE");
+        for (BEPolicy bp : policies) {
+            List<ObjectCondition> conditions = new ArrayList<>(bp.getObject_conditions());
+            conditions.sort(Comparator.comparingDouble(ObjectCondition::computeL));
+            StringBuilder check = new StringBuilder("1");
+            for (int i = conditions.size() - 1; i >= 0; i--) {
+                ObjectCondition oc = conditions.get(i);
+                parameters.putIfAbsent(oc.getAttribute(), oc.getType());
+                check.insert(0, "CASE WHEN " + oc.print() + " THEN ").append(" ELSE 0 END");
+            }
+            expression.append(" WHEN ").append(check).append(" = 1 THEN 1");
+        }
+        expression.append(" ELSE 0 END");
+        this.expression = expression.toString();
+        this.name = PREFIX + UUID.nameUUIDFromBytes((parameters + this.expression).getBytes(StandardCharsets.UTF_8))
+                .toString().replace("-", "");
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return attribute names and types of the parameters, in the order of the arguments
+     */
+    public Map<String, AttributeType> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return columns of the base table passed to the function
+     */
+    public List<String> getArguments() {
+        return new ArrayList<>(parameters.keySet());
+    }
+
+    /**
+     * @return CASE expression over the parameters returning 1 if a policy of the partition is satisfied
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return statements creating the function with the DDL of the DBMS dialect
+     */
+    public List<String> ddl() {
+        return PolicyConstants.getDialect().createFunction(name, parameters, expression);
+    }
+}
@@ -0,0 +1,163 @@
+package edu.uci.ics.tippers.model.guard;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.model.policy.BEPolicy;
+import edu.uci.ics.tippers.model.policy.BooleanPredicate;
+import edu.uci.ics.tippers.model.policy.ObjectCondition;
+import edu.uci.ics.tippers.model.policy.Operation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Partition of a guard part stored as rows of GUARD_POLICY_LOOKUP in the FLAT_POLICY format
+ * (ownerEq, profEq, groupEq, locEq, dateGe, dateLe, timeGe, timeLe) and evaluated with a semi join
+ * of the guarded rows with the rows of the partition instead of inlining the policies or calling a function.
+ * A NULL column is a wildcard. Columns set by every policy of the partition are joined without the
+ * IS NULL alternative, so that equality columns can be used as hash or index keys of the join.
+ * Only partitions whose policies have equality conditions on the FLAT_POLICY equality attributes and
+ * ranges on start_date and start_time can be stored in the lookup table.
+ * The name is derived from the policies, so guard parts with the same partition share their lookup rows.
+ */
+public class PolicyLookup {
+
+    public static final String TABLE = "GUARD_POLICY_LOOKUP";
+
+    private static final String PREFIX = "lk_";
+
+    static final Map<String, String> EQUALITY_COLUMNS = new LinkedHashMap<>();
+
+    static final Map<String, String[]> RANGE_COLUMNS = new LinkedHashMap<>();
+
+    static {
+        EQUALITY_COLUMNS.put(PolicyConstants.USERID_ATTR, "ownerEq");
+        EQUALITY_COLUMNS.put(PolicyConstants.PROFILE_ATTR, "profEq");
+        EQUALITY_COLUMNS.put(PolicyConstants.GROUP_ATTR, "groupEq");
+        EQUALITY_COLUMNS.put(PolicyConstants.LOCATIONID_ATTR, "locEq");
+        RANGE_COLUMNS.put(PolicyConstants.START_DATE, new String[]{"dateGe", "dateLe"});
+        RANGE_COLUMNS.put(PolicyConstants.START_TIME, new String[]{"timeGe", "timeLe"});
+    }
+
+    private final List<BEPolicy> policies;
+
+    private final boolean flat;
+
+    private final Set<String> used = new LinkedHashSet<>();
+
+    private final Set<String> strict = new HashSet<>();
+
+    private final String name;
+
+    private final double expectedMatches;
+
+    public PolicyLookup(GuardPart gp) {
+        this.policies = new ArrayList<>(gp.getGuardPartition().getPolicies());
+        this.policies.sort(Comparator.comparing(BEPolicy::getId));
+        boolean flat = !policies.isEmpty();
+        Map<String, Integer> usage = new HashMap<>();
+        for (BEPolicy bp : policies) {
+            Set<String> attributes = new HashSet<>();
+            for (ObjectCondition oc : bp.getObject_conditions()) {
+                flat &= isFlat(oc) && attributes.add(oc.getAttribute());
+                usage.merge(oc.getAttribute(), 1, Integer::sum);
+            }
+        }
+        this.flat = flat;
+        for (String attribute : EQUALITY_COLUMNS.keySet()) addUsage(attribute, usage);
+        for (String attribute : RANGE_COLUMNS.keySet()) addUsage(attribute, usage);
+
+        //policies sharing the values of the strict equality columns are checked together on a probe
+        Set<List<String>> keys = new HashSet<>();
+        StringBuilder definition = new StringBuilder();
+        for (BEPolicy bp : policies) {
+            List<String> key = new ArrayList<>();
+            for (ObjectCondition oc : bp.getObject_conditions())
+                if (strict.contains(oc.getAttribute()) && EQUALITY_COLUMNS.containsKey(oc.getAttribute()))
+                    key.add(oc.getAttribute() + "=" + oc.getBooleanPredicates().get(0).getValue());
+            key.sort(String::compareTo);
+            keys.add(key);
+            definition.append(bp.getId()).append("|");
+        }
+        this.expectedMatches = policies.isEmpty() ? 0.0 : (double) policies.size() / keys.size();
+        this.name = PREFIX + UUID.nameUUIDFromBytes(definition.toString().getBytes(StandardCharsets.UTF_8))
+                .toString().replace("-", "");
+    }
+
+    private void addUsage(String attribute, Map<String, Integer> usage) {
+        int count = usage.getOrDefault(attribute, 0);
+        if (count > 0) used.add(attribute);
+        if (count == policies.size()) strict.add(attribute);
+    }
+
+    private static boolean isFlat(ObjectCondition oc) {
+        List<BooleanPredicate> predicates = oc.getBooleanPredicates();
+        if (EQUALITY_COLUMNS.containsKey(oc.getAttribute()))
+            return predicates.size() == 1 && predicates.get(0).getOperator() == Operation.EQ;
+        if (RANGE_COLUMNS.containsKey(oc.getAttribute()))
+            return predicates.size() == 2 && predicates.get(0).getOperator() == Operation.GTE
+                    && predicates.get(1).getOperator() == Operation.LTE;
+        return false;
+    }
+
+    /**
+     * @return value of guard_id of the rows of the partition in the lookup table
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return true if every policy of the partition can be stored in the lookup table
+     */
+    public boolean isFlat() {
+        return flat;
+    }
+
+    public List<BEPolicy> getPolicies() {
+        return policies;
+    }
+
+    /**
+     * Expected number of lookup rows checked for a guarded row, the policies sharing the values
+     * of the equality columns set by every policy
+     * @return
+     */
+    public double getExpectedMatches() {
+        return expectedMatches;
+    }
+
+    /**
+     * @return EXISTS predicate on the base table that is true if a policy of the partition is satisfied
+     */
+    public String getPredicate() {
+        String row = PolicyConstants.TABLE_NAME + ".";
+        StringBuilder predicate = new StringBuilder("EXISTS (Select 1 from " + TABLE + " fp where fp.guard_id = '")
+                .append(name).append("'");
+        for (String attribute : used) {
+            String check;
+            String wildcard;
+            if (EQUALITY_COLUMNS.containsKey(attribute)) {
+                String column = "fp." + EQUALITY_COLUMNS.get(attribute);
+                check = column + " = " + row + attribute;
+                wildcard = column + " IS NULL";
+            } else {
+                String[] columns = RANGE_COLUMNS.get(attribute);
+                check = row + attribute + " BETWEEN fp." + columns[0] + " AND fp." + columns[1];
+                wildcard = "fp." + columns[0] + " IS NULL";
+            }
+            predicate.append(PolicyConstants.CONJUNCTION);
+            if (strict.contains(attribute)) predicate.append(check);
+            else predicate.append("(").append(wildcard).append(PolicyConstants.DISJUNCTION).append(check).append(")");
+        }
+        return predicate.append(")").toString();
+    }
+}
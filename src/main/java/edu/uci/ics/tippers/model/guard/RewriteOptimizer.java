@@ -0,0 +1,248 @@
+package edu.uci.ics.tippers.model.guard;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.common.PolicyEngineException;
+import edu.uci.ics.tippers.fileop.Writer;
+import edu.uci.ics.tippers.generation.query.QueryExplainer;
+import edu.uci.ics.tippers.model.policy.BEPolicy;
+import edu.uci.ics.tippers.model.query.ConjunctiveQuery;
+import edu.uci.ics.tippers.model.query.QueryStatement;
+import edu.uci.ics.tippers.persistor.MaterializedGuardPersistor;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Chooses how to rewrite a query for a querier by enumerating the rewrite strategies supported
+ * by the guarded expression and costing each of them with the cost constants and selectivity estimates.
+ * Replaces the fixed querySel/guardTotalCard threshold used to pick between guard and query index.
+ *
+ * The query is pushed into the guard branches and guards that cannot intersect it are pruned before costing.
+ *
+ * Every executed plan can be logged with its estimated cost, predicted latency and actual latency
+ * to compare the cost model against the measured performance of each strategy.
+ * Predicted latency is derived from the milliseconds per unit of cost observed so far for the strategy.
+ */
+public class RewriteOptimizer {
+
+    private static final String DECISION_LOG = "rewrite_decisions.csv";
+
+    private static final Map<RewriteStrategy, double[]> calibration = new EnumMap<>(RewriteStrategy.class);
+
+    private QueryExplainer queryExplainer;
+
+    private Writer writer;
+
+    public RewriteOptimizer() {
+        this.queryExplainer = new QueryExplainer();
+        this.writer = new Writer();
+    }
+
+    /**
+     * Returns the rewrites of the query with the allow and deny guarded expressions in the increasing order of cost
+     * Each rewrite removes the denied rows with the deny strategy that is cheapest for its number of allowed rows.
+     * Enumerating only costs the rewrites, a plan builds its query and writes to the database when it is prepared
+     * (RewritePlan.prepare) before it is executed.
+     * @param guardExp guarded expression of the allow policies
+     * @param denyExp guarded expression of the deny policies, null if there are none
+     * @param queryStatement
+     * @return
+     */
+    public List<RewritePlan> enumerate(GuardExp guardExp, GuardExp denyExp, QueryStatement queryStatement) {
+        double querySel = queryExplainer.estimateSelectivity(queryStatement);
+        String queryHint = queryExplainer.keyUsed(queryStatement);
+        //guards and policies that cannot intersect the query are not costed, the rewriter prunes them the same way
+        ConjunctiveQuery query = ConjunctiveQuery.of(queryStatement);
+        GuardExp pushed = guardExp.pushdown(query);
+        GuardExp denied = denyExp == null || denyExp.getGuardParts().isEmpty() ? null : denyExp.pushdown(query);
+        List<RewritePlan> plans = new ArrayList<>();
+        for (RewriteStrategy strategy : RewriteStrategy.values()) {
+            if (strategy == RewriteStrategy.QUERY_INDEX && queryHint == null) continue;
+            if (strategy == RewriteStrategy.MATERIALIZED) continue;
+            plans.add(plan(strategy, guardExp, pushed, denyExp, denied, queryStatement, queryHint, querySel));
+        }
+        Collections.sort(plans);
+        if (PolicyConstants.MATERIALIZE_GUARDS) {
+            MaterializedGuardPersistor materializer = MaterializedGuardPersistor.getInstance();
+            materializer.recordQuery(guardExp, plans.get(0).getEstimatedCost());
+            if (materializer.isMaterialized(guardExp)) {
+                plans.add(plan(RewriteStrategy.MATERIALIZED, guardExp, guardExp, denyExp, denied,
+                        queryStatement, queryHint, querySel));
+                Collections.sort(plans);
+            }
+        }
+        return plans;
+    }
+
+    /**
+     * @param costed guarded expression the cost is estimated on, pruned with the query
+     * @param denied deny guarded expression pruned with the query, null if there are no deny guards
+     */
+    private RewritePlan plan(RewriteStrategy strategy, GuardExp guardExp, GuardExp costed, GuardExp denyExp,
+                             GuardExp denied, QueryStatement queryStatement, String queryHint, double querySel) {
+        double cost = estimateCost(strategy, costed, queryStatement, querySel);
+        if (denied == null) {
+            GuardRewriter rewriter = new GuardRewriter(guardExp, strategy, queryHint);
+            return new RewritePlan(strategy, null, rewriter, queryStatement, cost);
+        }
+        double allowedRows = Math.min(guardedRows(costed), PolicyConstants.getNumberOfTuples() * querySel);
+        DenyStrategy denyStrategy = null;
+        double denyCost = Double.MAX_VALUE;
+        for (DenyStrategy ds : DenyStrategy.values()) {
+            double c = estimateDenyCost(ds, denied, allowedRows);
+            if (c < denyCost) {
+                denyCost = c;
+                denyStrategy = ds;
+            }
+        }
+        GuardRewriter rewriter = new GuardRewriter(guardExp, strategy, queryHint, denyExp, denyStrategy);
+        return new RewritePlan(strategy, denyStrategy, rewriter, queryStatement, cost + denyCost);
+    }
+
+    /**
+     * Estimated cost of executing the query rewritten with the given strategy
+     * N: number of tuples, sel(g): selectivity of guard g, sel(q): selectivity of the query
+     * guard scan = sum over guards of N * sel(g) * io_block_read_cost
+     * full scan = N * (memory_block_read_cost + row_evaluate_cost * alpha * number of guards),
+     * or the guard scan when the dialect combines the guard indexes on OR
+     * partition evaluation = GuardPart.estimateCostOfInline, estimateCostOfUDF or estimateCostOfLookup
+     * union and join with USER_GROUP_MEMBERSHIP (template 3) add a per row cost on the guarded rows
+     * @param strategy
+     * @param guardExp
+     * @param queryStatement
+     * @param querySel
+     * @return
+     */
+    public double estimateCost(RewriteStrategy strategy, GuardExp guardExp, QueryStatement queryStatement,
+                               double querySel) {
+        long numberOfTuples = PolicyConstants.getNumberOfTuples();
+        double guardScan = 0.0, inlineEval = 0.0, udfEval = 0.0, hybridEval = 0.0, lookupEval = 0.0, guardedRows = 0.0;
+        for (GuardPart gp : guardExp.getGuardParts()) {
+            double gRows = numberOfTuples * gp.getGuard().computeL();
+            double inline = gp.estimateCostOfInline();
+            double udf = gp.estimateCostOfUDF();
+            guardedRows += gRows;
+            guardScan += gRows * PolicyConstants.IO_BLOCK_READ_COST;
+            inlineEval += inline;
+            udfEval += udf;
+            hybridEval += Math.min(inline, udf);
+            lookupEval += Math.min(Math.min(inline, udf), gp.estimateCostOfLookup());
+        }
+        double fullScan = numberOfTuples * (PolicyConstants.MEMORY_BLOCK_READ_COST + PolicyConstants.ROW_EVALUATE_COST
+                * PolicyConstants.NUMBER_OF_PREDICATES_EVALUATED * guardExp.getGuardParts().size());
+        //engines that combine the guard indexes on OR (BitmapOr, IXOR) only read the guarded rows
+        if (PolicyConstants.getDialect().combinesIndexesOnOr())
+            fullScan = Math.min(fullScan, guardScan + guardedRows * PolicyConstants.ROW_EVALUATE_COST);
+        double unionCost = guardedRows * PolicyConstants.MEMORY_BLOCK_READ_COST;
+        double queryFilter = guardedRows * PolicyConstants.ROW_EVALUATE_COST;
+        if (queryStatement.getTemplate() == 3)
+            queryFilter += guardedRows * PolicyConstants.IO_BLOCK_READ_COST;
+        switch (strategy) {
+            case GUARD_OR_INLINE:
+                return fullScan + inlineEval + queryFilter;
+            case GUARD_UNION_INLINE:
+                return guardScan + inlineEval + unionCost + queryFilter;
+            case GUARD_OR_UDF:
+                return fullScan + udfEval + queryFilter;
+            case GUARD_UNION_UDF:
+                return guardScan + udfEval + unionCost + queryFilter;
+            case GUARD_HYBRID:
+                return guardScan + hybridEval + unionCost + queryFilter;
+            case GUARD_LOOKUP:
+                return guardScan + lookupEval + unionCost + queryFilter;
+            case MATERIALIZED:
+                return MaterializedGuardPersistor.getInstance().estimateReadCost(guardExp) + queryFilter;
+            case QUERY_INDEX:
+                //rows satisfying the query check the guards and, assuming independence, a sel(q) fraction
+                //of the guarded rows evaluate their partition
+                return numberOfTuples * querySel * (PolicyConstants.IO_BLOCK_READ_COST + PolicyConstants.ROW_EVALUATE_COST
+                        * PolicyConstants.NUMBER_OF_PREDICATES_EVALUATED * guardExp.getGuardParts().size())
+                        + querySel * inlineEval;
+            default:
+                throw new PolicyEngineException("Unknown rewrite strategy " + strategy);
+        }
+    }
+
+    /**
+     * Estimated cost of removing the denied rows from the allowed rows with the given strategy
+     * D: rows read with the deny guards, A: allowed rows, p: number of deny guard and partition predicates
+     * deny scan = D * io_block_read_cost + partition evaluation of the deny guards
+     * not predicate = A * row_evaluate_cost * p, evaluated on the allowed rows only
+     * not exists = deny scan + D * memory_block_read_cost + A * row_evaluate_cost, the subquery is decorrelated
+     * into a hashed lookup on id that is built once from the denied rows and probed by every allowed row
+     * not predicate is cheaper for few allowed rows or few deny predicates, not exists once A * p outweighs the deny scan
+     * @param denyStrategy
+     * @param denyExp deny guarded expression pruned with the query
+     * @param allowedRows estimated number of rows passing the allow guards and the query
+     * @return
+     */
+    public double estimateDenyCost(DenyStrategy denyStrategy, GuardExp denyExp, double allowedRows) {
+        double deniedRows = guardedRows(denyExp);
+        double denyScan = deniedRows * PolicyConstants.IO_BLOCK_READ_COST;
+        long predicates = 0;
+        for (GuardPart gp : denyExp.getGuardParts()) {
+            denyScan += gp.estimateCostOfInline();
+            predicates += 1 + gp.getGuardPartition().getPolicies().stream().mapToInt(BEPolicy::countNumberOfPredicates).sum();
+        }
+        switch (denyStrategy) {
+            case NOT_PREDICATE:
+                return allowedRows * PolicyConstants.ROW_EVALUATE_COST * predicates;
+            case NOT_EXISTS:
+                return denyScan + deniedRows * PolicyConstants.MEMORY_BLOCK_READ_COST
+                        + allowedRows * PolicyConstants.ROW_EVALUATE_COST;
+            default:
+                throw new PolicyEngineException("Unknown deny strategy " + denyStrategy);
+        }
+    }
+
+    private static double guardedRows(GuardExp guardExp) {
+        double rows = 0.0;
+        for (GuardPart gp : guardExp.getGuardParts())
+            rows += PolicyConstants.getNumberOfTuples() * gp.getGuard().computeL();
+        return rows;
+    }
+
+    /**
+     * Latency predicted for the plan from the latencies observed for its strategy
+     * @param plan
+     * @return predicted latency in milliseconds, -1 if the strategy has not been observed yet
+     */
+    public double predictLatency(RewritePlan plan) {
+        synchronized (calibration) {
+            double[] observed = calibration.get(plan.getStrategy());
+            if (observed == null || observed[1] == 0) return -1;
+            return plan.getEstimatedCost() * observed[0] / observed[1];
+        }
+    }
+
+    /**
+     * Logs the predicted and actual latency of an executed plan and updates the calibration of its strategy
+     * @param querier
+     * @param queryStatement
+     * @param plan
+     * @param actual
+     * @param chosen whether the plan was the one picked by the optimizer
+     */
+    public void recordExecution(String querier, QueryStatement queryStatement, RewritePlan plan, Duration actual,
+                                boolean chosen) {
+        double predicted = predictLatency(plan);
+        synchronized (calibration) {
+            double[] observed = calibration.computeIfAbsent(plan.getStrategy(), s -> new double[2]);
+            observed[0] += actual.toMillis();
+            observed[1] += plan.getEstimatedCost();
+        }
+        StringBuilder entry = new StringBuilder();
+        if (!new File(PolicyConstants.EXP_RESULTS_DIR + DECISION_LOG).exists())
+            entry.append("Querier,Query_Id,Query_Type,Strategy,Chosen,Estimated_Cost,Predicted_Time,Actual_Time\n");
+        entry.append(querier).append(",")
+                .append(queryStatement.getId()).append(",")
+                .append(queryStatement.getTemplate()).append(",")
+                .append(plan.getStrategy()).append(",")
+                .append(chosen).append(",")
+                .append(plan.getEstimatedCost()).append(",")
+                .append(predicted < 0 ? "NA" : String.valueOf(predicted)).append(",")
+                .append(actual.toMillis()).append("\n");
+        writer.writeString(entry.toString(), PolicyConstants.EXP_RESULTS_DIR, DECISION_LOG);
+    }
+}
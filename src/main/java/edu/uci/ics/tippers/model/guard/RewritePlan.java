@@ -0,0 +1,91 @@
+package edu.uci.ics.tippers.model.guard;
+
+import edu.uci.ics.tippers.model.query.QueryStatement;
+
+/**
+ * A rewritten query together with the strategy used to produce it and its estimated cost
+ * Plans enumerated with a rewriter only build their query when it is first needed, so that only executed plans
+ * pay for the rewrite.
+ */
+public class RewritePlan implements Comparable<RewritePlan> {
+
+    private RewriteStrategy strategy;
+
+    private String query;
+
+    private double estimatedCost;
+
+    private DenyStrategy denyStrategy;
+
+    private GuardRewriter rewriter;
+
+    private QueryStatement queryStatement;
+
+    public RewritePlan(RewriteStrategy strategy, String query, double estimatedCost) {
+        this.strategy = strategy;
+        this.query = query;
+        this.estimatedCost = estimatedCost;
+    }
+
+    public RewritePlan(RewriteStrategy strategy, DenyStrategy denyStrategy, String query, double estimatedCost) {
+        this(strategy, query, estimatedCost);
+        this.denyStrategy = denyStrategy;
+    }
+
+    /**
+     * @param rewriter rewriter that generates the query, deploys its policy functions and lookups in prepare
+     * @param queryStatement query rewritten when the query of the plan is first needed
+     */
+    public RewritePlan(RewriteStrategy strategy, DenyStrategy denyStrategy, GuardRewriter rewriter,
+                       QueryStatement queryStatement, double estimatedCost) {
+        this(strategy, denyStrategy, (String) null, estimatedCost);
+        this.rewriter = rewriter;
+        this.queryStatement = queryStatement;
+    }
+
+    /**
+     * Rewrites the query and creates the policy functions and lookup rows it uses, only plans that are executed
+     * are prepared
+     */
+    public void prepare() {
+        getQuery();
+        if (rewriter != null) rewriter.deploy();
+    }
+
+    /**
+     * Releases the materialized rows the query reads, the query must not be executed afterwards
+     */
+    public void release() {
+        if (rewriter != null) rewriter.release();
+    }
+
+    public RewriteStrategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * @return how denied rows are removed, null if the querier has no deny guards
+     */
+    public DenyStrategy getDenyStrategy() {
+        return denyStrategy;
+    }
+
+    public synchronized String getQuery() {
+        if (query == null && rewriter != null) query = rewriter.rewrite(queryStatement);
+        return query;
+    }
+
+    public double getEstimatedCost() {
+        return estimatedCost;
+    }
+
+    @Override
+    public int compareTo(RewritePlan other) {
+        return Double.compare(this.estimatedCost, other.estimatedCost);
+    }
+
+    @Override
+    public String toString() {
+        return strategy + (denyStrategy != null ? "/" + denyStrategy : "") + " (" + estimatedCost + ")";
+    }
+}
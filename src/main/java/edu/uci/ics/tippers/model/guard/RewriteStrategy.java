@@ -0,0 +1,24 @@
+package edu.uci.ics.tippers.model.guard;
+
+/**
+ * Ways of rewriting a query with the guarded expression of its querier
+ */
+public enum RewriteStrategy {
+
+    /** Single scan with guards and inlined partitions combined with OR */
+    GUARD_OR_INLINE,
+    /** One index scan per guard with inlined partitions combined with UNION */
+    GUARD_UNION_INLINE,
+    /** Single scan with guards and the policy UDF combined with OR */
+    GUARD_OR_UDF,
+    /** One index scan per guard with the policy UDF combined with UNION */
+    GUARD_UNION_UDF,
+    /** One index scan per guard, each partition inlined or evaluated with the UDF based on cost */
+    GUARD_HYBRID,
+    /** One index scan per guard, each partition inlined, evaluated with the UDF or joined with its lookup table based on cost */
+    GUARD_LOOKUP,
+    /** Index scan on the query predicate with the guarded expression as a filter */
+    QUERY_INDEX,
+    /** Join with the materialized ids of the rows allowed for the querier */
+    MATERIALIZED
+}
@@ -180,6 +180,7 @@ public class BEExpression {
      * UNION
      * Select * from force index(oc2) where oc2 and (P2)
      * UNION .....
+     * with the index hints of the DBMS dialect
      * @return
      */
     public String createIndexQuery(){
@@ -188,14 +189,14 @@ public class BEExpression {
         for(BEPolicy bp: this.getPolicies()){
             ObjectCondition  ind = bp.getIndexScanPredicate();
             queryExp.append(delim);
-            queryExp.append(PolicyConstants.SELECT_ALL)
-                    .append(" force index (")
-                    .append(PolicyConstants.ATTRIBUTE_INDEXES.get(ind.getAttribute()))
-                    .append(" ) Where ")
+            queryExp.append("Select * from ")
+                    .append(PolicyConstants.getDialect().scan(PolicyConstants.TABLE_NAME,
+                            PolicyConstants.ATTRIBUTE_INDEXES.get(ind.getAttribute())))
+                    .append(" Where ")
                     .append(ind.print())
                     .append(PolicyConstants.CONJUNCTION);
             queryExp.append(bp.createQueryFromObjectConditions());
-            delim = PolicyConstants.UNION;
+            delim = PolicyConstants.getDialect().union(true);
         }
         return queryExp.toString();
     }
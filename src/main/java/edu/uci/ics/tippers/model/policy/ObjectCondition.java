@@ -76,8 +76,8 @@ public class ObjectCondition extends BooleanCondition {
     private double singletonRange(){
         double frequency = 0.0001;
         if(this.getType() == AttributeType.INTEGER) {
-            for (int i = 0; i < Histogram.getInstance().getBucketMap().get(this.getAttribute()).size(); i++) {
-                Bucket b = Histogram.getInstance().getBucketMap().get(this.getAttribute()).get(i);
+            List<Bucket> buckets = Histogram.getInstance().getBucketMap().get(this.getAttribute());
+            for (Bucket b : buckets) {
                 if (Integer.parseInt(b.getValue()) >= Integer.parseInt(this.getBooleanPredicates().get(0).getValue())
                         && Integer.parseInt(b.getValue()) <= Integer.parseInt(this.getBooleanPredicates().get(1).getValue())) {
                     frequency += b.getFreq();
@@ -0,0 +1,246 @@
+package edu.uci.ics.tippers.model.query;
+
+import edu.uci.ics.tippers.common.AttributeType;
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.common.PolicyEngineException;
+import edu.uci.ics.tippers.model.policy.BEPolicy;
+import edu.uci.ics.tippers.model.policy.BooleanPredicate;
+import edu.uci.ics.tippers.model.policy.ObjectCondition;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Conjuncts of the selection predicate of a query on the base table
+ * start_date >= "2018-01-01" AND start_date <= "2018-01-07" and location_id in ("3142", "2065")
+ * is split into the conjuncts that can be evaluated on the base table alone (pushed into the guard branches)
+ * and typed ranges per attribute (used to prune guards and policies that cannot intersect the query).
+ * Conjuncts that are not understood are still pushed down as text but are not used for pruning.
+ * If the predicate is not a conjunction the whole predicate is pushed down and nothing is pruned.
+ */
+public class ConjunctiveQuery {
+
+    private static final Pattern COMPARISON = Pattern.compile(
+            "^\\s*(?:(\\w+)\\.)?(\\w+)\\s*(>=|<=|=|>|<)\\s*([\"'])(.*)\\4\\s*$", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern IN_LIST = Pattern.compile(
+            "^\\s*(?:(\\w+)\\.)?(\\w+)\\s+in\\s*\\((.*)\\)\\s*$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern QUOTED = Pattern.compile("([\"'])(.*?)\\1");
+
+    private final List<String> conjuncts = new ArrayList<>();
+
+    private final Map<String, List<String>> lowerBounds = new HashMap<>();
+
+    private final Map<String, List<String>> upperBounds = new HashMap<>();
+
+    private final Map<String, List<String>> inLists = new HashMap<>();
+
+    private ConjunctiveQuery() {
+    }
+
+    /**
+     * @param queryStatement
+     * @return conjuncts of the query on the base table
+     */
+    public static ConjunctiveQuery of(QueryStatement queryStatement) {
+        if (queryStatement.getTemplate() == 3) {
+            //only the selections on the base table are pushed, the join stays in the outer query
+            SelectQuery query = SelectQuery.parse(queryStatement.getQuery());
+            for (SelectQuery.TableRef ref : query.getFrom())
+                if (ref.isBaseTable())
+                    return parse(String.join(PolicyConstants.CONJUNCTION, query.takeConjuncts(ref)));
+            return parse("");
+        }
+        return parse(queryStatement.getQuery());
+    }
+
+    /**
+     * @param predicates selection predicate of a template 1 or 2 query
+     * @return
+     */
+    public static ConjunctiveQuery parse(String predicates) {
+        ConjunctiveQuery cq = new ConjunctiveQuery();
+        List<String> parts = SelectQuery.splitConjuncts(predicates);
+        if (parts == null) {
+            //not a conjunction
+            if (!predicates.trim().isEmpty()) cq.conjuncts.add(predicates.trim());
+            return cq;
+        }
+        for (String part : parts) {
+            if (part.trim().isEmpty()) continue;
+            cq.conjuncts.add(part.trim());
+            Matcher m = COMPARISON.matcher(part);
+            if (m.matches()) {
+                cq.addComparison(m.group(2).toLowerCase(), m.group(3), m.group(5));
+                continue;
+            }
+            m = IN_LIST.matcher(part);
+            if (m.matches()) {
+                List<String> values = new ArrayList<>();
+                Matcher v = QUOTED.matcher(m.group(3));
+                while (v.find()) values.add(v.group(2));
+                if (!values.isEmpty())
+                    cq.inLists.merge(m.group(2).toLowerCase(), values, (a, b) -> {
+                        List<String> both = new ArrayList<>(a);
+                        both.retainAll(b);
+                        return both;
+                    });
+            }
+        }
+        return cq;
+    }
+
+    /**
+     * A comparison or in list of a literal with a column of the base table that is qualified
+     * with the name of the table reference, or unqualified if it is the only reference to the base table
+     * @param conjunct
+     * @param name name of the table reference
+     * @param unqualifiedAllowed
+     * @return the conjunct without the qualification, null if it refers to anything else
+     */
+    static String localTo(String conjunct, String name, boolean unqualifiedAllowed) {
+        Matcher m = COMPARISON.matcher(conjunct);
+        if (!m.matches()) m = IN_LIST.matcher(conjunct);
+        if (!m.matches()) return null;
+        String qualifier = m.group(1), attribute = m.group(2);
+        if (PolicyConstants.ATTRIBUTES.stream().noneMatch(attribute::equalsIgnoreCase)) return null;
+        if (qualifier == null ? !unqualifiedAllowed : !qualifier.equalsIgnoreCase(name)) return null;
+        return conjunct.substring(m.start(2)).trim();
+    }
+
+    private void addComparison(String attribute, String op, String value) {
+        if (op.equals(">=") || op.equals(">") || op.equals("="))
+            lowerBounds.computeIfAbsent(attribute, a -> new ArrayList<>()).add(value);
+        if (op.equals("<=") || op.equals("<") || op.equals("="))
+            upperBounds.computeIfAbsent(attribute, a -> new ArrayList<>()).add(value);
+    }
+
+    /**
+     * Conjuncts that can be evaluated on the base table, joined with AND
+     * @return null if there are none
+     */
+    public String pushablePredicate() {
+        if (conjuncts.isEmpty()) return null;
+        return String.join(PolicyConstants.CONJUNCTION, conjuncts);
+    }
+
+    /**
+     * Whether rows satisfying the condition can satisfy the query, judged from typed ranges and in lists.
+     * String conditions are never pruned: the DBMS compares strings with the collation of the column
+     * (case insensitive for the default MySQL collations), which an ordering in Java cannot reproduce.
+     * @param oc
+     * @return false only if the condition provably cannot intersect the query
+     */
+    public boolean intersects(ObjectCondition oc) {
+        if (oc.getType() == AttributeType.STRING) return true;
+        String attribute = oc.getAttribute().toLowerCase();
+        List<String> lower = lowerBounds.getOrDefault(attribute, Collections.emptyList());
+        List<String> upper = upperBounds.getOrDefault(attribute, Collections.emptyList());
+        List<String> values = inLists.get(attribute);
+        if (lower.isEmpty() && upper.isEmpty() && values == null) return true;
+        try {
+            //strict bounds are treated as inclusive, which can only keep more than needed
+            String lo = null, hi = null;
+            for (BooleanPredicate bp : oc.getBooleanPredicates()) {
+                String op = bp.getOperator().toString();
+                if (op.equals(">=") || op.equals(">") || op.equals("="))
+                    lo = lo == null || compare(oc.getType(), bp.getValue(), lo) > 0 ? bp.getValue() : lo;
+                if (op.equals("<=") || op.equals("<") || op.equals("="))
+                    hi = hi == null || compare(oc.getType(), bp.getValue(), hi) < 0 ? bp.getValue() : hi;
+            }
+            for (String bound : lower)
+                if (hi != null && compare(oc.getType(), bound, hi) > 0) return false;
+            for (String bound : upper)
+                if (lo != null && compare(oc.getType(), bound, lo) < 0) return false;
+            if (values != null) {
+                for (String value : values) {
+                    if ((lo == null || compare(oc.getType(), value, lo) >= 0)
+                            && (hi == null || compare(oc.getType(), value, hi) <= 0))
+                        return true;
+                }
+                return false;
+            }
+        } catch (RuntimeException e) {
+            //values that do not parse as the type of the attribute are never used to prune
+            return true;
+        }
+        return true;
+    }
+
+    /**
+     * Days of a date attribute the query can select, judged from its bounds and in list.
+     * Strict bounds are treated as inclusive and values that do not parse as dates are left out,
+     * which can only widen the range.
+     * @param attribute
+     * @return first and last epoch day, Long.MIN_VALUE and Long.MAX_VALUE where the query does not bound it
+     */
+    public long[] dateRange(String attribute) {
+        attribute = attribute.toLowerCase();
+        long[] range = {Long.MIN_VALUE, Long.MAX_VALUE};
+        for (String bound : lowerBounds.getOrDefault(attribute, Collections.emptyList())) {
+            Long day = epochDay(bound);
+            if (day != null) range[0] = Math.max(range[0], day);
+        }
+        for (String bound : upperBounds.getOrDefault(attribute, Collections.emptyList())) {
+            Long day = epochDay(bound);
+            if (day != null) range[1] = Math.min(range[1], day);
+        }
+        List<String> values = inLists.get(attribute);
+        if (values != null) {
+            long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+            for (String value : values) {
+                Long day = epochDay(value);
+                if (day == null) return range;
+                first = Math.min(first, day);
+                last = Math.max(last, day);
+            }
+            range[0] = Math.max(range[0], first);
+            range[1] = Math.min(range[1], last);
+        }
+        return range;
+    }
+
+    private static Long epochDay(String value) {
+        try {
+            return LocalDate.parse(value.trim()).toEpochDay();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A policy can allow rows of the query only if all of its object conditions intersect the query
+     * @param policy
+     * @return
+     */
+    public boolean intersects(BEPolicy policy) {
+        for (ObjectCondition oc : policy.getObject_conditions())
+            if (!intersects(oc)) return false;
+        return true;
+    }
+
+    private static int compare(AttributeType type, String v1, String v2) {
+        switch (type) {
+            case INTEGER:
+                return Long.compare(Long.parseLong(v1.trim()), Long.parseLong(v2.trim()));
+            case DOUBLE:
+                return Double.compare(Double.parseDouble(v1.trim()), Double.parseDouble(v2.trim()));
+            case DATE:
+                return LocalDate.parse(v1.trim()).compareTo(LocalDate.parse(v2.trim()));
+            case TIME:
+                return LocalTime.parse(v1.trim()).compareTo(LocalTime.parse(v2.trim()));
+            case TIMESTAMP:
+                DateTimeFormatter format = DateTimeFormatter.ofPattern(PolicyConstants.TIMESTAMP_FORMAT);
+                return LocalDateTime.parse(v1.trim(), format).compareTo(LocalDateTime.parse(v2.trim(), format));
+            default:
+                throw new PolicyEngineException("Incompatible Attribute Type");
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package edu.uci.ics.tippers.model.query;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.common.PolicyEngineException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parsed SELECT ... FROM ... [JOIN ... ON ...] [WHERE ...] [GROUP BY | HAVING | ORDER BY | LIMIT ...] query
+ * Select items, join conditions and trailing clauses are kept as text; the FROM clause is a list of table
+ * references and the WHERE clause a list of top level conjuncts so that rewriters can replace individual
+ * table references and move conjuncts between the query and the references.
+ */
+public class SelectQuery {
+
+    private static final String[] CLAUSES = {"select", "from", "where", "group by", "having", "order by", "limit"};
+
+    private static final Pattern JOIN = Pattern.compile(
+            "^((?:natural\\s+)?(?:(?:inner|cross|left|right|full)\\s+)?(?:outer\\s+)?join)\\s", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern TABLE_REF = Pattern.compile(
+            "^(\\w+)(?:\\s+(?:as\\s+)?(?!on\\b)(\\w+))?(?:\\s+on\\s+(.*))?$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern QUALIFIED = Pattern.compile("\\b(\\w+)\\.\\w+");
+
+    private String selectList;
+
+    private final List<TableRef> from = new ArrayList<>();
+
+    private final List<String> where = new ArrayList<>();
+
+    private String tail;
+
+    private SelectQuery() {
+    }
+
+    /**
+     * Table reference of a FROM clause: a table or a derived table, its alias,
+     * the join keyword preceding it (null for the first reference and comma joins), the join condition
+     * and the index it should be scanned with
+     */
+    public static class TableRef {
+
+        private String table;
+
+        private String derived;
+
+        private String alias;
+
+        private String join;
+
+        private String on;
+
+        private String index;
+
+        private TableRef(String table, String alias, String join, String on) {
+            this.table = table;
+            this.alias = alias;
+            this.join = join;
+            this.on = on;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        /**
+         * Reads the reference from a table, e.g. a common table expression
+         * @param table
+         */
+        public void setTable(String table) {
+            this.table = table;
+            this.derived = null;
+        }
+
+        /**
+         * Reads the reference from a subquery
+         * @param derived
+         */
+        public void setDerived(String derived) {
+            this.derived = derived;
+        }
+
+        public String getAlias() {
+            return alias;
+        }
+
+        public void setAlias(String alias) {
+            this.alias = alias;
+        }
+
+        public void setIndex(String index) {
+            this.index = index;
+        }
+
+        /**
+         * @return the name the rest of the query refers to this reference by
+         */
+        public String getName() {
+            return alias != null ? alias : table;
+        }
+
+        public boolean isBaseTable() {
+            return derived == null && table.equalsIgnoreCase(PolicyConstants.TABLE_NAME);
+        }
+
+        private TableRef copy() {
+            TableRef copy = new TableRef(table, alias, join, on);
+            copy.derived = derived;
+            copy.index = index;
+            return copy;
+        }
+
+        private String toSql(boolean first) {
+            StringBuilder sql = new StringBuilder();
+            if (join != null) sql.append(" ").append(join).append(" ");
+            else if (!first) sql.append(", ");
+            if (derived != null) sql.append("(").append(derived).append(")");
+            else sql.append(PolicyConstants.getDialect().scan(table, index));
+            if (alias != null) sql.append(" AS ").append(alias);
+            else if (derived != null) sql.append(" AS ").append(table);
+            if (on != null) sql.append(" ON ").append(on);
+            return sql.toString();
+        }
+    }
+
+    /**
+     * @param queryStatement
+     * @return parsed query, templates 1 and 2 are predicates on the base table
+     */
+    public static SelectQuery of(QueryStatement queryStatement) {
+        if (queryStatement.getTemplate() == 3 || queryStatement.getQuery().trim().toLowerCase().startsWith("select"))
+            return parse(queryStatement.getQuery());
+        return parse(PolicyConstants.SELECT_ALL_WHERE + queryStatement.getQuery());
+    }
+
+    public static SelectQuery parse(String sql) {
+        String lower = sql.toLowerCase(Locale.ROOT);
+        int[] starts = new int[CLAUSES.length], ends = new int[CLAUSES.length];
+        Arrays.fill(starts, -1);
+        int depth = 0;
+        char quote = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+                continue;
+            }
+            if (c == '"' || c == '\'') quote = c;
+            else if (c == '(') depth++;
+            else if (c == ')') depth--;
+            else if (depth == 0 && (i == 0 || !isWordChar(sql.charAt(i - 1)))) {
+                for (int k = 0; k < CLAUSES.length; k++) {
+                    int end = keywordEnd(lower, i, CLAUSES[k]);
+                    if (starts[k] < 0 && end > 0) {
+                        starts[k] = i;
+                        ends[k] = end;
+                        break;
+                    }
+                }
+            }
+        }
+        if (starts[0] < 0 || starts[1] < 0 || !sql.substring(0, starts[0]).trim().isEmpty())
+            throw new PolicyEngineException("Unsupported query: " + sql);
+        SelectQuery query = new SelectQuery();
+        query.selectList = clause(sql, starts, ends, 0).trim();
+        query.parseFrom(clause(sql, starts, ends, 1));
+        if (starts[2] >= 0) {
+            String predicate = clause(sql, starts, ends, 2);
+            List<String> conjuncts = splitConjuncts(predicate);
+            if (conjuncts == null) query.where.add(predicate.trim());
+            else for (String c : conjuncts) if (!c.trim().isEmpty()) query.where.add(c.trim());
+        }
+        int tailStart = sql.length();
+        for (int k = 3; k < CLAUSES.length; k++)
+            if (starts[k] >= 0) tailStart = Math.min(tailStart, starts[k]);
+        query.tail = tailStart < sql.length() ? sql.substring(tailStart).trim() : null;
+        return query;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * @return position after the keyword starting at i, whose words may be separated by any whitespace, -1 if none
+     */
+    private static int keywordEnd(String lower, int i, String keyword) {
+        int pos = i;
+        for (String word : keyword.split(" ")) {
+            if (pos > i) {
+                if (pos >= lower.length() || !Character.isWhitespace(lower.charAt(pos))) return -1;
+                while (pos < lower.length() && Character.isWhitespace(lower.charAt(pos))) pos++;
+            }
+            if (!lower.startsWith(word, pos)) return -1;
+            pos += word.length();
+        }
+        return pos == lower.length() || !isWordChar(lower.charAt(pos)) ? pos : -1;
+    }
+
+    /**
+     * Text of the clause without its keyword, up to the next clause
+     */
+    private static String clause(String sql, int[] starts, int[] ends, int k) {
+        int end = sql.length();
+        for (int j = 0; j < starts.length; j++)
+            if (starts[j] > starts[k] && starts[j] < end) end = starts[j];
+        return sql.substring(ends[k], end);
+    }
+
+    private void parseFrom(String fromClause) {
+        List<String> items = new ArrayList<>();
+        List<String> joins = new ArrayList<>();
+        int depth = 0, start = 0;
+        char quote = 0;
+        String pendingJoin = null;
+        for (int i = 0; i < fromClause.length(); i++) {
+            char c = fromClause.charAt(i);
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+                continue;
+            }
+            if (c == '"' || c == '\'') quote = c;
+            else if (c == '(') depth++;
+            else if (c == ')') depth--;
+            else if (depth == 0 && c == ',') {
+                items.add(fromClause.substring(start, i));
+                joins.add(pendingJoin);
+                pendingJoin = null;
+                start = i + 1;
+            } else if (depth == 0 && (i == 0 || Character.isWhitespace(fromClause.charAt(i - 1)))) {
+                Matcher m = JOIN.matcher(fromClause.substring(i));
+                if (m.find()) {
+                    items.add(fromClause.substring(start, i));
+                    joins.add(pendingJoin);
+                    pendingJoin = m.group(1).replaceAll("\\s+", " ").toUpperCase(Locale.ROOT);
+                    start = i + m.end();
+                    i = start - 1;
+                }
+            }
+        }
+        items.add(fromClause.substring(start));
+        joins.add(pendingJoin);
+        for (int i = 0; i < items.size(); i++) {
+            String item = items.get(i).trim();
+            if (item.isEmpty()) continue;
+            Matcher m = TABLE_REF.matcher(item);
+            if (!m.matches())
+                throw new PolicyEngineException("Unsupported table reference: " + item);
+            from.add(new TableRef(m.group(1), m.group(2), joins.get(i), m.group(3) == null ? null : m.group(3).trim()));
+        }
+    }
+
+    /**
+     * Splits a predicate on its top level AND outside of quotes and parentheses
+     * @param predicates
+     * @return conjuncts, null if there is a top level OR
+     */
+    public static List<String> splitConjuncts(String predicates) {
+        List<String> parts = new ArrayList<>();
+        int depth = 0, start = 0;
+        char quote = 0;
+        String lower = predicates.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < predicates.length(); i++) {
+            char c = predicates.charAt(i);
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+                continue;
+            }
+            if (c == '"' || c == '\'') quote = c;
+            else if (c == '(') depth++;
+            else if (c == ')') depth--;
+            else if (depth == 0 && Character.isWhitespace(c)) {
+                if (lower.startsWith("and", i + 1) && i + 4 < predicates.length()
+                        && Character.isWhitespace(predicates.charAt(i + 4))) {
+                    parts.add(predicates.substring(start, i));
+                    start = i + 4;
+                    i += 3;
+                } else if (lower.startsWith("or", i + 1) && i + 3 < predicates.length()
+                        && Character.isWhitespace(predicates.charAt(i + 3)))
+                    return null;
+            }
+        }
+        parts.add(predicates.substring(start));
+        return parts;
+    }
+
+    public SelectQuery copy() {
+        SelectQuery copy = new SelectQuery();
+        copy.selectList = selectList;
+        for (TableRef ref : from) copy.from.add(ref.copy());
+        copy.where.addAll(where);
+        copy.tail = tail;
+        return copy;
+    }
+
+    public List<TableRef> getFrom() {
+        return from;
+    }
+
+    public List<String> getWhere() {
+        return where;
+    }
+
+    /**
+     * Whether the query qualifies columns with the name, e.g. PRESENCE.user_id
+     * @param name
+     * @return
+     */
+    public boolean qualifies(String name) {
+        StringBuilder text = new StringBuilder(selectList);
+        for (String c : where) text.append(" ").append(c);
+        for (TableRef ref : from) if (ref.on != null) text.append(" ").append(ref.on);
+        if (tail != null) text.append(" ").append(tail);
+        Matcher m = QUALIFIED.matcher(text);
+        while (m.find())
+            if (m.group(1).equalsIgnoreCase(name)) return true;
+        return false;
+    }
+
+    /**
+     * Removes and returns the conjuncts of the WHERE clause that only refer to the reference:
+     * comparisons and in lists of a literal with a column of the base table that is either qualified
+     * with the name of the reference or unqualified.
+     * Nothing is taken from a reference on the nullable side of an outer join, the WHERE clause removes
+     * the NULL extended rows of such a reference which would survive if its conjuncts were moved into it.
+     * @param ref
+     * @return the conjuncts without qualification
+     */
+    public List<String> takeConjuncts(TableRef ref) {
+        List<String> taken = new ArrayList<>();
+        if (nullable(ref)) return taken;
+        boolean onlyBaseRef = from.stream().filter(TableRef::isBaseTable).count() == 1;
+        for (int i = 0; i < where.size(); i++) {
+            String local = ConjunctiveQuery.localTo(where.get(i), ref.getName(), onlyBaseRef);
+            if (local == null) continue;
+            taken.add(local);
+            where.remove(i--);
+        }
+        return taken;
+    }
+
+    /**
+     * Whether the rows of the reference can be NULL extended by an outer join: it is the right side of a LEFT
+     * or FULL join, or it precedes a RIGHT or FULL join, joins being evaluated from left to right
+     */
+    private boolean nullable(TableRef ref) {
+        int position = from.indexOf(ref);
+        for (int i = position; i < from.size(); i++) {
+            String join = from.get(i).join;
+            if (join == null) continue;
+            if (join.contains("FULL") || (i > position && join.contains("RIGHT")) || (i == position && join.contains("LEFT")))
+                return true;
+        }
+        return false;
+    }
+
+    public String toSql() {
+        StringBuilder sql = new StringBuilder("SELECT ").append(selectList).append(" FROM ");
+        for (int i = 0; i < from.size(); i++)
+            sql.append(from.get(i).toSql(i == 0));
+        if (!where.isEmpty())
+            sql.append(" WHERE ").append(String.join(PolicyConstants.CONJUNCTION, where));
+        if (tail != null) sql.append(" ").append(tail);
+        return sql.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toSql();
+    }
+}
@@ -36,7 +36,9 @@ public class FlatPolicyPersistor {
                 policyStmt.setString(3, bePolicy.getPurpose());
                 policyStmt.setString(4, bePolicy.getAction());
                 policyStmt.setTimestamp(5, bePolicy.getInserted_at());
-                policyStmt.setInt(6, bePolicy.fetchOwner());
+                //policies without an owner condition match every owner (NULL), not owner 0
+                if (bePolicy.fetchOwner() == 0) policyStmt.setNull(6, Types.INTEGER);
+                else policyStmt.setInt(6, bePolicy.fetchOwner());
                 policyStmt.setString(7, bePolicy.fetchProfile());
                 policyStmt.setString(8, bePolicy.fetchGroup());
                 policyStmt.setString(9, bePolicy.fetchLocation());
@@ -2,14 +2,16 @@ package edu.uci.ics.tippers.persistor;
 
 import edu.uci.ics.tippers.common.AttributeType;
 import edu.uci.ics.tippers.common.PolicyConstants;
-import edu.uci.ics.tippers.dbms.mysql.MySQLConnectionManager;
 import edu.uci.ics.tippers.dbms.QueryManager;
+import edu.uci.ics.tippers.model.guard.GuardCache;
+import edu.uci.ics.tippers.model.guard.GuardCombiner;
 import edu.uci.ics.tippers.model.guard.GuardExp;
 import edu.uci.ics.tippers.model.guard.GuardPart;
 import edu.uci.ics.tippers.model.policy.BEExpression;
 import edu.uci.ics.tippers.model.policy.BEPolicy;
 import edu.uci.ics.tippers.model.policy.ObjectCondition;
 import edu.uci.ics.tippers.model.policy.Operation;
+import org.apache.commons.dbutils.DbUtils;
 
 import java.sql.*;
 import java.text.ParseException;
@@ -21,8 +23,6 @@ public class GuardPersistor {
 
     private static GuardPersistor _instance = new GuardPersistor();
 
-    private static Connection connection = MySQLConnectionManager.getInstance().getConnection();
-
     private static QueryManager queryManager = new QueryManager();
 
     public static GuardPersistor getInstance() {
@@ -47,7 +47,7 @@ public class GuardPersistor {
                 "VALUES (?, ?, ?, ?, ?, ?)";
 
         PreparedStatement userGuardStmt = null;
-        try {
+        try (Connection connection = PolicyConstants.getDataSource().getConnection()) {
 
             userGuardStmt = connection.prepareStatement(userGuardInsert);
             userGuardStmt.setString(1, guardExp.getId());
@@ -115,6 +115,11 @@ public class GuardPersistor {
             }
             gpStmt.executeBatch();
             gpolStmt.executeBatch();
+            gpStmt.close();
+            gpolStmt.close();
+            if (!guardExp.isUserGuard())
+                GuardCombiner.getInstance().invalidate(guardExp.getQuerier());
+            GuardCache.getInstance().invalidate(guardExp.getQuerier(), guardExp.getQuerier_type());
 
         } catch (SQLException | ParseException e) {
             e.printStackTrace();
@@ -122,11 +127,63 @@ public class GuardPersistor {
     }
 
 
+    /**
+     * Flags guards that were costed before the given time, e.g. against an older histogram version
+     * @param costedBefore
+     * @return number of guard expressions marked dirty
+     */
+    public int markDirty(Timestamp costedBefore) {
+        int marked = 0;
+        for (String guardExpTable : new String[]{"USER_GUARD_EXPRESSION", "GROUP_GUARD_EXPRESSION"}) {
+            try (Connection connection = PolicyConstants.getDataSource().getConnection();
+                 PreparedStatement dirtyStmt = connection.prepareStatement("UPDATE " + guardExpTable +
+                    " SET dirty = 'true' WHERE last_updated < ? AND (dirty IS NULL OR dirty <> 'true')")) {
+                dirtyStmt.setTimestamp(1, costedBefore);
+                marked += dirtyStmt.executeUpdate();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        GuardCache.getInstance().markDirty(costedBefore);
+        return marked;
+    }
+
+    /**
+     * Estimates the cardinality of every guard part again and stores it, clearing the dirty flag of the guard
+     * @param guardExp guarded expression as stored, updated in place
+     */
+    public void recost(GuardExp guardExp) {
+        String guardExpTable = guardExp.isUserGuard() ? "USER_GUARD_EXPRESSION" : "GROUP_GUARD_EXPRESSION";
+        String guardPartTable = guardExp.isUserGuard() ? "USER_GUARD_PARTS" : "GROUP_GUARD_PARTS";
+        Timestamp costedAt = new Timestamp(System.currentTimeMillis());
+        try (Connection connection = PolicyConstants.getDataSource().getConnection();
+             PreparedStatement partStmt = connection.prepareStatement("UPDATE " + guardPartTable +
+                     " SET cardinality = ? WHERE id = ?");
+             PreparedStatement expStmt = connection.prepareStatement("UPDATE " + guardExpTable +
+                     " SET dirty = 'false', last_updated = ? WHERE id = ?")) {
+            for (GuardPart gp : guardExp.getGuardParts()) {
+                double gpSel = queryManager.checkSelectivity(gp.getGuard().print());
+                gp.setCardinality(gpSel);
+                partStmt.setFloat(1, (float) gpSel);
+                partStmt.setString(2, gp.getId());
+                partStmt.addBatch();
+            }
+            partStmt.executeBatch();
+            expStmt.setTimestamp(1, costedAt);
+            expStmt.setString(2, guardExp.getId());
+            expStmt.executeUpdate();
+            guardExp.setDirty("false");
+            guardExp.setLast_updated(costedAt);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
     public BEExpression retrieveGuardPartition(String guard_id, String guard_to_policy_table, List<BEPolicy> allowPolicies){
         List<BEPolicy> guardPolicies = new ArrayList<>();
         PreparedStatement queryStm = null;
         List<String> policy_ids = new ArrayList<>();
-        try{
+        try (Connection connection = PolicyConstants.getDataSource().getConnection()) {
             queryStm = connection.prepareStatement("SELECT " + guard_to_policy_table  + ".policy_id "
                     + "FROM "  + guard_to_policy_table +
                     " WHERE " + guard_to_policy_table + ".guard_id=? ");
@@ -137,6 +194,8 @@ public class GuardPersistor {
             }
         } catch(SQLException e) {
             e.printStackTrace();
+        } finally {
+            DbUtils.closeQuietly(queryStm);
         }
         for (String pid: policy_ids) {
             for(BEPolicy bePolicy: allowPolicies){
@@ -149,13 +208,25 @@ public class GuardPersistor {
     }
 
     /**
-     * Retrives the guard based on Querier and Querier type
-     * TODO: retrieve the policies in the guard partition
+     * Retrives the allow guard based on Querier and Querier type
      * @param querier
      * @param querier_type
      * @return
      */
     public GuardExp retrieveGuardExpression(String querier, String querier_type, List<BEPolicy> allowPolicies){
+        return retrieveGuardExpression(querier, querier_type, PolicyConstants.ACTION_ALLOW, allowPolicies);
+    }
+
+    /**
+     * Retrives the guard based on Querier, Querier type and the enforcement action of its policies
+     * @param querier
+     * @param querier_type
+     * @param enforcement_action allow or deny
+     * @param policies policies of the querier with the enforcement action
+     * @return
+     */
+    public GuardExp retrieveGuardExpression(String querier, String querier_type, String enforcement_action,
+                                            List<BEPolicy> policies){
         String guardExpTable, guardPartTable, guardToPolicyTable;
         if (querier_type.equalsIgnoreCase("user")) { //User Guard
             guardExpTable = "USER_GUARD_EXPRESSION";
@@ -166,13 +237,13 @@ public class GuardPersistor {
             guardPartTable = "GROUP_GUARD_PARTS";
             guardToPolicyTable = "GROUP_GUARD_TO_POLICY";
         }
-        String id = null, purpose = null, action = null;
+        String id = null, purpose = null, action = null, dirty = null;
         Timestamp last_updated = null;
         List<GuardPart> guardParts = new ArrayList<>();
         PreparedStatement queryStm = null;
-        try {
+        try (Connection connection = PolicyConstants.getDataSource().getConnection()) {
             queryStm = connection.prepareStatement("SELECT " + guardExpTable  + ".id, " + guardExpTable +".querier, "
-                    + guardExpTable +".purpose, " + guardExpTable + ".enforcement_action," + guardExpTable +".last_updated,"
+                    + guardExpTable +".purpose, " + guardExpTable + ".enforcement_action," + guardExpTable +".last_updated," + guardExpTable +".dirty,"
                     + guardPartTable +".id, " + guardPartTable +" .guard_exp_id,"
                     + guardPartTable + ".ownerEq, " + guardPartTable + ".profEq, "
                     + guardPartTable + ".groupEq, " + guardPartTable + ".locEq, "
@@ -180,9 +251,11 @@ public class GuardPersistor {
                     + guardPartTable + ".timeGe, " + guardPartTable + ".timeLe, "
                     + guardPartTable + ".cardinality "
                     + "FROM "  + guardExpTable +", " + guardPartTable +
-                    " WHERE " + guardExpTable + ".querier=? AND "+ guardExpTable + ".id = " + guardPartTable + ".guard_exp_id"
+                    " WHERE " + guardExpTable + ".querier=? AND " + guardExpTable + ".enforcement_action=? AND "
+                    + guardExpTable + ".id = " + guardPartTable + ".guard_exp_id"
                     + " order by " + guardExpTable  + ".id");
             queryStm.setInt(1, Integer.parseInt(querier));
+            queryStm.setString(2, enforcement_action);
             ResultSet rs = queryStm.executeQuery();
             List<GuardPart> gps = new ArrayList<>();
             boolean skip = false;
@@ -192,6 +265,7 @@ public class GuardPersistor {
                     purpose = rs.getString(guardExpTable + ".purpose");
                     action = rs.getString(guardExpTable + ".enforcement_action");
                     last_updated = rs.getTimestamp(guardExpTable +".last_updated");
+                    dirty = rs.getString(guardExpTable +".dirty");
                     skip = true;
                 }
                 GuardPart gp = new GuardPart();
@@ -234,12 +308,18 @@ public class GuardPersistor {
                     gp.setGuard(objectCondition);
                 }
                 gp.setCardinality(rs.getFloat(guardPartTable + ".cardinality"));
-                gp.setGuardPartition(retrieveGuardPartition(gp.getId(), guardToPolicyTable, allowPolicies));
+                gp.setGuardPartition(retrieveGuardPartition(gp.getId(), guardToPolicyTable, policies));
                 guardParts.add(gp);
             }
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            DbUtils.closeQuietly(queryStm);
         }
-        return new GuardExp(id, purpose, action, last_updated, guardParts);
+        GuardExp guardExp = new GuardExp(id, purpose, action, last_updated, guardParts);
+        guardExp.setQuerier(querier);
+        guardExp.setQuerier_type(querier_type);
+        guardExp.setDirty(dirty);
+        return guardExp;
     }
 }
@@ -0,0 +1,392 @@
+package edu.uci.ics.tippers.persistor;
+
+import edu.uci.ics.tippers.common.AttributeType;
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.dbms.IngestWatermark;
+import edu.uci.ics.tippers.dbms.SQLDialect;
+import edu.uci.ics.tippers.model.guard.GuardExp;
+import edu.uci.ics.tippers.model.guard.GuardPart;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Materializes the ids of the rows of the base table allowed by the guarded expression of a querier
+ * in GUARD_MATERIALIZATION (querier, generation, id) (see scripts/sql/ddl/guard_materialization.sql).
+ *
+ * A querier is materialized when its query rate times the savings over the guarded rewrite exceeds the cost
+ * of keeping the table up to date with the ingested rows and is dropped again when that is no longer the case.
+ * Materializations are refreshed incrementally: only rows with ids above the watermark of the last refresh
+ * are checked against the guards. Rows ingested after the last refresh are covered by evaluating the guards
+ * on them in the rewrite, so results are never stale.
+ * Policy changes are detected through the id and last_updated of the guard expression and trigger a rebuild.
+ *
+ * Every build of a materialization is a new generation, rewrites read the generation that is current when they
+ * are generated and hold a lease on it until they are released. A rebuild or drop only retires the generation,
+ * its rows are deleted once the last lease on it is released, so a running query never loses rows.
+ */
+public class MaterializedGuardPersistor {
+
+    public static final String MATERIALIZED_TABLE = "GUARD_MATERIALIZATION";
+
+    private static final long RATE_WINDOW_MILLIS = 60000;
+
+    private static final int MIN_QUERIES_IN_WINDOW = 3;
+
+    private static MaterializedGuardPersistor _instance;
+
+    private final Map<String, MaterializedGuard> materialized = new ConcurrentHashMap<>();
+
+    private final Map<String, Deque<Long>> queryTimes = new ConcurrentHashMap<>();
+
+    private final ExecutorService refresher;
+
+    private final AtomicBoolean refreshPending = new AtomicBoolean(false);
+
+    private final AtomicLong generations;
+
+    private MaterializedGuardPersistor() {
+        refresher = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "guard-materialization");
+            t.setDaemon(true);
+            return t;
+        });
+        IngestWatermark.getInstance().addListener(rows -> scheduleRefresh());
+        //generations of previous runs are older than the first generation of this one
+        long first = System.currentTimeMillis();
+        generations = new AtomicLong(first);
+        refresher.execute(() -> delete("generation < ?", null, first));
+    }
+
+    public static synchronized MaterializedGuardPersistor getInstance() {
+        if (_instance == null)
+            _instance = new MaterializedGuardPersistor();
+        return _instance;
+    }
+
+    /**
+     * Records a query of the querier and schedules the materialization of its guarded expression
+     * when it pays off
+     * @param guardExp guarded expression of the querier
+     * @param guardCost estimated cost of the cheapest guarded rewrite of the query
+     */
+    public void recordQuery(GuardExp guardExp, double guardCost) {
+        if (!PolicyConstants.MATERIALIZE_GUARDS) return;
+        String querier = guardExp.getQuerier();
+        long now = System.currentTimeMillis();
+        Deque<Long> times = queryTimes.computeIfAbsent(querier, q -> new ArrayDeque<>());
+        synchronized (times) {
+            times.addLast(now);
+            while (!times.isEmpty() && times.peekFirst() < now - RATE_WINDOW_MILLIS) times.pollFirst();
+        }
+        MaterializedGuard current = materialized.get(querier);
+        boolean stale = current != null && !current.matches(guardExp);
+        if ((current == null || stale) && shouldMaterialize(guardExp, guardCost))
+            refresher.execute(() -> materialize(guardExp, guardCost));
+        else if (current != null && !stale)
+            current.guardCost = guardCost;
+    }
+
+    /**
+     * @param guardExp
+     * @return true if the ids allowed by this version of the guarded expression are materialized
+     */
+    public boolean isMaterialized(GuardExp guardExp) {
+        MaterializedGuard current = materialized.get(guardExp.getQuerier());
+        return current != null && current.matches(guardExp);
+    }
+
+    /**
+     * @param querier
+     * @return number of materialized ids of the querier, -1 if the querier is not materialized
+     */
+    public long materializedRows(String querier) {
+        MaterializedGuard current = materialized.get(querier);
+        return current == null ? -1 : current.rows;
+    }
+
+    /**
+     * Queries per second of the querier over the last minute
+     * @param querier
+     * @return
+     */
+    public double queryRate(String querier) {
+        Deque<Long> times = queryTimes.get(querier);
+        if (times == null) return 0.0;
+        long now = System.currentTimeMillis();
+        synchronized (times) {
+            while (!times.isEmpty() && times.peekFirst() < now - RATE_WINDOW_MILLIS) times.pollFirst();
+            if (times.size() < MIN_QUERIES_IN_WINDOW) return 0.0;
+            return times.size() * 1000.0 / RATE_WINDOW_MILLIS;
+        }
+    }
+
+    /**
+     * Cost of reading the materialized ids and joining them with the base table
+     * @param guardExp
+     * @return
+     */
+    public double estimateReadCost(GuardExp guardExp) {
+        long rows = materializedRows(guardExp.getQuerier());
+        double allowedRows = rows >= 0 ? rows : guardedRows(guardExp);
+        return allowedRows * PolicyConstants.IO_BLOCK_READ_COST;
+    }
+
+    /**
+     * Cost per second of keeping the materialization up to date with the ingested rows:
+     * every new row checks the guards and the rows satisfying a guard evaluate its partition and are written
+     * @param guardExp
+     * @return
+     */
+    public double estimateMaintenanceCost(GuardExp guardExp) {
+        double perRow = PolicyConstants.ROW_EVALUATE_COST * PolicyConstants.NUMBER_OF_PREDICATES_EVALUATED
+                * guardExp.getGuardParts().size();
+        for (GuardPart gp : guardExp.getGuardParts()) {
+            perRow += gp.getGuard().computeL() * (gp.getGuardPartition().getPolicies().size()
+                    * PolicyConstants.NUMBER_OF_PREDICATES_EVALUATED * PolicyConstants.POLICY_EVAL_COST
+                    + PolicyConstants.IO_BLOCK_READ_COST);
+        }
+        return IngestWatermark.getInstance().getIngestRate() * perRow;
+    }
+
+    /**
+     * query rate * (guard cost - read cost) > maintenance cost + build cost amortized over the rate window
+     * @param guardExp
+     * @param guardCost
+     * @return
+     */
+    private boolean shouldMaterialize(GuardExp guardExp, double guardCost) {
+        double savings = queryRate(guardExp.getQuerier()) * (guardCost - estimateReadCost(guardExp));
+        double buildCost = guardedRows(guardExp) * PolicyConstants.IO_BLOCK_READ_COST;
+        return savings > estimateMaintenanceCost(guardExp) + buildCost * 1000.0 / RATE_WINDOW_MILLIS;
+    }
+
+    private double guardedRows(GuardExp guardExp) {
+        return guardExp.getGuardParts().stream()
+                .mapToDouble(gp -> gp.getGuard().computeL()).sum() * PolicyConstants.getNumberOfTuples();
+    }
+
+    /**
+     * Rebuilds the materialization of the querier for the current version of its guarded expression
+     * @param guardExp
+     * @param guardCost
+     */
+    public synchronized void materialize(GuardExp guardExp, double guardCost) {
+        String querier = guardExp.getQuerier();
+        MaterializedGuard current = materialized.get(querier);
+        if (current != null && current.matches(guardExp)) return;
+        long generation = generations.incrementAndGet();
+        long watermark = IngestWatermark.getInstance().maxRowId();
+        long rows = insertAllowed(guardExp, generation, 0, watermark);
+        if (rows < 0) {
+            delete("querier = ? AND generation = ?", querier, generation);
+            return;
+        }
+        MaterializedGuard mg = new MaterializedGuard(guardExp, generation, watermark, rows);
+        mg.guardCost = guardCost;
+        //rewrites generated from now on read the new generation
+        current = materialized.put(querier, mg);
+        if (current != null) retire(current);
+        System.out.println("Materialized " + rows + " rows for querier " + querier + " in generation " + generation);
+    }
+
+    private void scheduleRefresh() {
+        if (materialized.isEmpty()) return;
+        if (refreshPending.compareAndSet(false, true)) {
+            refresher.execute(() -> {
+                refreshPending.set(false);
+                refresh();
+            });
+        }
+    }
+
+    /**
+     * Adds the newly ingested rows allowed by the guards to every materialization
+     * and drops the materializations that no longer pay off
+     */
+    public synchronized void refresh() {
+        long watermark = IngestWatermark.getInstance().maxRowId();
+        for (MaterializedGuard mg : materialized.values()) {
+            if (!shouldMaterialize(mg.guardExp, mg.guardCost)) {
+                drop(mg.guardExp.getQuerier());
+                continue;
+            }
+            if (watermark <= mg.watermark) continue;
+            long rows = insertAllowed(mg.guardExp, mg.generation, mg.watermark, watermark);
+            if (rows < 0) continue;
+            mg.rows += rows;
+            mg.watermark = watermark;
+        }
+    }
+
+    public synchronized void drop(String querier) {
+        MaterializedGuard current = materialized.remove(querier);
+        if (current != null) retire(current);
+    }
+
+    /**
+     * Deletes the rows of the generation once no lease on it is held
+     */
+    private void retire(MaterializedGuard mg) {
+        synchronized (mg) {
+            mg.retired = true;
+            if (mg.leases > 0) return;
+        }
+        String querier = mg.guardExp.getQuerier();
+        refresher.execute(() -> delete("querier = ? AND generation = ?", querier, mg.generation));
+    }
+
+    private void delete(String condition, String querier, long generation) {
+        try (Connection connection = PolicyConstants.getDataSource().getConnection();
+             PreparedStatement delete = connection.prepareStatement("DELETE FROM " + MATERIALIZED_TABLE
+                + " WHERE " + condition)) {
+            int i = 1;
+            if (querier != null) delete.setString(i++, querier);
+            delete.setLong(i, generation);
+            delete.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Inserts the ids in (from, to] allowed by the guarded expression into the generation
+     * @return number of inserted ids, -1 on failure
+     */
+    private long insertAllowed(GuardExp guardExp, long generation, long from, long to) {
+        SQLDialect dialect = PolicyConstants.getDialect();
+        String insert = "INSERT INTO " + MATERIALIZED_TABLE + " (querier, generation, id) SELECT ?, ?, id FROM "
+                + PolicyConstants.TABLE_NAME + " WHERE id > ? AND id <= ? AND (" + guardExp.createQueryWithOR() + ")";
+        try (Connection connection = PolicyConstants.getDataSource().getConnection();
+             PreparedStatement ps = connection.prepareStatement(insert)) {
+            ps.setString(1, guardExp.getQuerier());
+            ps.setLong(2, generation);
+            dialect.bind(ps, 3, AttributeType.INTEGER, String.valueOf(from));
+            dialect.bind(ps, 4, AttributeType.INTEGER, String.valueOf(to));
+            return ps.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    /**
+     * Takes a lease on the current generation of the materialization of the querier,
+     * its rows are kept until the lease is released
+     * @param guardExp
+     * @return lease on the allowed rows, with the guards evaluated on the base table if the querier is no longer
+     * materialized
+     */
+    public Lease lease(GuardExp guardExp) {
+        MaterializedGuard mg = materialized.get(guardExp.getQuerier());
+        if (mg != null && mg.matches(guardExp)) {
+            synchronized (mg) {
+                if (!mg.retired) {
+                    mg.leases++;
+                    return new Lease(guardExp, mg, mg.watermark);
+                }
+            }
+        }
+        return new Lease(guardExp, null, 0);
+    }
+
+    private void release(MaterializedGuard mg) {
+        synchronized (mg) {
+            mg.leases--;
+            if (!mg.retired || mg.leases > 0) return;
+        }
+        String querier = mg.guardExp.getQuerier();
+        refresher.execute(() -> delete("querier = ? AND generation = ?", querier, mg.generation));
+    }
+
+    /**
+     * Allowed rows of a querier read from one generation of its materialization
+     */
+    public class Lease {
+
+        private final GuardExp guardExp;
+
+        private final MaterializedGuard mg;
+
+        private final long watermark;
+
+        private boolean released;
+
+        private Lease(GuardExp guardExp, MaterializedGuard mg, long watermark) {
+            this.guardExp = guardExp;
+            this.mg = mg;
+            this.watermark = watermark;
+        }
+
+        /**
+         * Allowed rows of the querier: the ids of the generation up to the watermark of the lease joined with
+         * the base table and the rows ingested after it evaluated with the guards. Ids added by later refreshes
+         * of the generation are excluded, they are covered by the guards.
+         * @return statement over the base table
+         */
+        public String allowedRows() {
+            String guarded = PolicyConstants.SELECT_ALL_WHERE + "(" + guardExp.createQueryWithOR() + ")";
+            if (mg == null) return guarded;
+            String table = PolicyConstants.TABLE_NAME;
+            return "SELECT " + table + ".* from " + MATERIALIZED_TABLE + " m JOIN " + table
+                    + " ON " + table + ".id = m.id WHERE m.querier = '" + guardExp.getQuerier() + "'"
+                    + " AND m.generation = " + mg.generation + " AND m.id <= " + watermark
+                    + PolicyConstants.getDialect().union(false)
+                    + PolicyConstants.SELECT_ALL_WHERE + "id > " + watermark
+                    + PolicyConstants.CONJUNCTION + "(" + guardExp.createQueryWithOR() + ")";
+        }
+
+        /**
+         * Releases the generation, to be called once the queries reading the allowed rows are done
+         */
+        public synchronized void release() {
+            if (released || mg == null) return;
+            released = true;
+            MaterializedGuardPersistor.this.release(mg);
+        }
+    }
+
+    private static class MaterializedGuard {
+
+        private final GuardExp guardExp;
+
+        private final Timestamp lastUpdated;
+
+        private final long generation;
+
+        private volatile long watermark;
+
+        private volatile long rows;
+
+        private volatile double guardCost;
+
+        /** guarded by the MaterializedGuard */
+        private int leases;
+
+        private boolean retired;
+
+        private MaterializedGuard(GuardExp guardExp, long generation, long watermark, long rows) {
+            this.guardExp = guardExp;
+            this.lastUpdated = guardExp.getLast_updated();
+            this.generation = generation;
+            this.watermark = watermark;
+            this.rows = rows;
+        }
+
+        private boolean matches(GuardExp other) {
+            return Objects.equals(guardExp.getId(), other.getId())
+                    && Objects.equals(lastUpdated, other.getLast_updated());
+        }
+    }
+}
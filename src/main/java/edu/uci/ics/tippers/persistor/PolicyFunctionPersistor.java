@@ -0,0 +1,58 @@
+package edu.uci.ics.tippers.persistor;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.common.PolicyEngineException;
+import edu.uci.ics.tippers.model.guard.PolicyFunction;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates the policy functions generated for guard parts in the database.
+ * Function names are derived from their definition, so each function is created once per process
+ * and shared by every guard part with the same partition.
+ */
+public class PolicyFunctionPersistor {
+
+    private static PolicyFunctionPersistor _instance;
+
+    private final Set<String> created = ConcurrentHashMap.newKeySet();
+
+    public static synchronized PolicyFunctionPersistor getInstance() {
+        if (_instance == null) _instance = new PolicyFunctionPersistor();
+        return _instance;
+    }
+
+    /**
+     * Creates the function unless it was already created
+     * @param function
+     * @return name of the function
+     * @throws PolicyEngineException
+     */
+    public String deploy(PolicyFunction function) throws PolicyEngineException {
+        if (created.contains(function.getName())) return function.getName();
+        synchronized (this) {
+            if (created.contains(function.getName())) return function.getName();
+            try (Connection connection = PolicyConstants.getDataSource().getConnection();
+                 Statement statement = connection.createStatement()) {
+                for (String ddl : function.ddl())
+                    statement.execute(ddl);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                throw new PolicyEngineException("Failed to create policy function " + function.getName());
+            }
+            created.add(function.getName());
+        }
+        return function.getName();
+    }
+
+    /**
+     * Forgets the created functions, e.g. after the database is reloaded
+     */
+    public void clear() {
+        created.clear();
+    }
+}
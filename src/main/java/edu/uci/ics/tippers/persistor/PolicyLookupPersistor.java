@@ -0,0 +1,87 @@
+package edu.uci.ics.tippers.persistor;
+
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.common.PolicyEngineException;
+import edu.uci.ics.tippers.model.guard.PolicyLookup;
+import edu.uci.ics.tippers.model.policy.BEPolicy;
+import edu.uci.ics.tippers.model.policy.ObjectCondition;
+
+import java.sql.*;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores the partitions of guard parts in GUARD_POLICY_LOOKUP (scripts/sql/ddl/policy_lookup.sql)
+ * in the FLAT_POLICY format, with NULL for the attributes a policy has no condition on.
+ * Lookup names are derived from the policies, so each partition is stored once per process
+ * and shared by every guard part with the same partition.
+ */
+public class PolicyLookupPersistor {
+
+    private static PolicyLookupPersistor _instance;
+
+    private final Set<String> created = ConcurrentHashMap.newKeySet();
+
+    public static synchronized PolicyLookupPersistor getInstance() {
+        if (_instance == null) _instance = new PolicyLookupPersistor();
+        return _instance;
+    }
+
+    /**
+     * Stores the rows of the partition unless they were already stored
+     * @param lookup
+     * @return value of guard_id of the rows
+     * @throws PolicyEngineException
+     */
+    public String deploy(PolicyLookup lookup) throws PolicyEngineException {
+        if (created.contains(lookup.getName())) return lookup.getName();
+        synchronized (this) {
+            if (created.contains(lookup.getName())) return lookup.getName();
+            try (Connection connection = PolicyConstants.getDataSource().getConnection();
+                 PreparedStatement delete = connection.prepareStatement("DELETE FROM " + PolicyLookup.TABLE
+                         + " WHERE guard_id = ?");
+                 PreparedStatement insert = connection.prepareStatement("INSERT INTO " + PolicyLookup.TABLE
+                         + " (guard_id, policy_id, ownerEq, profEq, groupEq, locEq, dateGe, dateLe, timeGe, timeLe)"
+                         + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+                delete.setString(1, lookup.getName());
+                delete.executeUpdate();
+                for (BEPolicy bp : lookup.getPolicies()) {
+                    insert.setString(1, lookup.getName());
+                    insert.setString(2, bp.getId());
+                    if (hasCondition(bp, PolicyConstants.USERID_ATTR)) insert.setInt(3, bp.fetchOwner());
+                    else insert.setNull(3, Types.INTEGER);
+                    insert.setString(4, bp.fetchProfile());
+                    insert.setString(5, bp.fetchGroup());
+                    insert.setString(6, bp.fetchLocation());
+                    List<Date> start_date = bp.fetchDate();
+                    insert.setDate(7, start_date.isEmpty() ? null : start_date.get(0));
+                    insert.setDate(8, start_date.isEmpty() ? null : start_date.get(1));
+                    List<Time> start_time = bp.fetchTime();
+                    insert.setTime(9, start_time.isEmpty() ? null : start_time.get(0));
+                    insert.setTime(10, start_time.isEmpty() ? null : start_time.get(1));
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            } catch (SQLException e) {
+                e.printStackTrace();
+                throw new PolicyEngineException("Failed to store policy lookup " + lookup.getName());
+            }
+            created.add(lookup.getName());
+        }
+        return lookup.getName();
+    }
+
+    private static boolean hasCondition(BEPolicy bp, String attribute) {
+        for (ObjectCondition oc : bp.getObject_conditions())
+            if (oc.getAttribute().equalsIgnoreCase(attribute)) return true;
+        return false;
+    }
+
+    /**
+     * Forgets the stored partitions, e.g. after the database is reloaded
+     */
+    public void clear() {
+        created.clear();
+    }
+}
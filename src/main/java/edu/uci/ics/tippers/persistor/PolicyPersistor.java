@@ -2,24 +2,25 @@ package edu.uci.ics.tippers.persistor;
 
 import edu.uci.ics.tippers.common.AttributeType;
 import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.model.guard.GuardCache;
 import edu.uci.ics.tippers.model.policy.*;
+import org.apache.commons.dbutils.DbUtils;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class PolicyPersistor {
 
     private static final PolicyPersistor _instance = new PolicyPersistor();
-    //TODO: Generalize this database connection
-    private static Connection connection;
 
     private PolicyPersistor(){
 
     }
 
     public static PolicyPersistor getInstance() {
-        connection = PolicyConstants.getDBMSConnection();
         return _instance;
     }
 
@@ -40,12 +41,11 @@ public class PolicyPersistor {
 
         boolean USER_POLICY = true;
 
-        try {
-            PreparedStatement userPolicyStmt = connection.prepareStatement(userPolicyInsert);
-            PreparedStatement userOcStmt = connection.prepareStatement(userobjectConditionInsert);
-
-            PreparedStatement groupPolicyStmt = connection.prepareStatement(groupPolicyInsert);
-            PreparedStatement groupOcStmt = connection.prepareStatement(groupObjectConditionInsert);
+        try (Connection connection = PolicyConstants.getDataSource().getConnection();
+             PreparedStatement userPolicyStmt = connection.prepareStatement(userPolicyInsert);
+             PreparedStatement userOcStmt = connection.prepareStatement(userobjectConditionInsert);
+             PreparedStatement groupPolicyStmt = connection.prepareStatement(groupPolicyInsert);
+             PreparedStatement groupOcStmt = connection.prepareStatement(groupObjectConditionInsert)) {
 
             for (BEPolicy bePolicy : bePolicies) {
                 if (bePolicy.typeOfPolicy()) { //User Policy
@@ -75,7 +75,6 @@ public class PolicyPersistor {
                     groupPolicyStmt.setString(4, bePolicy.getAction());
                     groupPolicyStmt.setTimestamp(5, bePolicy.getInserted_at());
                     groupPolicyStmt.addBatch();
-                    groupPolicyStmt.close();
 
                     for (ObjectCondition oc : bePolicy.getObject_conditions()) {
                         for (BooleanPredicate bp : oc.getBooleanPredicates()) {
@@ -99,9 +98,16 @@ public class PolicyPersistor {
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        PolicyStore.policiesInserted(bePolicies);
+        Set<String> changed = new HashSet<>();
+        for (BEPolicy bePolicy : bePolicies) {
+            String querier_type = bePolicy.typeOfPolicy() ? PolicyConstants.USER_INDIVIDUAL : PolicyConstants.USER_GROUP;
+            if (changed.add(querier_type + "|" + bePolicy.fetchQuerier()))
+                GuardCache.getInstance().invalidate(bePolicy.fetchQuerier(), querier_type);
+        }
     }
 
-    private Operation convertOperator(String operator) {
+    static Operation convertOperator(String operator) {
         if (operator.equalsIgnoreCase("=")) return Operation.EQ;
         else if (operator.equalsIgnoreCase(">=")) return Operation.GTE;
         else if (operator.equalsIgnoreCase("<=")) return Operation.LTE;
@@ -123,7 +129,7 @@ public class PolicyPersistor {
             oc_table = "GROUP_POLICY_OBJECT_CONDITION";
         }
         PreparedStatement queryStm = null;
-        try {
+        try (Connection connection = PolicyConstants.getDataSource().getConnection()) {
             if (querier != null) {
                 queryStm = connection.prepareStatement("SELECT " + policy_table + ".id as \"" + policy_table + ".id\"," +
                         policy_table + ".querier as \"" + policy_table + ".querier\"," +
@@ -223,6 +229,8 @@ public class PolicyPersistor {
             }
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            DbUtils.closeQuietly(queryStm);
         }
         return bePolicies;
     }
@@ -242,7 +250,7 @@ public class PolicyPersistor {
             oc_table = "GROUP_POLICY_OBJECT_CONDITION";
         }
         PreparedStatement queryStm = null;
-        try {
+        try (Connection connection = PolicyConstants.getDataSource().getConnection()) {
             queryStm = connection.prepareStatement("SELECT " + policy_table + ".id, " + policy_table + ".querier, " + policy_table + ".purpose, " +
                     policy_table + ".enforcement_action," + policy_table + ".inserted_at," + oc_table + ".id, " + oc_table + " .policy_id," + oc_table + ".attribute, " +
                     oc_table + ".attribute_type, " + oc_table + ".operator," + oc_table + ".comp_value " +
@@ -305,6 +313,8 @@ public class PolicyPersistor {
             }
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            DbUtils.closeQuietly(queryStm);
         }
         return new BEPolicy(id, objectConditions, querierConditions, purpose, action, inserted_at);
     }
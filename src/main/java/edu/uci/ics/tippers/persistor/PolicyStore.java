@@ -0,0 +1,236 @@
+package edu.uci.ics.tippers.persistor;
+
+import edu.uci.ics.tippers.common.AttributeType;
+import edu.uci.ics.tippers.common.PolicyConstants;
+import edu.uci.ics.tippers.common.PolicyEngineException;
+import edu.uci.ics.tippers.model.policy.BEPolicy;
+import edu.uci.ics.tippers.model.policy.BooleanPredicate;
+import edu.uci.ics.tippers.model.policy.ObjectCondition;
+import edu.uci.ics.tippers.model.policy.Operation;
+import edu.uci.ics.tippers.model.policy.QuerierCondition;
+import org.apache.commons.dbutils.DbUtils;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Policies of all queriers held in memory, indexed by querier type, enforcement action, querier and purpose.
+ * With policy_store = true the whole policy set is read once, in a single pass over a forward-only cursor
+ * per policy table, instead of one join per querier (PolicyPersistor.retrievePolicies).
+ * Object conditions are built from consecutive rows of the same policy and attribute, so a condition
+ * may have any number of predicates, and repeated strings (attributes, purposes, values) are shared.
+ * Policies inserted through PolicyPersistor.insertPolicy are added to a loaded store, policies inserted
+ * in any other way (e.g. scripts loading the database) are not seen until the process is restarted.
+ * With policy_store = false policies are retrieved from the database on every call.
+ */
+public class PolicyStore {
+
+    private static PolicyStore _instance;
+
+    private final Map<String, Policies> policies = new ConcurrentHashMap<>();
+
+    private final Map<String, String> strings = new HashMap<>();
+
+    private final boolean loaded;
+
+    private long policyCount;
+
+    private PolicyStore(boolean load) {
+        this.loaded = load;
+        if (load) load();
+    }
+
+    public static synchronized PolicyStore getInstance() {
+        if (_instance == null) _instance = new PolicyStore(PolicyConstants.POLICY_STORE);
+        return _instance;
+    }
+
+    /**
+     * Adds newly inserted policies to the store if it has been loaded
+     * @param bePolicies
+     */
+    static synchronized void policiesInserted(List<BEPolicy> bePolicies) {
+        if (_instance == null || !_instance.loaded) return;
+        for (BEPolicy bePolicy : bePolicies) {
+            _instance.add(bePolicy.typeOfPolicy() ? PolicyConstants.USER_INDIVIDUAL : PolicyConstants.USER_GROUP,
+                    bePolicy.fetchQuerier(), bePolicy);
+        }
+    }
+
+    /**
+     * Policies of a querier in the order of their ids, with one list per purpose
+     */
+    private static class Policies {
+
+        final List<BEPolicy> all = new ArrayList<>();
+
+        final Map<String, List<BEPolicy>> byPurpose = new HashMap<>();
+
+        synchronized void add(BEPolicy bePolicy) {
+            all.add(bePolicy);
+            byPurpose.computeIfAbsent(bePolicy.getPurpose(), k -> new ArrayList<>()).add(bePolicy);
+        }
+    }
+
+    private static String key(String querier_type, String enforcement_action, String querier) {
+        return querier_type.toLowerCase() + "|" + enforcement_action + "|" + querier;
+    }
+
+    private String intern(String value) {
+        if (value == null) return null;
+        String shared = strings.putIfAbsent(value, value);
+        return shared == null ? value : shared;
+    }
+
+    private void load() {
+        Instant start = Instant.now();
+        load(PolicyConstants.USER_INDIVIDUAL, "USER_POLICY", "USER_POLICY_OBJECT_CONDITION");
+        load(PolicyConstants.USER_GROUP, "GROUP_POLICY", "GROUP_POLICY_OBJECT_CONDITION");
+        strings.clear();
+        System.out.println("Loaded " + policyCount + " policies of " + policies.size() + " queriers in "
+                + Duration.between(start, Instant.now()).toMillis() + " ms");
+    }
+
+    /**
+     * Reads all policies of a policy table in one pass, rows are ordered by policy and attribute
+     * @param querier_type
+     * @param policy_table
+     * @param oc_table
+     */
+    private void load(String querier_type, String policy_table, String oc_table) {
+        String query = "SELECT p.id, p.querier, p.purpose, p.enforcement_action, p.inserted_at, " +
+                "oc.attribute, oc.attribute_type, oc.operator, oc.comp_value " +
+                "FROM " + policy_table + " p, " + oc_table + " oc WHERE p.id = oc.policy_id " +
+                "order by p.id, oc.attribute, oc.comp_value";
+        Statement statement = null;
+        try (Connection connection = PolicyConstants.getDataSource().getConnection()) {
+            statement = PolicyConstants.getDialect().streamingStatement(connection, PolicyConstants.STREAM_FETCH_SIZE);
+            try (ResultSet rs = statement.executeQuery(query)) {
+                BEPolicy policy = null;
+                ObjectCondition oc = null;
+                String querier = null;
+                while (rs.next()) {
+                    String id = rs.getString(1);
+                    if (policy == null || !policy.getId().equals(id)) {
+                        if (policy != null) add(querier_type, querier, policy);
+                        querier = intern(rs.getString(2));
+                        List<QuerierCondition> querierConditions = new ArrayList<>(2);
+                        querierConditions.add(new QuerierCondition(id, "policy_type", AttributeType.STRING,
+                                Operation.EQ, querier_type));
+                        querierConditions.add(new QuerierCondition(id, "querier", AttributeType.STRING,
+                                Operation.EQ, querier));
+                        policy = new BEPolicy(id, new ArrayList<>(), querierConditions, intern(rs.getString(3)),
+                                intern(rs.getString(4)), rs.getTimestamp(5));
+                        oc = null;
+                    }
+                    String attribute = intern(rs.getString(6));
+                    if (oc == null || !oc.getAttribute().equals(attribute)) {
+                        oc = new ObjectCondition(id, attribute, AttributeType.valueOf(rs.getString(7)));
+                        policy.getObject_conditions().add(oc);
+                    }
+                    oc.getBooleanPredicates().add(new BooleanPredicate(
+                            PolicyPersistor.convertOperator(rs.getString(8)), intern(rs.getString(9))));
+                }
+                if (policy != null) add(querier_type, querier, policy);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new PolicyEngineException("Failed to load the policies of " + policy_table);
+        } finally {
+            DbUtils.closeQuietly(statement);
+        }
+    }
+
+    private void add(String querier_type, String querier, BEPolicy bePolicy) {
+        policies.computeIfAbsent(key(querier_type, bePolicy.getAction(), querier), k -> new Policies()).add(bePolicy);
+        policyCount++;
+    }
+
+    /**
+     * Same as PolicyPersistor.retrievePolicies for a single querier
+     * @param querier
+     * @param querier_type user or group
+     * @param enforcement_action allow or deny
+     * @return copies of the policies of the querier, null if it has none
+     */
+    public List<BEPolicy> retrievePolicies(String querier, String querier_type, String enforcement_action) {
+        if (!loaded)
+            return PolicyPersistor.getInstance().retrievePolicies(querier, querier_type, enforcement_action);
+        Policies stored = policies.get(key(querier_type, enforcement_action, querier));
+        if (stored == null) return null;
+        synchronized (stored) {
+            return copy(stored.all);
+        }
+    }
+
+    /**
+     * Policies of the querier for one purpose
+     * @param querier
+     * @param querier_type user or group
+     * @param enforcement_action allow or deny
+     * @param purpose
+     * @return copies of the policies of the querier with the purpose, null if it has none
+     */
+    public List<BEPolicy> retrievePolicies(String querier, String querier_type, String enforcement_action,
+                                           String purpose) {
+        if (!loaded) {
+            List<BEPolicy> bePolicies = retrievePolicies(querier, querier_type, enforcement_action);
+            if (bePolicies == null) return null;
+            bePolicies.removeIf(bp -> !purpose.equals(bp.getPurpose()));
+            return bePolicies.isEmpty() ? null : bePolicies;
+        }
+        Policies stored = policies.get(key(querier_type, enforcement_action, querier));
+        if (stored == null) return null;
+        synchronized (stored) {
+            List<BEPolicy> forPurpose = stored.byPurpose.get(purpose);
+            return forPurpose == null ? null : copy(forPurpose);
+        }
+    }
+
+    /**
+     * Callers modify the policies they retrieve (e.g. their object conditions during guard generation),
+     * so every call gets its own copies of the stored policies
+     */
+    private static List<BEPolicy> copy(List<BEPolicy> stored) {
+        List<BEPolicy> copies = new ArrayList<>(stored.size());
+        for (BEPolicy bp : stored) {
+            List<ObjectCondition> objectConditions = new ArrayList<>(bp.getObject_conditions().size());
+            for (ObjectCondition oc : bp.getObject_conditions()) {
+                ObjectCondition copy = new ObjectCondition(oc.getPolicy_id(), oc.getAttribute(), oc.getType());
+                for (BooleanPredicate bpr : oc.getBooleanPredicates()) copy.getBooleanPredicates().add(new BooleanPredicate(bpr));
+                objectConditions.add(copy);
+            }
+            List<QuerierCondition> querierConditions = new ArrayList<>(bp.getQuerier_conditions().size());
+            for (QuerierCondition qc : bp.getQuerier_conditions()) {
+                QuerierCondition copy = new QuerierCondition(qc);
+                copy.setPolicy_id(qc.getPolicy_id());
+                querierConditions.add(copy);
+            }
+            copies.add(new BEPolicy(bp.getId(), objectConditions, querierConditions, bp.getPurpose(),
+                    bp.getAction(), bp.getInserted_at()));
+        }
+        return copies;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public long getPolicyCount() {
+        return policyCount;
+    }
+
+    public int getQuerierCount() {
+        return policies.size();
+    }
+}
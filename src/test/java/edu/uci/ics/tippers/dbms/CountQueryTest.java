@@ -0,0 +1,72 @@
+package edu.uci.ics.tippers.dbms;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class CountQueryTest {
+
+    @Test
+    public void wrapsAPlainSelect() {
+        assertEquals("Select count(*) as total from (SELECT * FROM PRESENCE WHERE user_id = 5) counted",
+                CountQuery.wrap("  SELECT * FROM PRESENCE WHERE user_id = 5 \n"));
+    }
+
+    @Test
+    public void keepsALeadingHintAtTheHead() {
+        assertEquals("/*+ IndexScan(PRESENCE presence_user) */ Select count(*) as total from ("
+                        + "SELECT * FROM PRESENCE WHERE user_id = 5) counted",
+                CountQuery.wrap("/*+ IndexScan(PRESENCE presence_user) */\nSELECT * FROM PRESENCE WHERE user_id = 5"));
+    }
+
+    @Test
+    public void keepsTheWithClauseAtTheHead() {
+        String with = "WITH g1 AS (SELECT * FROM PRESENCE WHERE user_id = 5), "
+                + "g2 AS (SELECT * FROM PRESENCE WHERE location_id = ')' AND (user_id = 6)) ";
+        assertEquals(with + "Select count(*) as total from (SELECT * FROM g1 UNION SELECT * FROM g2) counted",
+                CountQuery.wrap(with + "SELECT * FROM g1 UNION SELECT * FROM g2"));
+    }
+
+    @Test
+    public void keepsALeadingHintBeforeTheWithClause() {
+        assertEquals("/*+ SeqScan(PRESENCE) */ with g AS (select * from PRESENCE) "
+                        + "Select count(*) as total from (select id from g) counted",
+                CountQuery.wrap("/*+ SeqScan(PRESENCE) */ with g AS (select * from PRESENCE) select id from g"));
+    }
+
+    @Test
+    public void keepsATrailingGuidelineAtTheEnd() {
+        String guideline = "/* <OPTGUIDELINES><IXSCAN TABLE='PRESENCE' INDEX='presence_user'/></OPTGUIDELINES> */";
+        assertEquals("Select count(*) as total from (SELECT * FROM PRESENCE WHERE user_id = 5) counted "
+                        + guideline,
+                CountQuery.wrap("SELECT * FROM PRESENCE WHERE user_id = 5\n" + guideline));
+    }
+
+    @Test
+    public void keepsATrailingLineCommentAfterTheCount() {
+        assertEquals("Select count(*) as total from (SELECT * FROM PRESENCE WHERE location_id = '3--1') counted"
+                        + "\n-- querier 5",
+                CountQuery.wrap("SELECT * FROM PRESENCE WHERE location_id = '3--1' -- querier 5"));
+        assertEquals("Select count(*) as total from (SELECT * FROM PRESENCE) counted /* a -- b */",
+                CountQuery.wrap("SELECT * FROM PRESENCE /* a -- b */"));
+        assertEquals("Select count(*) as total from (SELECT * FROM PRESENCE) counted /* a\n-- b */",
+                CountQuery.wrap("SELECT * FROM PRESENCE /* a\n-- b */"));
+    }
+
+    @Test
+    public void dropsATrailingSemicolon() {
+        assertEquals("Select count(*) as total from (SELECT * FROM PRESENCE) counted",
+                CountQuery.wrap("SELECT * FROM PRESENCE;"));
+        assertEquals("Select count(*) as total from (SELECT * FROM PRESENCE) counted /* g */\n-- note",
+                CountQuery.wrap("SELECT * FROM PRESENCE /* g */; -- note"));
+    }
+
+    @Test
+    public void sumsTheCountsOfDisjointBranches() {
+        assertEquals("q1", CountQuery.sum(Collections.singletonList("q1")));
+        assertEquals("Select SUM(total) as total from (q1 UNION ALL q2) counts", CountQuery.sum(Arrays.asList("q1", "q2")));
+    }
+}
@@ -0,0 +1,100 @@
+package edu.uci.ics.tippers.dbms;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongHashSetTest {
+
+    @Test
+    public void zeroIsStoredOutsideOfTheTable() {
+        LongHashSet set = new LongHashSet();
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.contains(0));
+        assertTrue(set.add(7));
+        assertEquals(2, set.size());
+        List<Long> keys = new ArrayList<>();
+        set.forEach(keys::add);
+        assertEquals(2, keys.size());
+        assertTrue(keys.contains(0L));
+        assertTrue(keys.contains(7L));
+    }
+
+    @Test
+    public void growKeepsAllKeys() {
+        LongHashSet set = new LongHashSet(16, false);
+        for (long key = -5000; key <= 5000; key++)
+            assertTrue(set.add(key * 31));
+        assertEquals(10001, set.size());
+        for (long key = -5000; key <= 5000; key++) {
+            assertTrue(set.contains(key * 31));
+            assertFalse(set.contains(key * 31 + 1));
+            assertFalse(set.add(key * 31));
+        }
+        assertEquals(10001, set.size());
+    }
+
+    @Test
+    public void addAllCountsNewKeysOnly() {
+        LongHashSet set = new LongHashSet();
+        assertEquals(3, set.addAll(new long[]{1, 2, 2, 3, 9}, 4));
+        assertFalse(set.contains(9));
+        assertEquals(1, set.addAll(new long[]{3, 0}, 2));
+        assertEquals(4, set.size());
+    }
+
+    @Test
+    public void bloomFilterIsRebuiltWhenTheSetGrowsPastIt() {
+        //the filter starts with 1024 expected keys, duplicates must still be found after it is rebuilt
+        LongHashSet set = new LongHashSet(16, true);
+        for (long key = 1; key <= 20000; key++)
+            assertTrue(set.add(key));
+        for (long key = 1; key <= 20000; key++) {
+            assertTrue(set.contains(key));
+            assertFalse(set.add(key));
+        }
+        assertFalse(set.contains(20001));
+        assertTrue(set.add(0));
+        assertTrue(set.contains(0));
+        assertEquals(20001, set.size());
+    }
+
+    @Test
+    public void growMovesLargeTablesOffHeap() {
+        LongHashSet set = new LongHashSet(16, false);
+        assertFalse(set.isOffHeap());
+        int keys = (int) (LongHashSet.OFF_HEAP_SLOTS * 0.7);
+        for (long key = 1; key <= keys; key++) set.add(key);
+        assertTrue(set.isOffHeap());
+        assertEquals(keys, set.size());
+        assertTrue(set.contains(1));
+        assertTrue(set.contains(keys));
+        assertFalse(set.contains(keys + 1));
+        set.close();
+    }
+
+    @Test
+    public void closeReleasesTheTableAndLeavesAnEmptySet() {
+        LongHashSet set = new LongHashSet(LongHashSet.OFF_HEAP_SLOTS, true);
+        assertTrue(set.isOffHeap());
+        set.add(0);
+        set.add(42);
+        set.close();
+        assertFalse(set.isOffHeap());
+        assertEquals(0, set.size());
+        assertFalse(set.contains(0));
+        assertFalse(set.contains(42));
+        assertTrue(set.add(42));
+        assertTrue(set.contains(42));
+        assertEquals(1, set.size());
+        set.close();
+        set.close();
+    }
+}